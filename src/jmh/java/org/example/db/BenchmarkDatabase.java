@@ -0,0 +1,70 @@
+package org.example.db;
+
+import org.example.Config;
+
+import java.io.File;
+import java.util.ArrayList;
+
+/**
+ * Opens the DB for benchmarks, on a file of its own under build/jmh-db filled with the given number of notes.
+ * Filled files are kept and reused by later runs, as filling large ones takes a while.
+ */
+public class BenchmarkDatabase {
+
+    private static final File DIRECTORY = new File("build/jmh-db");
+    private static final int CHUNK_SIZE = 10000;
+
+    /**
+     * Open the DB on a file holding (at least) the given number of notes, with the given extra settings.
+     * Settings are name/value pairs, see <code>Config</code>.
+     */
+    public static Database open(String name, int notes, String... settings) throws Exception {
+        BenchmarkDatabase.DIRECTORY.mkdirs();
+        File file = new File(BenchmarkDatabase.DIRECTORY, name + "-" + notes + ".db");
+        System.setProperty(Config.DB_PATH, file.getPath());
+        for (int i = 0; i + 1 < settings.length; i += 2) {
+            System.setProperty(settings[i], settings[i + 1]);
+        }
+        Database database = Database.getInstance();
+        // fill up to the requested number of notes
+        int count = BenchmarkDatabase.count(database);
+        ArrayList<Note> chunk = new ArrayList<Note>(BenchmarkDatabase.CHUNK_SIZE);
+        for (int i = count; i < notes; i++) {
+            chunk.add(BenchmarkDatabase.note(i));
+            if (chunk.size() == BenchmarkDatabase.CHUNK_SIZE || i == notes - 1) {
+                database.addNotes(chunk);
+                chunk.clear();
+            }
+        }
+        return database;
+    }
+
+    /**
+     * Close the DB and clear the extra settings.
+     */
+    public static void close(String... settings) throws Exception {
+        Database.getInstance().closeDB();
+        System.clearProperty(Config.DB_PATH);
+        for (int i = 0; i + 1 < settings.length; i += 2) {
+            System.clearProperty(settings[i]);
+        }
+    }
+
+    /**
+     * Create the i-th benchmark note, with typical title/content sizes.
+     */
+    public static Note note(int i) {
+        return new Note("note " + i + " lorem ipsum", "Lorem ipsum dolor sit amet, consectetur adipiscing elit, note " + i +
+                ", sed do eiusmod tempor incididunt ut labore et dolore magna aliqua. Ut enim ad minim veniam.");
+    }
+
+    /**
+     * Count the notes in the DB.
+     */
+    private static int count(Database database) throws Exception {
+        int[] count = {0};
+        database.streamNotes(0, -1, note -> count[0]++);
+        return count[0];
+    }
+
+}
@@ -0,0 +1,83 @@
+package org.example.db;
+
+import org.example.Config;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single note CRUD on the DB, without the HTTP layer.
+ * Reads pick random notes, with and without the cache; writes run in both write modes.
+ * Both backends are measured, the log keeps the notes serialized so it has no cache (and a single write mode).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DatabaseBenchmark {
+
+    private static final int NOTES = 10000;
+
+    @Param({"0", "33554432"})
+    public String cacheBytes;
+
+    @Param({"latency", "throughput"})
+    public String writeMode;
+
+    @Param({"sqlite", "log"})
+    public String backend;
+
+    private Database database = null;
+    private String[] settings = null;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        this.settings = new String[] {Config.CACHE_BYTES, this.cacheBytes, Config.DB_WRITE_MODE, this.writeMode, Config.DB_BACKEND, this.backend};
+        this.database = BenchmarkDatabase.open("crud", DatabaseBenchmark.NOTES, this.settings);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        BenchmarkDatabase.close(this.settings);
+    }
+
+    @Benchmark
+    public Note getNote() throws Exception {
+        return this.database.getNote(this.randomID());
+    }
+
+    @Benchmark
+    public SerializedNote getSerializedNote() throws Exception {
+        return this.database.getSerializedNote(this.randomID());
+    }
+
+    @Benchmark
+    public Note updateNote() throws Exception {
+        int id = this.randomID();
+        Note note = BenchmarkDatabase.note(id);
+        note = new Note(id, note.getTitle(), note.getContent(), -1);
+        this.database.updateNote(note);
+        return note;
+    }
+
+    @Benchmark
+    public Note addAndDeleteNote() throws Exception {
+        // add and delete again, so the DB doesn't grow
+        Note note = BenchmarkDatabase.note(0);
+        this.database.addNotes(List.of(note));
+        this.database.deleteNote(note.getID());
+        return note;
+    }
+
+    /**
+     * Pick the ID of a random note of the filled DB.
+     */
+    private int randomID() {
+        return ThreadLocalRandom.current().nextInt(DatabaseBenchmark.NOTES) + 1;
+    }
+
+}
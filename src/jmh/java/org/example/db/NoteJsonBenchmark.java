@@ -0,0 +1,84 @@
+package org.example.db;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.Strictness;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializing and parsing single Notes, the tree based way (JsonObject) against the streaming one (JsonWriter/JsonReader)
+ * and the specialized codec working on bytes (NoteCodec, reused as by a request).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NoteJsonBenchmark {
+
+    @Param({"100", "10000"})
+    public int contentLength;
+
+    private Note note = null;
+    private String json = null;
+    private byte[] jsonBytes = null;
+    private NoteCodec codec = null;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        this.note = new Note(1, "benchmark note", "x".repeat(this.contentLength), System.currentTimeMillis());
+        this.json = this.note.toJsonObject().toString();
+        this.jsonBytes = this.json.getBytes(StandardCharsets.UTF_8);
+        this.codec = new NoteCodec();
+    }
+
+    @Benchmark
+    public byte[] serializeJsonObject() {
+        return this.note.toJsonObject().toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] serializeJsonWriter() throws Exception {
+        StringWriter stringWriter = new StringWriter();
+        this.note.writeJson(new JsonWriter(stringWriter));
+        return stringWriter.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public int serializeNoteCodec() throws Exception {
+        // written into the reused buffer, as streamed to a response
+        this.codec.writeNote(this.note);
+        int size = this.codec.size();
+        this.codec.flushTo(OutputStream.nullOutputStream());
+        return size;
+    }
+
+    @Benchmark
+    public Note parseJsonObject() {
+        JsonObject jsonNote = JsonParser.parseString(this.json).getAsJsonObject();
+        return new Note(jsonNote.get(Note.JSON_TITLE_KEY).getAsString(), jsonNote.get(Note.JSON_CONTENT_KEY).getAsString());
+    }
+
+    @Benchmark
+    public Note parseJsonReader() throws Exception {
+        JsonReader jsonReader = new JsonReader(new StringReader(this.json));
+        jsonReader.setStrictness(Strictness.LENIENT);
+        return Note.readJson(jsonReader);
+    }
+
+    @Benchmark
+    public Note parseNoteCodec() throws Exception {
+        return this.codec.readNote(new ByteArrayInputStream(this.jsonBytes));
+    }
+
+}
@@ -0,0 +1,60 @@
+package org.example.server;
+
+import org.example.Config;
+import org.example.db.BenchmarkDatabase;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+
+/**
+ * In-process server for benchmarks, on a free port and a benchmark DB, with a client to send it requests.
+ */
+public class BenchmarkServer {
+
+    private final String[] settings;
+    private final Server server;
+    private final HttpClient client;
+    private final String baseURI;
+
+    /**
+     * Start a server on a benchmark DB holding the given number of notes.
+     * Settings are name/value pairs, see <code>Config</code>.
+     */
+    public BenchmarkServer(String name, int notes, String... settings) throws Exception {
+        this.settings = settings;
+        BenchmarkDatabase.open(name, notes, settings);
+        System.setProperty(Config.SERVER_PORT, "0");
+        this.server = new Server();
+        this.server.startServer();
+        this.client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        this.baseURI = "http://localhost:" + this.server.getPort() + NoteRequestHandler.REQUEST_PATH;
+    }
+
+    /**
+     * Send a request for the given path (relative to the API) and return the response, with its body as bytes.
+     */
+    public HttpResponse<byte[]> send(String method, String path, String body, String... headers) throws Exception {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(this.baseURI + path))
+                .method(method, body == null ? HttpRequest.BodyPublishers.noBody() : HttpRequest.BodyPublishers.ofString(body));
+        if (headers.length > 0) {
+            request.headers(headers);
+        }
+        HttpResponse<byte[]> response = this.client.send(request.build(), HttpResponse.BodyHandlers.ofByteArray());
+        if (response.statusCode() >= 400) {
+            throw new IllegalStateException(method + " " + path + " failed with " + response.statusCode());
+        }
+        return response;
+    }
+
+    /**
+     * Stop the server and close its DB.
+     */
+    public void stop() throws Exception {
+        this.server.stopServer();
+        System.clearProperty(Config.SERVER_PORT);
+        BenchmarkDatabase.close(this.settings);
+    }
+
+}
@@ -0,0 +1,64 @@
+package org.example.server;
+
+import org.example.db.Database;
+import org.openjdk.jmh.annotations.*;
+
+import java.net.http.HttpResponse;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading whole collections of growing size, over HTTP (plain, compressed and without content) and directly from the DB.
+ * The DB files are filled on first use, which takes a while for the largest one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class CollectionBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    public int notes;
+
+    private BenchmarkServer server = null;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        this.server = new BenchmarkServer("collection", this.notes);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        this.server.stop();
+    }
+
+    @Benchmark
+    public HttpResponse<byte[]> getCollection() throws Exception {
+        return this.server.send("GET", "", null);
+    }
+
+    @Benchmark
+    public HttpResponse<byte[]> getCollectionGzip() throws Exception {
+        return this.server.send("GET", "", null, "Accept-Encoding", "gzip");
+    }
+
+    @Benchmark
+    public HttpResponse<byte[]> getCollectionList() throws Exception {
+        // the list view: without content, latest first
+        return this.server.send("GET", "?fields=id,title,timestamp&sort=timestamp:desc", null);
+    }
+
+    @Benchmark
+    public HttpResponse<byte[]> exportCollection() throws Exception {
+        return this.server.send("GET", "/_export", null);
+    }
+
+    @Benchmark
+    public int streamNotes() throws Exception {
+        int[] count = {0};
+        Database.getInstance().streamNotes(0, -1, note -> count[0]++);
+        return count[0];
+    }
+
+}
@@ -0,0 +1,72 @@
+package org.example.server;
+
+import org.example.Config;
+import org.openjdk.jmh.annotations.*;
+
+import java.net.http.HttpResponse;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end HTTP round-trips for single notes, through an in-process server.
+ * Run with several threads (e.g. <code>-t 8</code>) to see the server under concurrent load.
+ * Both transports are measured, to compare the JDK's server with the NIO one side by side.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ServerBenchmark {
+
+    private static final int NOTES = 10000;
+    private static final String NOTE_BODY = "{\"title\" : \"Lorem Ipsum\" , \"content\" : \"Lorem ipsum dolor sit amet\"}";
+
+    @Param({"jdk", "nio"})
+    public String transport;
+
+    private BenchmarkServer server = null;
+    private String etag = null;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        this.server = new BenchmarkServer("server", ServerBenchmark.NOTES, Config.SERVER_TRANSPORT, this.transport);
+        this.etag = this.server.send("GET", "/1", null).headers().firstValue("ETag").orElseThrow();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        this.server.stop();
+    }
+
+    @Benchmark
+    public HttpResponse<byte[]> getNote() throws Exception {
+        return this.server.send("GET", "/" + this.randomID(), null);
+    }
+
+    @Benchmark
+    public HttpResponse<byte[]> getNoteNotModified() throws Exception {
+        // the same note, as long as it's not changed meanwhile
+        return this.server.send("GET", "/1", null, "If-None-Match", this.etag);
+    }
+
+    @Benchmark
+    public HttpResponse<byte[]> putNote() throws Exception {
+        // never the note above, so it stays unchanged
+        return this.server.send("PUT", "/" + (this.randomID() + 1), ServerBenchmark.NOTE_BODY);
+    }
+
+    @Benchmark
+    public HttpResponse<byte[]> getPage() throws Exception {
+        return this.server.send("GET", "?limit=100&after=" + this.randomID(), null);
+    }
+
+    /**
+     * Pick the ID of a random note of the filled DB, except the last one.
+     */
+    private int randomID() {
+        return ThreadLocalRandom.current().nextInt(ServerBenchmark.NOTES - 1) + 1;
+    }
+
+}
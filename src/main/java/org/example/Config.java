@@ -0,0 +1,129 @@
+package org.example;
+
+/**
+ * Configuration of the server and DB, read from system properties (e.g. <code>-Dnotes.server.threads=8</code>).
+ * Every setting has a default, so the program runs without any configuration.
+ */
+public class Config {
+
+    // port the server listens on, 0 for any free port
+    public static final String SERVER_PORT = "notes.server.port";
+    // HTTP transport: "jdk" (the JDK's HttpServer) or "nio" (own non-blocking server, for many keep-alive connections)
+    public static final String SERVER_TRANSPORT = "notes.server.transport";
+    // request executor: "pool" (bounded thread pool), "virtual" (virtual threads, if supported) or "single" (dispatcher thread)
+    public static final String SERVER_EXECUTOR = "notes.server.executor";
+    // number of threads of the request thread pool
+    public static final String SERVER_THREADS = "notes.server.threads";
+    // number of requests that may wait for a thread of the pool, further requests are answered with 503
+    public static final String SERVER_QUEUE = "notes.server.queue";
+    // whether to compress responses (gzip/deflate) for clients accepting it
+    public static final String SERVER_COMPRESSION = "notes.server.compression";
+    // minimum size in bytes of a response to compress it, smaller ones aren't worth it
+    public static final String SERVER_COMPRESSION_MIN_SIZE = "notes.server.compressionMinSize";
+    // number of connections waiting to be accepted, further ones are refused by the OS, 0 for the system default
+    public static final String SERVER_BACKLOG = "notes.server.backlog";
+    // whether to warm up the server with requests to itself before it's ready, so the first clients don't pay for it
+    public static final String SERVER_WARMUP = "notes.server.warmup";
+
+    // key store (PKCS12 or JKS) with the key and certificate of the server, to serve HTTPS instead of HTTP, and its password
+    public static final String TLS_KEYSTORE = "notes.tls.keystore";
+    public static final String TLS_PASSWORD = "notes.tls.password";
+    // number of TLS sessions cached for resumption (0 for no limit), and the time in seconds they may be resumed
+    public static final String TLS_SESSION_CACHE = "notes.tls.sessionCache";
+    public static final String TLS_SESSION_TIMEOUT = "notes.tls.sessionTimeout";
+
+    // maximum size in bytes of a request body (and of each note of a bulk import), larger ones are rejected, 0 for no limit
+    public static final String LIMIT_BODY_SIZE = "notes.limit.bodySize";
+    // time in milliseconds a request may wait for a thread (and its turn), then it's rejected, 0 for no limit
+    public static final String LIMIT_QUEUE_TIME = "notes.limit.queueTime";
+    // reads (and writes) per second each client (by address) may send, further ones are rejected, 0 for no limit
+    public static final String LIMIT_READ_RATE = "notes.limit.readRate";
+    public static final String LIMIT_WRITE_RATE = "notes.limit.writeRate";
+    // reads (and writes) in flight at once, further ones wait within the queue time then are rejected, 0 for no limit
+    public static final String LIMIT_READ_CONCURRENCY = "notes.limit.readConcurrency";
+    public static final String LIMIT_WRITE_CONCURRENCY = "notes.limit.writeConcurrency";
+
+    // storage of the notes: "sqlite" (default) or "log" (append-only log, memory-mapped, with an in-memory index)
+    public static final String DB_BACKEND = "notes.db.backend";
+    // path of the DB file, relative to the working directory
+    public static final String DB_PATH = "notes.db.path";
+    // number of DB files the notes are spread over by ID, each with its own connections and writer, fixed once created
+    public static final String DB_SHARDS = "notes.db.shards";
+    // number of pooled connections for reading the DB (per shard), writes go through a single dedicated connection
+    public static final String DB_READERS = "notes.db.readers";
+    // time in milliseconds a connection waits for a lock on the DB before failing
+    public static final String DB_BUSY_TIMEOUT = "notes.db.busyTimeout";
+    // writes: "latency" (each write commits on its own) or "throughput" (writes are grouped and commit in batches)
+    public static final String DB_WRITE_MODE = "notes.db.writeMode";
+    // maximum number of writes committed together in "throughput" write mode
+    public static final String DB_BATCH_SIZE = "notes.db.batchSize";
+    // time in milliseconds a batch waits for more writes in "throughput" write mode
+    public static final String DB_BATCH_DELAY = "notes.db.batchDelay";
+    // number of writes which may wait for a batch in "throughput" write mode
+    public static final String DB_WRITE_QUEUE = "notes.db.writeQueue";
+    // percentage of superseded records in the log of the "log" backend at which it's compacted
+    public static final String DB_COMPACT_THRESHOLD = "notes.db.compactThreshold";
+
+    // memory budget in bytes of the cache of notes in front of the DB, 0 to disable it
+    public static final String CACHE_BYTES = "notes.cache.bytes";
+
+    // time in milliseconds deletions are remembered for syncing clients, older clients have to retrieve all notes
+    public static final String SYNC_RETENTION = "notes.sync.retention";
+
+    // number of changes a change stream may fall behind, a stream falling further behind is dropped (and has to resume)
+    public static final String STREAM_QUEUE = "notes.stream.queue";
+    // maximum number of open change streams, by default half the threads of the "pool" executor (none for "single")
+    public static final String STREAM_LIMIT = "notes.stream.limit";
+
+    /**
+     * Get the setting with given name as String, or the default value if not set.
+     */
+    public static String getString(String name, String defaultValue) {
+        String value = System.getProperty(name);
+        if (value == null || value.isBlank()) {
+            value = defaultValue;
+        }
+        return value.trim();
+    }
+
+    /**
+     * Get the setting with given name as int, or the default value if not set.
+     */
+    public static int getInt(String name, int defaultValue) {
+        int value = defaultValue;
+        String property = System.getProperty(name);
+        if (property != null && !property.isBlank()) {
+            value = Integer.parseInt(property.trim());
+        }
+        return value;
+    }
+
+    /**
+     * Get the setting with given name as long, or the default value if not set.
+     */
+    public static long getLong(String name, long defaultValue) {
+        long value = defaultValue;
+        String property = System.getProperty(name);
+        if (property != null && !property.isBlank()) {
+            value = Long.parseLong(property.trim());
+        }
+        return value;
+    }
+
+    /**
+     * Get the setting with given name as boolean, or the default value if not set.
+     */
+    public static boolean getBoolean(String name, boolean defaultValue) {
+        boolean value = defaultValue;
+        String property = System.getProperty(name);
+        if (property != null && !property.isBlank()) {
+            value = Boolean.parseBoolean(property.trim());
+        }
+        return value;
+    }
+
+    private Config() {
+        // only static access
+    }
+
+}
@@ -18,7 +18,8 @@ public class Main {
             System.out.println("starting server ....");
             Server server = new Server();
             server.startServer();
-            System.out.println("server running on: http://localhost:8000/api/notes\n");
+            System.out.println("server running on: " + (server.isSecure() ? "https" : "http") + "://localhost:" + server.getPort() + "/api/notes");
+            System.out.println("ready " + server.getStartupTime() + " ms after launch\n");
             // await input from user, then stop the server
             System.out.println("press <enter> to stop");
             System.in.read();
@@ -0,0 +1,140 @@
+package org.example.db;
+
+import org.example.metrics.Metrics;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-process fan-out of the committed changes to the notes, to any number of subscribers (e.g. the change streams
+ * of the clients), see <code>Database.getChangeBus()</code>.
+ * Each subscriber has its own bounded queue of events. Publishing never blocks the writes: a subscriber too slow to
+ * keep up, i.e. whose queue is full, is dropped instead and has to catch up by syncing.
+ * Thread-safe.
+ */
+public class ChangeBus {
+
+    // metrics of the subscribers
+    private static final LongAdder SUBSCRIBERS = Metrics.gauge(
+            "notes_change_subscribers", "Subscribers of the changes to the notes").labels();
+    private static final LongAdder DROPPED = Metrics.counter(
+            "notes_change_subscribers_dropped_total", "Subscribers dropped for falling behind the changes").labels();
+
+    // marks the end of a subscription in its queue, to wake up the subscriber waiting for events
+    private static final ChangeEvent END = new ChangeEvent(0, 0);
+
+    // number of events each subscriber may fall behind
+    private final int capacity;
+    private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+
+    /**
+     * Create a bus, whose subscribers may fall behind by up to the given number of events.
+     */
+    ChangeBus(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Subscribe to the changes published from now on. Close the subscription when done.
+     */
+    public Subscription subscribe() {
+        Subscription subscription = new Subscription();
+        this.subscriptions.add(subscription);
+        ChangeBus.SUBSCRIBERS.increment();
+        return subscription;
+    }
+
+    /**
+     * Hand the given event to all subscribers, dropping those with a full queue.
+     */
+    void publish(ChangeEvent event) {
+        for (Subscription subscription : this.subscriptions) {
+            if (!subscription.queue.offer(event)) {
+                subscription.end(true);
+            }
+        }
+    }
+
+    /**
+     * End all subscriptions, as no more changes will be published.
+     */
+    void close() {
+        for (Subscription subscription : this.subscriptions) {
+            subscription.end(false);
+        }
+    }
+
+    /**
+     * Whether there are any subscribers, otherwise there's no need to publish.
+     */
+    boolean hasSubscribers() {
+        return !this.subscriptions.isEmpty();
+    }
+
+    /**
+     * Subscription to the changes, with its queue of events not taken yet.
+     */
+    public class Subscription {
+
+        private final ArrayBlockingQueue<ChangeEvent> queue = new ArrayBlockingQueue<ChangeEvent>(ChangeBus.this.capacity);
+        private volatile boolean ended = false;
+
+        private Subscription() {
+        }
+
+        /**
+         * Take the next event, waiting up to the given time for one.
+         * Returns null if there's none by then, or right away if the subscription ended and all its events are taken.
+         */
+        public ChangeEvent poll(long timeout, TimeUnit unit) throws InterruptedException {
+            ChangeEvent event = this.queue.poll();
+            if (event == null && !this.ended) {
+                event = this.queue.poll(timeout, unit);
+            }
+            return event != ChangeBus.END ? event : null;
+        }
+
+        /**
+         * Take the next event, if there's one already.
+         */
+        public ChangeEvent poll() {
+            ChangeEvent event = this.queue.poll();
+            return event != ChangeBus.END ? event : null;
+        }
+
+        /**
+         * Whether the subscription ended: dropped for falling behind (missing the events since), or the bus closed.
+         */
+        public boolean isEnded() {
+            return this.ended;
+        }
+
+        /**
+         * Stop receiving events.
+         */
+        public void close() {
+            if (ChangeBus.this.subscriptions.remove(this)) {
+                ChangeBus.SUBSCRIBERS.decrement();
+            }
+        }
+
+        /**
+         * End the subscription, dropped as its queue is full or as the bus is closed.
+         */
+        private void end(boolean dropped) {
+            this.ended = true;
+            if (ChangeBus.this.subscriptions.remove(this)) {
+                ChangeBus.SUBSCRIBERS.decrement();
+                if (dropped) {
+                    ChangeBus.DROPPED.increment();
+                }
+            }
+            // wake up the subscriber, unless the queue is full (so it isn't waiting)
+            this.queue.offer(ChangeBus.END);
+        }
+
+    }
+
+}
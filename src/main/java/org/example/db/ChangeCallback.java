@@ -0,0 +1,14 @@
+package org.example.db;
+
+/**
+ * Receives the changes to the notes one by one, as they are read from the DB:
+ * Notes added/modified through <code>onNote()</code>, deleted ones through <code>onDeleted()</code>.
+ */
+public interface ChangeCallback extends NoteCallback {
+
+    /**
+     * Called for each Note deleted, with the time it was deleted.
+     */
+    void onDeleted(int id, long timestamp) throws Exception;
+
+}
@@ -0,0 +1,76 @@
+package org.example.db;
+
+/**
+ * A change to the notes, as published on the <code>ChangeBus</code> once committed:
+ * a Note created or updated (with its data), or deleted (with only its ID and the time of deletion).
+ */
+public class ChangeEvent {
+
+    // types of the changes
+    public static final String TYPE_CREATED = "created";
+    public static final String TYPE_UPDATED = "updated";
+    public static final String TYPE_DELETED = "deleted";
+
+    private final String type;
+    private final int id;
+    private final long timestamp;
+    private final Note note;
+    // the event as JSON, serialized on first use
+    private byte[] json = null;
+
+    /**
+     * Create the event of the given Note created or updated.
+     * The Note is copied, so later changes to it don't affect the event.
+     */
+    public ChangeEvent(String type, Note note) {
+        this.type = type;
+        this.id = note.getID();
+        this.timestamp = note.getTimestamp();
+        this.note = new Note(note.getID(), note.getTitle(), note.getContent(), note.getTimestamp());
+    }
+
+    /**
+     * Create the event of the Note with given ID deleted at the given time.
+     */
+    public ChangeEvent(int id, long timestamp) {
+        this.type = ChangeEvent.TYPE_DELETED;
+        this.id = id;
+        this.timestamp = timestamp;
+        this.note = null;
+    }
+
+    public String getType() {
+        return this.type;
+    }
+
+    public int getID() {
+        return this.id;
+    }
+
+    /**
+     * Get the time of the change, unique and increasing like the timestamps of the notes.
+     */
+    public long getTimestamp() {
+        return this.timestamp;
+    }
+
+    /**
+     * Get the event as JSON on a single line (UTF-8): the Note, or only ID and timestamp if deleted.
+     * Serialized once, however many subscribers send it.
+     */
+    public synchronized byte[] getJson() {
+        if (this.json == null) {
+            if (this.note != null) {
+                this.json = NoteCodec.toJson(this.note);
+            } else {
+                this.json = new NoteCodec()
+                        .writeRaw("{\"" + Note.JSON_ID_KEY + "\":").writeLong(this.id)
+                        .writeRaw(",\"" + Note.JSON_TIMESTAMP_KEY + "\":").writeLong(this.timestamp)
+                        .writeRaw('}')
+                        .toByteArray();
+            }
+        }
+        return this.json;
+    }
+
+}
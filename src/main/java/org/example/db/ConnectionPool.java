@@ -0,0 +1,80 @@
+package org.example.db;
+
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Pool of connections to the DB: many read-only connections so reads run in parallel,
+ * and one writer connection, so writes are serialized (as SQLite allows a single writer anyway).
+ * Acquired connections must always be released, e.g. in a <code>finally</code> block.
+ */
+class ConnectionPool {
+
+    private final ArrayBlockingQueue<DatabaseConnection> readers;
+    private final ArrayList<DatabaseConnection> allReaders = new ArrayList<DatabaseConnection>();
+    private final DatabaseConnection writer;
+    private final ReentrantLock writerLock = new ReentrantLock();
+
+    /**
+     * Open the writer connection, then the given number of reader connections.
+     * The writer comes first, so the DB is created (in WAL mode) before any reader opens it.
+     * The <code>setup</code> SQL is run on the writer before opening the readers, e.g. to create the tables.
+     * The prepared statements of the connections are counted in the given statistics, which may be shared by pools.
+     */
+    ConnectionPool(String database, int readers, int busyTimeout, StatementStatistics statistics, String... setup) throws Exception {
+        this.writer = new DatabaseConnection(database, false, busyTimeout, statistics);
+        Statement statement = this.writer.getConnection().createStatement();
+        for (String sql : setup) {
+            statement.execute(sql);
+        }
+        statement.close();
+        this.readers = new ArrayBlockingQueue<DatabaseConnection>(Math.max(1, readers));
+        for (int i = 0; i < Math.max(1, readers); i++) {
+            DatabaseConnection reader = new DatabaseConnection(database, true, busyTimeout, statistics);
+            this.allReaders.add(reader);
+            this.readers.add(reader);
+        }
+    }
+
+    /**
+     * Acquire a read-only connection, waiting for one to be released if all are in use.
+     */
+    DatabaseConnection acquireReader() throws InterruptedException {
+        return this.readers.take();
+    }
+
+    /**
+     * Release a connection acquired through <code>acquireReader()</code>.
+     */
+    void releaseReader(DatabaseConnection reader) {
+        this.readers.offer(reader);
+    }
+
+    /**
+     * Acquire the writer connection, waiting for any other writer to finish first.
+     */
+    DatabaseConnection acquireWriter() {
+        this.writerLock.lock();
+        return this.writer;
+    }
+
+    /**
+     * Release the writer connection acquired through <code>acquireWriter()</code>.
+     */
+    void releaseWriter() {
+        this.writerLock.unlock();
+    }
+
+    /**
+     * Close all the connections of this pool.
+     */
+    void close() throws Exception {
+        for (DatabaseConnection reader : this.allReaders) {
+            reader.close();
+        }
+        this.writer.close();
+    }
+
+}
@@ -1,114 +1,251 @@
 package org.example.db;
 
-import java.sql.*;
+import org.example.Config;
+import org.example.metrics.Histogram;
+import org.example.metrics.Metric;
+import org.example.metrics.Metrics;
+import org.example.metrics.RequestTimes;
+
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Handles connection/access to the DB.
  * To open and gain access to the DB call <code>Database.getInstance()</code> first.
  * When done, disconnect/close the DB through <code>closeDB()</code>.
+ * The notes are stored by a pluggable backend (see <code>NoteStore</code> and <code>Config.DB_BACKEND</code>),
+ * SQLite by default; the DB adds the metrics of the operations, the cache of notes and the version of the notes,
+ * and publishes the committed changes on its <code>ChangeBus</code>.
+ * Thread-safe, as are the backends.
  */
 public class Database {
 
-    // name of our DB, in relative path
-    private static final String DATABASE = "jdbc:sqlite:NotesDB";
-
-    // structure of "Note" table to store notes (duh!)
-    private static final String NOTE_TABLE = "Note";
-    private static final String NOTE_ID_FIELD = "n_id";
-    private static final String NOTE_TITLE_FIELD = "n_title";
-    private static final String NOTE_CONTENT_FIELD = "n_content";
-    private static final String NOTE_TIMESTAMP_FIELD = "n_timestamp";
-    private static final String CREATE_NOTE_TABLE_SQL =
-            "CREATE TABLE IF NOT EXISTS " + NOTE_TABLE +
-            " (" +
-                Database.NOTE_ID_FIELD + " INTEGER NOT NULL PRIMARY KEY AUTOINCREMENT, " +
-                Database.NOTE_TITLE_FIELD + " TEXT NOT NULL, " +
-                Database.NOTE_CONTENT_FIELD + " TEXT, " +
-                Database.NOTE_TIMESTAMP_FIELD + " INTEGER NOT NULL" +
-            ");";
+    // supported backends, see Config.DB_BACKEND
+    private static final String BACKEND_SQLITE = "sqlite";
+    private static final String BACKEND_LOG = "log";
+
+    // DB operations, as measured, see measure()
+    private static final String OPERATION_ADD_NOTE = "addNote";
+    private static final String OPERATION_ADD_NOTES = "addNotes";
+    private static final String OPERATION_DELETE_NOTE = "deleteNote";
+    private static final String OPERATION_GET_NOTE = "getNote";
+    private static final String OPERATION_GET_SERIALIZED_NOTE = "getSerializedNote";
+    private static final String OPERATION_GET_NOTE_TIMESTAMP = "getNoteTimestamp";
+    private static final String OPERATION_GET_NOTES = "getNotes";
+    private static final String OPERATION_GET_ALL_NOTES = "getAllNotes";
+    private static final String OPERATION_STREAM_NOTES = "streamNotes";
+    private static final String OPERATION_SEARCH_NOTES = "searchNotes";
+    private static final String OPERATION_SYNC_NOTES = "syncNotes";
+    private static final String OPERATION_GET_SYNC_HORIZON = "getSyncHorizon";
+    private static final String OPERATION_UPDATE_NOTE = "updateNote";
+
+    // metrics of the DB operations, by operation
+    private static final Metric<Histogram> OPERATION_TIME = Metrics.summary(
+            "notes_db_operation_seconds", "Time of the DB operations, without handing the notes to the callbacks", "operation");
+    private static final Metric<LongAdder> OPERATION_ERRORS = Metrics.counter(
+            "notes_db_operation_errors_total", "DB operations failed", "operation");
 
     // DB operations handled through a singleton
-    private static Database instance = null;
+    private static volatile Database instance = null;
 
     /**
      * Provides an instance of the DB to access it and manipulate data.
      * Returns already open connection, if none found a new connection is created.
      */
     public static Database getInstance() throws Exception{
-        if (Database.instance == null) {
-            Database.instance = new Database();
+        Database database = Database.instance;
+        if (database == null) {
+            // not open yet, make sure only one thread opens it
+            synchronized (Database.class) {
+                if (Database.instance == null) {
+                    Database.instance = new Database();
+                }
+                database = Database.instance;
+            }
         }
-        return Database.instance;
+        return database;
     }
 
-    // actual connection to the DB
-    private Connection connection = null;
+    // the backend storing the notes
+    private NoteStore store = null;
+    // recently read notes, as JSON, null if disabled (or not needed by the backend)
+    private NoteCache cache = null;
+    // committed changes, for the subscribers
+    private final ChangeBus changeBus = new ChangeBus(Config.getInt(Config.STREAM_QUEUE, 1024));
+
+    // version of the notes as a whole, counting the writes since the DB was opened at the given time
+    private final long openTime = System.currentTimeMillis();
+    private final AtomicLong version = new AtomicLong();
+    // time of the last change to the notes as a whole, including deletions
+    private final AtomicLong lastModified = new AtomicLong();
+    // tombstones of deleted notes are kept this long (in milliseconds), then purged by the given thread
+    private long tombstoneRetention = 0;
+    private ScheduledExecutorService purger = null;
 
 
     /**
-     * Open a connection to the DB and create it (if not already existing).
+     * Open the configured backend, creating the DB (if not already existing).
      */
     private Database() throws Exception {
-        // create a new connection to the DB
-        this.connection = DriverManager.getConnection(Database.DATABASE);
-        // create the DB/table
-        Statement statement = this.connection.createStatement();
-        statement.execute(Database.CREATE_NOTE_TABLE_SQL);
-        statement.close();
-    }
-
-    /**
-     * Parse a single (first) ResultSet from query to Note.
-     */
-    private Note resultSetToNote(ResultSet resultSet) throws Exception {
-        Note note = null;
-        if (resultSet != null && resultSet.next()) {
-            // ResultSet found, parse
-            note = new Note(
-                    resultSet.getInt(Database.NOTE_ID_FIELD),
-                    resultSet.getString(Database.NOTE_TITLE_FIELD),
-                    resultSet.getString(Database.NOTE_CONTENT_FIELD),
-                    resultSet.getLong(Database.NOTE_TIMESTAMP_FIELD));
+        String backend = Config.getString(Config.DB_BACKEND, Database.BACKEND_SQLITE);
+        if (backend.equals(Database.BACKEND_SQLITE)) {
+            this.store = new SQLiteNoteStore();
+        } else if (backend.equals(Database.BACKEND_LOG)) {
+            this.store = new LogNoteStore();
+        } else {
+            throw new IllegalArgumentException("unknown " + Config.DB_BACKEND + ": " + backend);
+        }
+        // deletions may have happened before opening without timestamp, so the notes may have changed up to now
+        this.lastModified.set(Math.max(this.store.getLastModified(), this.openTime));
+        // cache the notes read, if configured and not kept serialized by the backend anyway
+        long cacheBytes = Config.getLong(Config.CACHE_BYTES, 32 * 1024 * 1024);
+        if (cacheBytes > 0 && !this.store.isSerialized()) {
+            this.cache = new NoteCache(cacheBytes);
         }
-        return note;
+        // purge the expired tombstones now and then, at least hourly
+        this.tombstoneRetention = Config.getLong(Config.SYNC_RETENTION, TimeUnit.DAYS.toMillis(7));
+        long purgeInterval = Math.max(1000, Math.min(this.tombstoneRetention / 4, TimeUnit.HOURS.toMillis(1)));
+        this.purger = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "tombstone-purger");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.purger.scheduleWithFixedDelay(this::purgeTombstones, 0, purgeInterval, TimeUnit.MILLISECONDS);
+        this.registerMetrics();
     }
 
     /**
-     * Parse a ResultSet from query to list of Notes.
+     * Register the metrics kept by the DB itself, sampled when the metrics are read.
      */
-    private ArrayList<Note> resultSetToNoteList(ResultSet resultSet) throws Exception {
-        ArrayList<Note> notes = new ArrayList<Note>();
-        // loop and parse notes one by one
-        Note note = null;
-        while ((note = this.resultSetToNote(resultSet)) != null) {
-            notes.add(note);
+    private void registerMetrics() {
+        StatementStatistics statistics = this.store.getStatementStatistics();
+        Metrics.sampledCounter("notes_db_statement_cache_hits_total", "Prepared statements reused")
+                .set(() -> statistics.getHits().values().stream().mapToLong(Long::longValue).sum());
+        Metrics.sampledCounter("notes_db_statement_cache_misses_total", "Prepared statements prepared")
+                .set(() -> statistics.getMisses().values().stream().mapToLong(Long::longValue).sum());
+        if (this.cache != null) {
+            NoteCache cache = this.cache;
+            Metrics.sampledCounter("notes_cache_hits_total", "Notes read from the cache").set(cache::getHits);
+            Metrics.sampledCounter("notes_cache_misses_total", "Notes not found in the cache").set(cache::getMisses);
+            Metrics.sampledCounter("notes_cache_evictions_total", "Notes evicted from the cache").set(cache::getEvictions);
+            Metrics.sampledGauge("notes_cache_entries", "Notes in the cache").set(cache::getSize);
+            Metrics.sampledGauge("notes_cache_bytes", "Bytes of the notes in the cache").set(cache::getBytes);
         }
-        return notes;
     }
 
     /**
-     * Add a new Note to the DB, with current timestamp.
+     * Run the given DB operation, recording its time and failure (if so) in the metrics.
+     * The time spent serializing the notes handed to callbacks (see <code>RequestTimes</code>) isn't counted.
      */
-    public void addNote(Note note) throws Exception {
-        if (note != null && note.isValid()) {
-            // Note valid, update its timestamp to now
-            note.setTimestampNow();
-            // insert given Note to the DB
-            String sql =
-                    "INSERT INTO " + Database.NOTE_TABLE +
-                            "(" + Database.NOTE_TITLE_FIELD + ", " + Database.NOTE_CONTENT_FIELD + ", " + Database.NOTE_TIMESTAMP_FIELD + ") " +
-                            "VALUES (?, ?, ?)";
-            PreparedStatement preparedStatement = this.connection.prepareStatement(sql);
-            preparedStatement.setString(1, note.getTitle());
-            preparedStatement.setString(2, note.getContent());
-            preparedStatement.setLong(3, note.getTimestamp());
-            preparedStatement.executeUpdate();
-            // done, close
-            preparedStatement.close();
+    private <T> T measure(String operation, Callable<T> callable) throws Exception {
+        RequestTimes times = RequestTimes.current();
+        long serialization = times.getSerializationTime();
+        long start = System.nanoTime();
+        times.enterDatabase();
+        try {
+            return callable.call();
+        } catch (Exception e) {
+            Database.OPERATION_ERRORS.labels(operation).increment();
+            throw e;
+        } finally {
+            long time = System.nanoTime() - start - (times.getSerializationTime() - serialization);
+            times.exitDatabase(time);
+            Database.OPERATION_TIME.labels(operation).record(time);
         }
     }
 
+    /**
+     * Delete the tombstones older than the retention period, moving the sync horizon past them.
+     */
+    private void purgeTombstones() {
+        this.store.purgeTombstones(System.currentTimeMillis() - this.tombstoneRetention);
+    }
+
+    /**
+     * Record a committed change to the notes, made at the given time.
+     */
+    private void changed(long timestamp) {
+        this.lastModified.accumulateAndGet(timestamp, Math::max);
+        this.version.incrementAndGet();
+    }
+
+    /**
+     * Publish the given committed change of a Note to the subscribers, if any.
+     */
+    private void publish(String type, Note note) {
+        if (this.changeBus.hasSubscribers()) {
+            this.changeBus.publish(new ChangeEvent(type, note));
+        }
+    }
+
+    /**
+     * Add a new Note to the DB, with current timestamp, assigning its ID.
+     */
+    public void addNote(Note note) throws Exception {
+        this.measure(Database.OPERATION_ADD_NOTE, () -> {
+            if (note != null && note.isValid()) {
+                // Note valid, insert it with timestamp now
+                this.store.addNote(note);
+                this.changed(note.getTimestamp());
+                this.publish(ChangeEvent.TYPE_CREATED, note);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Add the given Notes to the DB, with current timestamp, all or none of them (of each shard, see NoteStore).
+     * Invalid Notes are skipped, valid ones are added together and get their ID assigned.
+     * Returns whether each Note was added, by position. Fails only if none of the valid Notes was added.
+     */
+    public boolean[] addNotes(List<Note> notes) throws Exception {
+        return this.measure(Database.OPERATION_ADD_NOTES, () -> {
+            boolean[] added = new boolean[notes.size()];
+            // only the valid Notes are inserted, with timestamp now
+            ArrayList<Note> validNotes = new ArrayList<Note>(notes.size());
+            for (int i = 0; i < notes.size(); i++) {
+                Note note = notes.get(i);
+                if (note != null && note.isValid()) {
+                    validNotes.add(note);
+                    added[i] = true;
+                }
+            }
+            if (validNotes.size() != 0) {
+                Exception failure = null;
+                try {
+                    this.store.addNotes(validNotes);
+                } catch (Exception e) {
+                    failure = e;
+                }
+                // those with an ID are added, even if others failed (in another shard)
+                long timestamp = -1;
+                for (int i = 0; i < notes.size(); i++) {
+                    if (added[i] && notes.get(i).getID() < 0) {
+                        added[i] = false;
+                    } else if (added[i]) {
+                        timestamp = Math.max(timestamp, notes.get(i).getTimestamp());
+                    }
+                }
+                if (timestamp < 0) {
+                    throw failure;
+                }
+                this.changed(timestamp);
+                for (Note note : validNotes) {
+                    if (note.getID() >= 0) {
+                        this.publish(ChangeEvent.TYPE_CREATED, note);
+                    }
+                }
+            }
+            return added;
+        });
+    }
+
     /**
      * Delete given Note from DB.
      */
@@ -119,84 +256,216 @@ public class Database {
     }
 
     /**
-     * Delete Note with given ID from DB.
+     * Delete Note with given ID from DB, leaving a tombstone with the time of deletion.
      */
     public void deleteNote(int id) throws Exception {
-        // delete given Note form DB
-        String sql = "DELETE FROM " + Database.NOTE_TABLE + " WHERE " + Database.NOTE_ID_FIELD + " = ?";
-        PreparedStatement preparedStatement = this.connection.prepareStatement(sql);
-        preparedStatement.setInt(1, id);
-        preparedStatement.executeUpdate();
-        // done, close
-        preparedStatement.close();
+        this.measure(Database.OPERATION_DELETE_NOTE, () -> {
+            long timestamp = this.store.deleteNote(id);
+            if (timestamp != -1) {
+                // the cached copy is gone
+                if (this.cache != null) {
+                    this.cache.invalidate(id);
+                }
+                this.changed(timestamp);
+                if (this.changeBus.hasSubscribers()) {
+                    this.changeBus.publish(new ChangeEvent(id, timestamp));
+                }
+            }
+            return null;
+        });
     }
 
     /**
      * Retrieve Note with given ID from DB.
      */
     public Note getNote(int id) throws Exception {
-        Note note = null;
-        // retrieve Note with given ID from DB
-        String sql = "SELECT * FROM " + Database.NOTE_TABLE + " WHERE " + Database.NOTE_ID_FIELD + " = ?";
-        PreparedStatement preparedStatement = this.connection.prepareStatement(sql);
-        preparedStatement.setInt(1, id);
-        ResultSet resultSet = preparedStatement.executeQuery();
-        // parse found ResultSet to Note
-        note = this.resultSetToNote(resultSet);
-        // done, close
-        resultSet.close();
-        preparedStatement.close();
-        return note;
+        return this.measure(Database.OPERATION_GET_NOTE, () -> this.store.getNote(id));
+    }
+
+    /**
+     * Retrieve Note with given ID, already serialized as JSON, or null if not found.
+     * Served from the cache if possible, skipping the DB and the serialization
+     * (unless the backend keeps the notes serialized itself).
+     */
+    public SerializedNote getSerializedNote(int id) throws Exception {
+        return this.measure(Database.OPERATION_GET_SERIALIZED_NOTE, () -> {
+            if (this.cache == null) {
+                return this.store.getSerializedNote(id);
+            }
+            SerializedNote serializedNote = this.cache.get(id);
+            if (serializedNote == null) {
+                // not cached, read from the DB and cache it for next time
+                long stamp = this.cache.stamp(id);
+                serializedNote = this.store.getSerializedNote(id);
+                if (serializedNote != null) {
+                    this.cache.put(serializedNote, stamp);
+                }
+            }
+            return serializedNote;
+        });
+    }
+
+    /**
+     * Retrieve the timestamp of the Note with given ID, or -1 if not found, e.g. to tell whether a client's copy is
+     * still valid without reading the Note. From the cache if there, otherwise without reading the content.
+     */
+    public long getNoteTimestamp(int id) throws Exception {
+        return this.measure(Database.OPERATION_GET_NOTE_TIMESTAMP, () -> {
+            long timestamp = this.cache != null ? this.cache.getTimestamp(id) : -1;
+            return timestamp >= 0 ? timestamp : this.store.getNoteTimestamp(id);
+        });
+    }
+
+    /**
+     * Retrieve the Notes with the given IDs from DB, in batches rather than one by one.
+     * Notes are handed to the callback in the order of the given IDs (repeated ones as often as given),
+     * the ones not found are skipped.
+     */
+    public void getNotes(int[] ids, NoteCallback callback) throws Exception {
+        this.measure(Database.OPERATION_GET_NOTES, () -> {
+            this.store.getNotes(ids, callback);
+            return null;
+        });
     }
 
     /**
      * Retrieve all Notes from DB.
      */
     public ArrayList<Note> getAllNotes() throws Exception {
-        ArrayList<Note> notes = null;
-        // retrieve all Notes from DB
-        String sql = "SELECT * FROM " + Database.NOTE_TABLE;
-        Statement statement = this.connection.createStatement();
-        ResultSet resultSet = statement.executeQuery(sql);
-        // parse found ResultSet to list of Notes
-        notes = this.resultSetToNoteList(resultSet);
-        // done, close
-        resultSet.close();
-        statement.close();
-        return notes;
+        return this.measure(Database.OPERATION_GET_ALL_NOTES, () -> this.store.getAllNotes());
+    }
+
+    /**
+     * Retrieve Notes with an ID greater than <code>afterID</code>, ordered by ID, up to <code>limit</code> Notes.
+     * A negative limit retrieves all remaining Notes.
+     * Notes are not collected, each one is handed to the callback as soon as it's read.
+     */
+    public void streamNotes(int afterID, int limit, NoteCallback callback) throws Exception {
+        this.streamNotes(NoteQuery.ALL, NoteQuery.ALL.parseCursor(Integer.toString(afterID)), limit, callback);
+    }
+
+    /**
+     * Retrieve Notes in the order of the given query (see <code>NoteQuery</code>), starting after the given cursor
+     * (see <code>NoteQuery.parseCursor()</code>), up to <code>limit</code> Notes. A negative limit retrieves all
+     * remaining Notes.
+     * Only the fields of the query (and always ID and timestamp) are read, the others are left null.
+     * Notes are not collected, each one is handed to the callback as soon as it's read.
+     */
+    public void streamNotes(NoteQuery query, NoteCursor after, int limit, NoteCallback callback) throws Exception {
+        this.measure(Database.OPERATION_STREAM_NOTES, () -> {
+            this.store.streamNotes(query, after, limit, callback);
+            return null;
+        });
+    }
+
+    /**
+     * Search the Notes containing all the words of the given text, in title or content, best matches first.
+     * Skips the first <code>offset</code> matches and retrieves up to <code>limit</code> Notes
+     * (all remaining ones if negative), handing them one by one to the callback.
+     * A word ending with <code>*</code> matches any word starting with it.
+     */
+    public void searchNotes(String text, int offset, int limit, NoteCallback callback) throws Exception {
+        this.measure(Database.OPERATION_SEARCH_NOTES, () -> {
+            this.store.searchNotes(text, offset, limit, callback);
+            return null;
+        });
+    }
+
+    /**
+     * Retrieve the changes since the given time: Notes modified after it, ordered by timestamp,
+     * and then Notes deleted after it, handing them one by one to the callback.
+     * Both are read from the same snapshot of the DB, consistent with each other.
+     * Returns the time up to which the changes are complete, to sync from next time: the last change or,
+     * if later, the sync horizon.
+     * Returns -1, without calling the callback, if the time is before the sync horizon (see
+     * <code>getSyncHorizon()</code>): tombstones of the deletions since may have been purged already.
+     * Since 0 (i.e. from scratch) always succeeds, as deletions don't matter without previous sync.
+     */
+    public long syncNotes(long since, ChangeCallback callback) throws Exception {
+        return this.measure(Database.OPERATION_SYNC_NOTES, () -> this.store.syncNotes(since, callback));
+    }
+
+    /**
+     * Get the sync horizon: the time since which all deletions are recorded as tombstones.
+     * Changes can only be synced from this time on, older clients have to retrieve all notes again.
+     */
+    public long getSyncHorizon() throws Exception {
+        return this.measure(Database.OPERATION_GET_SYNC_HORIZON, () -> this.store.getSyncHorizon());
     }
 
     /**
      * Update given Note into the DB and update to current timestamp.
      */
     public void updateNote(Note note) throws Exception {
-        if (note != null && note.isValid()) {
-            // Note valid, update its timestamp to now
-            note.setTimestampNow();
-            // update given Note into the DB
-            String sql =
-                    "UPDATE " + Database.NOTE_TABLE + " SET " +
-                            Database.NOTE_TITLE_FIELD + " = ?, " + Database.NOTE_CONTENT_FIELD + " = ?, " + Database.NOTE_TIMESTAMP_FIELD + " = ? " +
-                            "WHERE " + Database.NOTE_ID_FIELD + " = ?";
-            PreparedStatement preparedStatement = this.connection.prepareStatement(sql);
-            preparedStatement.setString(1, note.getTitle());
-            preparedStatement.setString(2, note.getContent());
-            preparedStatement.setLong(3, note.getTimestamp());
-            preparedStatement.setInt(4, note.getID());
-            // done, close
-            preparedStatement.executeUpdate();
-            preparedStatement.close();
-        }
+        this.measure(Database.OPERATION_UPDATE_NOTE, () -> {
+            if (note != null && note.isValid() && this.store.updateNote(note)) {
+                // Note valid and updated with timestamp now, the cached copy is outdated
+                if (this.cache != null) {
+                    this.cache.invalidate(note.getID());
+                }
+                this.changed(note.getTimestamp());
+                this.publish(ChangeEvent.TYPE_UPDATED, note);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Get the hit/miss counters of the prepared statement caches of the connections.
+     */
+    public StatementStatistics getStatementStatistics() {
+        return this.store.getStatementStatistics();
+    }
+
+    /**
+     * Get a tag identifying the current version of the notes as a whole, changing with every write.
+     * Unique also across restarts of the DB, as it includes the time it was opened.
+     */
+    public String getVersionTag() {
+        return this.openTime + "-" + this.version.get();
+    }
+
+    /**
+     * Get the time of the last change to the notes as a whole (any write, including deletions).
+     */
+    public long getLastModified() {
+        return this.lastModified.get();
+    }
+
+    /**
+     * Get the bus publishing the committed changes to the notes: created, updated and deleted ones.
+     */
+    public ChangeBus getChangeBus() {
+        return this.changeBus;
+    }
+
+    /**
+     * Get the cache of notes, with its hit/miss/eviction counters, or null if disabled.
+     */
+    public NoteCache getCache() {
+        return this.cache;
     }
 
     /**
-     * Close the connection/access to the DB.
+     * Close the connections/access to the DB.
      */
     public void closeDB() throws Exception {
-        if (this.connection != null) {
-            this.connection.close();
+        synchronized (Database.class) {
+            if (this.purger != null) {
+                this.purger.shutdownNow();
+                this.purger = null;
+            }
+            // no more changes
+            this.changeBus.close();
+            if (this.store != null) {
+                // commits its pending writes first
+                this.store.close();
+                this.store = null;
+            }
+            if (Database.instance == this) {
+                Database.instance = null;
+            }
         }
-        Database.instance = null;
     }
 
 }
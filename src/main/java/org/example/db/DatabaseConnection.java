@@ -0,0 +1,72 @@
+package org.example.db;
+
+import org.sqlite.SQLiteConfig;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.util.HashMap;
+
+/**
+ * Single connection to the DB, as handed out by the <code>ConnectionPool</code>.
+ * Keeps its prepared statements, so each SQL statement is parsed/planned by SQLite only once per connection.
+ * A connection is used by one thread at a time, hence it's not thread-safe itself.
+ */
+class DatabaseConnection {
+
+    private final Connection connection;
+    private final HashMap<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+    private final StatementStatistics statistics;
+
+    /**
+     * Open a new connection to the given DB, in WAL journal mode so readers don't block the writer (and vice versa).
+     * A read-only connection can't modify the DB.
+     */
+    DatabaseConnection(String database, boolean readOnly, int busyTimeout, StatementStatistics statistics) throws Exception {
+        this.statistics = statistics;
+        SQLiteConfig config = new SQLiteConfig();
+        config.setJournalMode(SQLiteConfig.JournalMode.WAL);
+        config.setBusyTimeout(busyTimeout);
+        config.setReadOnly(readOnly);
+        this.connection = DriverManager.getConnection(database, config.toProperties());
+    }
+
+    /**
+     * Get the underlying JDBC connection.
+     */
+    Connection getConnection() {
+        return this.connection;
+    }
+
+    /**
+     * Get the prepared statement for the given SQL, prepared on first use and then reused.
+     * Parameters are cleared, ready to be bound again. Its ResultSet must be closed before the next use.
+     * The statement belongs to this connection, it must not be closed by the caller.
+     */
+    PreparedStatement getPreparedStatement(String sql) throws Exception {
+        PreparedStatement preparedStatement = this.statements.get(sql);
+        if (preparedStatement == null) {
+            // first use, prepare and keep it
+            preparedStatement = this.connection.prepareStatement(sql);
+            this.statements.put(sql, preparedStatement);
+            this.statistics.record(sql, false);
+        } else {
+            // reuse, clear the previous parameters
+            preparedStatement.clearParameters();
+            this.statistics.record(sql, true);
+        }
+        return preparedStatement;
+    }
+
+    /**
+     * Close the prepared statements and then this connection.
+     */
+    void close() throws Exception {
+        for (PreparedStatement preparedStatement : this.statements.values()) {
+            preparedStatement.close();
+        }
+        this.statements.clear();
+        this.connection.close();
+    }
+
+}
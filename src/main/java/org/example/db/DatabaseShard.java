@@ -0,0 +1,167 @@
+package org.example.db;
+
+import java.sql.Connection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One file of the DB, with its own connections and writer, so writes to different shards don't wait for each other.
+ * Notes are spread over the shards by ID: shard i of n holds the IDs i+1, i+1+n, i+1+2n, ...
+ * so each shard assigns the IDs of its new notes on its own, unique across all shards.
+ */
+class DatabaseShard {
+
+    private final int index;
+    private final int count;
+    private final ConnectionPool pool;
+    // groups the writes into transactions, only in "throughput" write mode
+    private GroupCommitWriter writer = null;
+    // clock of the timestamps, shared by all shards, and its value at the start of each write in progress (with
+    // the number of writes started at that value), see getOldestWrite()
+    private final AtomicLong clock;
+    private final ConcurrentSkipListMap<Long, Integer> writes = new ConcurrentSkipListMap<Long, Integer>();
+    // last ID assigned (or found) in this shard, only accessed holding the writer connection
+    private int lastID = 0;
+
+    /**
+     * Create the shard with given index out of the given number of shards, on the given pool of connections.
+     */
+    DatabaseShard(int index, int count, ConnectionPool pool, AtomicLong clock) {
+        this.index = index;
+        this.count = count;
+        this.pool = pool;
+        this.clock = clock;
+    }
+
+    /**
+     * Group the writes of this shard through the given writer, see <code>write()</code>.
+     */
+    void setWriter(GroupCommitWriter writer) {
+        this.writer = writer;
+    }
+
+    ConnectionPool getPool() {
+        return this.pool;
+    }
+
+    /**
+     * Set the highest ID used so far in this shard, new IDs continue after it.
+     */
+    void setLastID(int lastID) {
+        this.lastID = lastID;
+    }
+
+    /**
+     * Assign the ID of a new note, the next one of this shard.
+     * To be called while holding the writer connection.
+     */
+    int nextID() {
+        this.lastID = this.lastID + 1 + Math.floorMod(this.index - this.lastID, this.count);
+        return this.lastID;
+    }
+
+    /**
+     * Get the value of the clock when the oldest write in progress started, or the current value if there's none.
+     * All changes with a timestamp up to it are committed already, later ones may still be to come.
+     */
+    long getOldestWrite() {
+        // the clock first, writes starting after it assign later timestamps anyway
+        long oldest = this.clock.get();
+        Map.Entry<Long, Integer> start = this.writes.firstEntry();
+        return start != null ? Math.min(start.getKey(), oldest) : oldest;
+    }
+
+    /**
+     * Run the given write on the writer connection, returning once it's committed.
+     * In "latency" write mode it runs right away in its own transaction,
+     * in "throughput" mode it's queued and committed together with other writes.
+     */
+    <T> T write(WriteOperation<T> operation) throws Exception {
+        // only needed to tell which changes are complete across shards
+        long start = this.count > 1 ? this.startWrite() : 0;
+        T result = null;
+        try {
+            if (this.writer != null) {
+                // grouped, wait for the batch to be committed
+                try {
+                    result = this.writer.submit(operation).get();
+                } catch (ExecutionException e) {
+                    // rethrow what actually went wrong
+                    if (e.getCause() instanceof Exception) {
+                        throw (Exception) e.getCause();
+                    }
+                    throw e;
+                }
+            } else {
+                // on its own, auto-committed
+                DatabaseConnection connection = this.pool.acquireWriter();
+                try {
+                    result = operation.execute(connection);
+                } finally {
+                    this.pool.releaseWriter();
+                }
+            }
+        } finally {
+            if (this.count > 1) {
+                this.endWrite(start);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Run the given write like <code>write()</code>, but as a single transaction even in "latency" write mode.
+     * For writes made of many statements, which must all succeed or fail together.
+     */
+    <T> T writeInTransaction(WriteOperation<T> operation) throws Exception {
+        return this.write(connection -> {
+            Connection jdbcConnection = connection.getConnection();
+            if (!jdbcConnection.getAutoCommit()) {
+                // already part of a transaction (i.e. of a batch)
+                return operation.execute(connection);
+            }
+            // on its own, wrap in a transaction
+            jdbcConnection.setAutoCommit(false);
+            try {
+                T result = operation.execute(connection);
+                jdbcConnection.commit();
+                return result;
+            } catch (Exception e) {
+                jdbcConnection.rollback();
+                throw e;
+            } finally {
+                jdbcConnection.setAutoCommit(true);
+            }
+        });
+    }
+
+    /**
+     * Record the start of a write, returning the value of the clock it started at.
+     */
+    private long startWrite() {
+        long start = this.clock.get();
+        this.writes.merge(start, 1, Integer::sum);
+        return start;
+    }
+
+    /**
+     * Record the end of a write started at the given value of the clock.
+     */
+    private void endWrite(long start) {
+        this.writes.computeIfPresent(start, (key, writes) -> writes > 1 ? writes - 1 : null);
+    }
+
+    /**
+     * Close the connections of this shard, after committing the pending writes.
+     */
+    void close() throws Exception {
+        if (this.writer != null) {
+            this.writer.stop();
+            this.writer = null;
+        }
+        this.pool.close();
+    }
+
+}
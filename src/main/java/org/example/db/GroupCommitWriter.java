@@ -0,0 +1,167 @@
+package org.example.db;
+
+import java.sql.Connection;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.concurrent.*;
+
+/**
+ * Applies writes in batches, each batch in a single transaction, so many writes share one commit (and fsync).
+ * Writes are queued through <code>submit()</code> and picked up by a dedicated thread, which groups them up to
+ * a maximum batch size, waiting at most the batch delay for more writes to come in.
+ * The future of each write only completes once its whole batch is committed, i.e. durable.
+ */
+class GroupCommitWriter {
+
+    private final ConnectionPool pool;
+    private final int batchSize;
+    private final long batchDelayNanos;
+    private final LinkedBlockingQueue<PendingWrite<?>> queue;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    /**
+     * Create and start the writer, writing through the writer connection of the given pool.
+     * At most <code>queueSize</code> writes can be waiting, further ones block until there's room.
+     */
+    GroupCommitWriter(ConnectionPool pool, int batchSize, long batchDelayMillis, int queueSize) {
+        this.pool = pool;
+        this.batchSize = Math.max(1, batchSize);
+        this.batchDelayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, batchDelayMillis));
+        this.queue = new LinkedBlockingQueue<PendingWrite<?>>(Math.max(1, queueSize));
+        this.thread = new Thread(this::run, "group-commit-writer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Queue the given write, the returned future completes once it's committed (or failed).
+     */
+    <T> CompletableFuture<T> submit(WriteOperation<T> operation) throws InterruptedException {
+        if (!this.running) {
+            throw new IllegalStateException("writer stopped");
+        }
+        PendingWrite<T> pendingWrite = new PendingWrite<T>(operation);
+        this.queue.put(pendingWrite);
+        // stopped meanwhile, the writer may have drained the queue and exited already: unless it took the write
+        // (then it commits it), take it back and fail it, rather than leave its future pending forever
+        if (!this.running && this.queue.remove(pendingWrite)) {
+            pendingWrite.future.completeExceptionally(new IllegalStateException("writer stopped"));
+        }
+        return pendingWrite.future;
+    }
+
+    /**
+     * Stop the writer, after committing the writes still queued.
+     */
+    void stop() throws InterruptedException {
+        this.running = false;
+        this.thread.interrupt();
+        this.thread.join();
+    }
+
+    /**
+     * Main loop of the writer thread: collect a batch, commit it, repeat.
+     */
+    private void run() {
+        ArrayList<PendingWrite<?>> batch = new ArrayList<PendingWrite<?>>(this.batchSize);
+        while (this.running || !this.queue.isEmpty()) {
+            try {
+                // wait for the first write, then for more until the batch is full or its delay expired
+                PendingWrite<?> pendingWrite = this.running ? this.queue.take() : this.queue.poll();
+                if (pendingWrite == null) {
+                    continue;
+                }
+                batch.add(pendingWrite);
+                long deadline = System.nanoTime() + this.batchDelayNanos;
+                while (batch.size() < this.batchSize) {
+                    // take whatever is already queued, only wait if the batch is still open
+                    pendingWrite = this.queue.poll();
+                    if (pendingWrite == null && this.running) {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            break;
+                        }
+                        pendingWrite = this.queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    }
+                    if (pendingWrite == null) {
+                        break;
+                    }
+                    batch.add(pendingWrite);
+                }
+            } catch (InterruptedException e) {
+                // stopping, commit what's collected and drain the queue
+            }
+            if (!batch.isEmpty()) {
+                this.commit(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Run the given writes in a single transaction and complete their futures.
+     * Each write runs within its own savepoint, so a failing write is rolled back on its own without affecting
+     * the others. If the commit itself fails all writes of the batch fail.
+     */
+    private void commit(ArrayList<PendingWrite<?>> batch) {
+        DatabaseConnection connection = this.pool.acquireWriter();
+        Connection jdbcConnection = connection.getConnection();
+        try {
+            jdbcConnection.setAutoCommit(false);
+            for (PendingWrite<?> pendingWrite : batch) {
+                Savepoint savepoint = jdbcConnection.setSavepoint();
+                try {
+                    pendingWrite.execute(connection);
+                    jdbcConnection.releaseSavepoint(savepoint);
+                } catch (Exception e) {
+                    jdbcConnection.rollback(savepoint);
+                    pendingWrite.error = e;
+                }
+            }
+            jdbcConnection.commit();
+            // durable, let the waiting writers go
+            for (PendingWrite<?> pendingWrite : batch) {
+                pendingWrite.complete();
+            }
+        } catch (Exception e) {
+            // commit failed, nothing of the batch made it
+            try { jdbcConnection.rollback(); } catch (Exception ignored) { ; }
+            for (PendingWrite<?> pendingWrite : batch) {
+                pendingWrite.future.completeExceptionally(e);
+            }
+        } finally {
+            try { jdbcConnection.setAutoCommit(true); } catch (Exception ignored) { ; }
+            this.pool.releaseWriter();
+        }
+    }
+
+    /**
+     * Queued write, with its result/error until the batch is committed.
+     */
+    private static class PendingWrite<T> {
+
+        private final WriteOperation<T> operation;
+        private final CompletableFuture<T> future = new CompletableFuture<T>();
+        private T result = null;
+        private Exception error = null;
+
+        PendingWrite(WriteOperation<T> operation) {
+            this.operation = operation;
+        }
+
+        void execute(DatabaseConnection connection) throws Exception {
+            this.result = this.operation.execute(connection);
+        }
+
+        void complete() {
+            if (this.error != null) {
+                this.future.completeExceptionally(this.error);
+            } else {
+                this.future.complete(this.result);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,1054 @@
+package org.example.db;
+
+import org.example.Config;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Storage of the notes in an append-only log file, memory-mapped, with an index of the records by ID in memory.
+ * Every change appends a record: the note as JSON (exactly as served), a tombstone, or the sync horizon.
+ * Reads look up the offset of the record in the index and slice the JSON straight out of the mapping, without copy.
+ * Thread-safe: reads take no lock, writes are serialized and synced to disk together (group commit).
+ * Records superseded by later ones are dropped by compacting the log in the background, once they make up too much
+ * of it. On opening, the log is replayed to rebuild the index, up to the first incomplete/corrupt record.
+ */
+class LogNoteStore implements NoteStore {
+
+    // name of our DB, in relative path (unless configured otherwise), and the suffix of the log file
+    private static final String DATABASE = "NotesDB";
+    private static final String LOG_SUFFIX = ".log";
+    // suffix of the new log while compacting, replacing the log once complete
+    private static final String COMPACT_SUFFIX = ".compact";
+
+    // the log starts with "NLOG" and the version of its format
+    private static final int MAGIC = 0x4E4C4F47;
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 8;
+
+    // structure of a record: [int size][int CRC32 of the rest][byte type][int ID][long timestamp][JSON]
+    private static final int RECORD_CRC = 4;
+    private static final int RECORD_TYPE = 8;
+    private static final int RECORD_ID = 9;
+    private static final int RECORD_TIMESTAMP = 13;
+    private static final int RECORD_HEADER_SIZE = 21;
+    // types of records: a note (added/updated), a tombstone, the sync horizon (with the last ID used),
+    // and a batch of note records (added together, as the batch's checksum covers them all)
+    private static final byte RECORD_PUT = 1;
+    private static final byte RECORD_DELETE = 2;
+    private static final byte RECORD_HORIZON = 3;
+    private static final byte RECORD_BATCH = 4;
+    private static final byte[] NO_JSON = new byte[0];
+
+    // the mapping grows by doubling from the initial size, offsets are int so the log is limited to 2 GB
+    private static final int INITIAL_CAPACITY = 1024 * 1024;
+    private static final int INITIAL_INDEX_SIZE = 1024;
+    // logs smaller than this are not worth compacting
+    private static final int MIN_COMPACT_SIZE = 1024 * 1024;
+
+    private final Path path;
+    private final Path compactPath;
+    private FileChannel channel = null;
+    // the mapped log and the index, replaced (never changed) when the mapping grows or the log is compacted
+    private volatile Mapping mapping = null;
+    // serializes the writes, the following is only accessed holding it
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private int position = 0;
+    private int lastID = 0;
+    private long written = 0;
+    private long deadBytes = 0;
+    private int horizonOffset = 0;
+    private final HashMap<Integer, Long> tombstones = new HashMap<Integer, Long>();
+    private volatile long syncHorizon = 0;
+    // bytes written to the log synced to disk so far, see sync()
+    private final Object syncLock = new Object();
+    private long synced = 0;
+    // last timestamp assigned to a change, timestamps are unique and increasing in the order of the writes
+    private final AtomicLong clock = new AtomicLong();
+    // percentage of superseded bytes in the log to compact it, and the thread doing so
+    private final int compactThreshold;
+    private final ExecutorService compactor;
+    private boolean compacting = false;
+    // no statements here, always empty
+    private final StatementStatistics statistics = new StatementStatistics();
+
+    /**
+     * Open the log and rebuild the index from it, creating it (if not already existing).
+     */
+    LogNoteStore() throws Exception {
+        String path = Config.getString(Config.DB_PATH, LogNoteStore.DATABASE);
+        this.path = Paths.get(path + LogNoteStore.LOG_SUFFIX);
+        this.compactPath = Paths.get(path + LogNoteStore.COMPACT_SUFFIX);
+        this.compactThreshold = Config.getInt(Config.DB_COMPACT_THRESHOLD, 50);
+        if (this.compactThreshold < 1 || this.compactThreshold > 100) {
+            throw new IllegalArgumentException("invalid " + Config.DB_COMPACT_THRESHOLD + ": " + this.compactThreshold);
+        }
+        // a compaction interrupted by a crash is simply started over
+        Files.deleteIfExists(this.compactPath);
+        this.channel = FileChannel.open(this.path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (this.channel.size() == 0) {
+                this.create();
+            } else {
+                this.recover();
+            }
+        } catch (Exception e) {
+            this.channel.close();
+            throw e;
+        }
+        this.compactor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "log-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.writeLock.lock();
+        try {
+            this.compactIfNeeded();
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    /**
+     * Start a new, empty log, syncing from now on.
+     */
+    private void create() throws IOException {
+        MappedByteBuffer buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, LogNoteStore.INITIAL_CAPACITY);
+        buffer.putInt(0, LogNoteStore.MAGIC);
+        buffer.putInt(4, LogNoteStore.VERSION);
+        this.syncHorizon = System.currentTimeMillis();
+        this.horizonOffset = LogNoteStore.FILE_HEADER_SIZE;
+        this.position = LogNoteStore.FILE_HEADER_SIZE + LogNoteStore.writeRecord(
+                buffer, LogNoteStore.FILE_HEADER_SIZE, LogNoteStore.RECORD_HORIZON, 0, this.syncHorizon, LogNoteStore.NO_JSON);
+        buffer.force();
+        this.mapping = new Mapping(buffer, new AtomicIntegerArray(LogNoteStore.INITIAL_INDEX_SIZE));
+    }
+
+    /**
+     * Replay the existing log to rebuild the index, the tombstones, the sync horizon and the clock.
+     * Stops at the first incomplete or corrupt record (i.e. a write cut off by a crash), which is cut off the log.
+     */
+    private void recover() throws IOException {
+        long size = this.channel.size();
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalStateException("log " + this.path + " is larger than 2 GB");
+        }
+        MappedByteBuffer buffer = this.channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        if (size < LogNoteStore.FILE_HEADER_SIZE || buffer.getInt(0) != LogNoteStore.MAGIC) {
+            throw new IllegalStateException("file " + this.path + " is not a log of notes");
+        }
+        if (buffer.getInt(4) != LogNoteStore.VERSION) {
+            throw new IllegalStateException("log " + this.path + " has unknown version " + buffer.getInt(4));
+        }
+        this.mapping = new Mapping(buffer, new AtomicIntegerArray(LogNoteStore.INITIAL_INDEX_SIZE));
+        int offset = LogNoteStore.FILE_HEADER_SIZE;
+        int recordSize = 0;
+        while ((recordSize = LogNoteStore.checkRecord(buffer, offset, (int) size)) != 0) {
+            if (buffer.get(offset + LogNoteStore.RECORD_TYPE) == LogNoteStore.RECORD_BATCH) {
+                // just the frame of the records within
+                this.deadBytes += LogNoteStore.RECORD_HEADER_SIZE;
+            }
+            LogNoteStore.forEachRecord(buffer, offset, this::replay);
+            offset += recordSize;
+        }
+        this.position = offset;
+        // the tombstones purged are only dropped from the log by compaction
+        int purged = this.tombstones.size();
+        this.tombstones.values().removeIf(timestamp -> timestamp < this.syncHorizon);
+        this.deadBytes += (long) (purged - this.tombstones.size()) * LogNoteStore.RECORD_HEADER_SIZE;
+        // drop what's left of a cut off write, and map the log for writing (with room for more)
+        if (size > this.position) {
+            this.channel.truncate(this.position);
+        }
+        long capacity = Math.min(Integer.MAX_VALUE, Math.max(LogNoteStore.INITIAL_CAPACITY, 2L * this.position));
+        this.mapping = new Mapping(this.channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity), this.mapping.offsets);
+    }
+
+    /**
+     * Apply the (note, tombstone or horizon) record at the given offset of the log being recovered.
+     */
+    private void replay(int offset) {
+        ByteBuffer buffer = this.mapping.buffer;
+        int id = buffer.getInt(offset + LogNoteStore.RECORD_ID);
+        long timestamp = buffer.getLong(offset + LogNoteStore.RECORD_TIMESTAMP);
+        byte type = buffer.get(offset + LogNoteStore.RECORD_TYPE);
+        if (type == LogNoteStore.RECORD_HORIZON) {
+            if (this.horizonOffset != 0) {
+                this.deadBytes += LogNoteStore.RECORD_HEADER_SIZE;
+            }
+            this.horizonOffset = offset;
+            this.syncHorizon = timestamp;
+        } else {
+            this.ensureIndex(id);
+            this.deadBytes += this.index(id, type == LogNoteStore.RECORD_PUT ? offset : 0);
+            if (type == LogNoteStore.RECORD_DELETE) {
+                this.tombstones.put(id, timestamp);
+            }
+            this.clock.accumulateAndGet(timestamp, Math::max);
+        }
+        this.lastID = Math.max(this.lastID, id);
+    }
+
+    /**
+     * Point the index at the given offset for the note with given ID (0 if deleted).
+     * Returns the size of the record superseded, if any.
+     * To be called holding the write lock (or while recovering).
+     */
+    private int index(int id, int offset) {
+        Mapping mapping = this.mapping;
+        int previous = mapping.offsets.getAndSet(id, offset);
+        return previous != 0 ? mapping.buffer.getInt(previous) : 0;
+    }
+
+    /**
+     * Make room in the index for the given ID.
+     * To be called holding the write lock (or while recovering).
+     */
+    private void ensureIndex(int id) {
+        Mapping mapping = this.mapping;
+        if (id >= mapping.offsets.length()) {
+            this.mapping = new Mapping(mapping.buffer, LogNoteStore.copyOf(mapping.offsets, Math.max(id + 1, 2 * mapping.offsets.length())));
+        }
+    }
+
+    /**
+     * Make room in the mapping for the log to grow to the given size, mapping more of the file if needed.
+     * To be called holding the write lock.
+     */
+    private void ensureCapacity(long size) throws IOException {
+        Mapping mapping = this.mapping;
+        if (size <= mapping.buffer.capacity()) {
+            return;
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("log " + this.path + " is full, it can't grow beyond 2 GB");
+        }
+        long capacity = Math.min(Integer.MAX_VALUE, Math.max(size, 2L * mapping.buffer.capacity()));
+        // the index is copied along, so readers of the old mapping never see offsets beyond it
+        this.mapping = new Mapping(this.channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity),
+                LogNoteStore.copyOf(mapping.offsets, mapping.offsets.length()));
+    }
+
+    /**
+     * Append a record to the log, returning its offset.
+     * To be called holding the write lock.
+     */
+    private int append(byte type, int id, long timestamp, byte[] json) throws IOException {
+        int size = LogNoteStore.RECORD_HEADER_SIZE + json.length;
+        this.ensureCapacity((long) this.position + size);
+        int offset = this.position;
+        LogNoteStore.writeRecord(this.mapping.buffer, offset, type, id, timestamp, json);
+        this.position += size;
+        this.written += size;
+        return offset;
+    }
+
+    /**
+     * Wait until the log is synced to disk up to the given number of bytes written.
+     * The first writer to get here syncs all the bytes written so far, sparing the following ones their own sync.
+     */
+    private void sync(long written) throws IOException {
+        synchronized (this.syncLock) {
+            if (this.synced >= written) {
+                // synced along with a previous write
+                return;
+            }
+            Mapping mapping = null;
+            int end = 0;
+            long target = 0;
+            this.writeLock.lock();
+            try {
+                mapping = this.mapping;
+                end = this.position;
+                target = this.written;
+            } finally {
+                this.writeLock.unlock();
+            }
+            int start = end - (int) (target - this.synced);
+            mapping.buffer.force(start, end - start);
+            this.synced = target;
+        }
+    }
+
+    /**
+     * Assign the timestamp for a change, now or just after the previous change if that's later.
+     * To be called holding the write lock, so timestamps increase in the order of the writes.
+     */
+    private long nextTimestamp() {
+        long now = System.currentTimeMillis();
+        return this.clock.accumulateAndGet(now, (last, time) -> Math.max(last + 1, time));
+    }
+
+    /**
+     * Serialize the given Note as stored (and served).
+     */
+    private static byte[] toJson(Note note) {
+        return NoteCodec.toJson(note);
+    }
+
+    /**
+     * Append the given Note as new one, with timestamp now, assigning its ID.
+     */
+    @Override
+    public void addNote(Note note) throws Exception {
+        long written = 0;
+        this.writeLock.lock();
+        try {
+            int id = this.lastID + 1;
+            this.ensureIndex(id);
+            note.setID(id);
+            note.setTimestamp(this.nextTimestamp());
+            int offset = this.append(LogNoteStore.RECORD_PUT, id, note.getTimestamp(), LogNoteStore.toJson(note));
+            this.lastID = id;
+            this.index(id, offset);
+            written = this.written;
+            this.compactIfNeeded();
+        } finally {
+            this.writeLock.unlock();
+        }
+        this.sync(written);
+    }
+
+    /**
+     * Append the given Notes as new ones, with timestamp now, assigning their IDs.
+     * Written as one batch record, so after a crash either all or none of them are found in the log.
+     */
+    @Override
+    public void addNotes(List<Note> notes) throws Exception {
+        long written = 0;
+        boolean added = false;
+        this.writeLock.lock();
+        try {
+            // serialize first, to know the size of the batch
+            int id = this.lastID;
+            ArrayList<byte[]> jsons = new ArrayList<byte[]>(notes.size());
+            long size = LogNoteStore.RECORD_HEADER_SIZE;
+            for (Note note : notes) {
+                note.setID(++id);
+                note.setTimestamp(this.nextTimestamp());
+                byte[] json = LogNoteStore.toJson(note);
+                jsons.add(json);
+                size += LogNoteStore.RECORD_HEADER_SIZE + json.length;
+            }
+            this.ensureCapacity(this.position + size);
+            this.ensureIndex(id);
+            ByteBuffer buffer = this.mapping.buffer;
+            int offset = this.position;
+            int[] offsets = new int[notes.size()];
+            int recordOffset = offset + LogNoteStore.RECORD_HEADER_SIZE;
+            for (int i = 0; i < notes.size(); i++) {
+                Note note = notes.get(i);
+                offsets[i] = recordOffset;
+                recordOffset += LogNoteStore.writeRecord(buffer, recordOffset, LogNoteStore.RECORD_PUT, note.getID(), note.getTimestamp(), jsons.get(i));
+            }
+            LogNoteStore.writeHeader(buffer, offset, (int) size, LogNoteStore.RECORD_BATCH, notes.size(), notes.get(notes.size() - 1).getTimestamp());
+            this.position += (int) size;
+            this.written += size;
+            this.deadBytes += LogNoteStore.RECORD_HEADER_SIZE;
+            // only now visible to the readers
+            for (int i = 0; i < notes.size(); i++) {
+                this.index(notes.get(i).getID(), offsets[i]);
+            }
+            this.lastID = id;
+            written = this.written;
+            added = true;
+            this.compactIfNeeded();
+        } finally {
+            if (!added) {
+                // none of them, see NoteStore
+                for (Note note : notes) {
+                    note.setID(-1);
+                }
+            }
+            this.writeLock.unlock();
+        }
+        this.sync(written);
+    }
+
+    /**
+     * Append the given Note (if it exists), with timestamp now. Returns whether it exists.
+     */
+    @Override
+    public boolean updateNote(Note note) throws Exception {
+        long written = 0;
+        this.writeLock.lock();
+        try {
+            int id = note.getID();
+            if (id <= 0 || id >= this.mapping.offsets.length() || this.mapping.offsets.get(id) == 0) {
+                // no such note, nothing to update
+                return false;
+            }
+            note.setTimestamp(this.nextTimestamp());
+            int offset = this.append(LogNoteStore.RECORD_PUT, id, note.getTimestamp(), LogNoteStore.toJson(note));
+            this.deadBytes += this.index(id, offset);
+            written = this.written;
+            this.compactIfNeeded();
+        } finally {
+            this.writeLock.unlock();
+        }
+        this.sync(written);
+        return true;
+    }
+
+    /**
+     * Append the tombstone of the Note with given ID (if it exists), with timestamp now.
+     */
+    @Override
+    public long deleteNote(int id) throws Exception {
+        long deleted = -1;
+        long written = 0;
+        this.writeLock.lock();
+        try {
+            if (id <= 0 || id >= this.mapping.offsets.length() || this.mapping.offsets.get(id) == 0) {
+                // nothing to delete
+                return -1;
+            }
+            deleted = this.nextTimestamp();
+            this.append(LogNoteStore.RECORD_DELETE, id, deleted, LogNoteStore.NO_JSON);
+            this.deadBytes += this.index(id, 0);
+            this.tombstones.put(id, deleted);
+            written = this.written;
+            this.compactIfNeeded();
+        } finally {
+            this.writeLock.unlock();
+        }
+        this.sync(written);
+        return deleted;
+    }
+
+    /**
+     * Look up the offset of the record of the Note with given ID in the given mapping, 0 if there's none.
+     */
+    private static int offsetOf(Mapping mapping, int id) {
+        return id > 0 && id < mapping.offsets.length() ? mapping.offsets.get(id) : 0;
+    }
+
+    @Override
+    public Note getNote(int id) throws Exception {
+        Mapping mapping = this.mapping;
+        int offset = LogNoteStore.offsetOf(mapping, id);
+        return offset != 0 ? LogNoteStore.readNote(mapping.buffer, offset) : null;
+    }
+
+    @Override
+    public void getNotes(int[] ids, NoteCallback callback) throws Exception {
+        Mapping mapping = this.mapping;
+        for (int id : ids) {
+            int offset = LogNoteStore.offsetOf(mapping, id);
+            if (offset != 0) {
+                callback.onNote(LogNoteStore.readNote(mapping.buffer, offset));
+            }
+        }
+    }
+
+    /**
+     * Get the timestamp of the Note with given ID from the header of its record.
+     */
+    @Override
+    public long getNoteTimestamp(int id) throws Exception {
+        Mapping mapping = this.mapping;
+        int offset = LogNoteStore.offsetOf(mapping, id);
+        return offset != 0 ? mapping.buffer.getLong(offset + LogNoteStore.RECORD_TIMESTAMP) : -1;
+    }
+
+    /**
+     * Slice the JSON of the Note with given ID out of the mapped log, as stored.
+     */
+    @Override
+    public SerializedNote getSerializedNote(int id) throws Exception {
+        Mapping mapping = this.mapping;
+        int offset = LogNoteStore.offsetOf(mapping, id);
+        if (offset == 0) {
+            return null;
+        }
+        ByteBuffer buffer = mapping.buffer;
+        int size = buffer.getInt(offset);
+        return new SerializedNote(
+                id,
+                buffer.getLong(offset + LogNoteStore.RECORD_TIMESTAMP),
+                buffer.slice(offset + LogNoteStore.RECORD_HEADER_SIZE, size - LogNoteStore.RECORD_HEADER_SIZE));
+    }
+
+    /**
+     * Stored serialized, see <code>getSerializedNote()</code>.
+     */
+    @Override
+    public boolean isSerialized() {
+        return true;
+    }
+
+    /**
+     * Parse the Note of the record at the given offset, only ID and timestamp unless the query has title or content.
+     */
+    private static Note readNote(ByteBuffer buffer, int offset, NoteQuery query) throws IOException {
+        if (!query.hasTitle() && !query.hasContent()) {
+            return new Note(buffer.getInt(offset + LogNoteStore.RECORD_ID), null, null, buffer.getLong(offset + LogNoteStore.RECORD_TIMESTAMP));
+        }
+        return LogNoteStore.readNote(buffer, offset);
+    }
+
+    /**
+     * Parse the Note of the record at the given offset.
+     */
+    private static Note readNote(ByteBuffer buffer, int offset) throws IOException {
+        int size = buffer.getInt(offset);
+        // only title and content are read from the JSON, ID and timestamp are in the header
+        Note note = NoteCodec.fromJson(buffer.slice(offset + LogNoteStore.RECORD_HEADER_SIZE, size - LogNoteStore.RECORD_HEADER_SIZE));
+        return new Note(
+                buffer.getInt(offset + LogNoteStore.RECORD_ID),
+                note.getTitle(),
+                note.getContent(),
+                buffer.getLong(offset + LogNoteStore.RECORD_TIMESTAMP));
+    }
+
+    /**
+     * Retrieve all Notes, ordered by ID.
+     */
+    @Override
+    public ArrayList<Note> getAllNotes() throws Exception {
+        ArrayList<Note> notes = new ArrayList<Note>();
+        this.streamNotes(NoteQuery.ALL, NoteQuery.ALL.getStart(), -1, notes::add);
+        return notes;
+    }
+
+    /**
+     * Retrieve Notes in the order of the given query, after the given cursor, up to <code>limit</code> Notes.
+     * A negative limit retrieves all remaining Notes.
+     * Walks the index of the mapping at the time of the call, so writes meanwhile may or may not be seen.
+     * The JSON of the records is only parsed if title or content is requested. There's no index by timestamp here:
+     * ordered by timestamp, the headers of all records are scanned and sorted first.
+     */
+    @Override
+    public void streamNotes(NoteQuery query, NoteCursor after, int limit, NoteCallback callback) throws Exception {
+        Mapping mapping = this.mapping;
+        int count = 0;
+        if (!query.isByTimestamp()) {
+            int step = query.isDescending() ? -1 : 1;
+            // within the index first, so the key (up to Long.MAX_VALUE) can't overflow
+            long start = Math.min(Math.max(after.getKey(), 0), mapping.offsets.length());
+            long first = query.isDescending() ? Math.min(mapping.offsets.length() - 1, start - 1) : Math.max(1, start + 1);
+            for (int id = (int) Math.min(first, mapping.offsets.length()); id > 0 && id < mapping.offsets.length() && (limit < 0 || count < limit); id += step) {
+                int offset = mapping.offsets.get(id);
+                if (offset != 0) {
+                    callback.onNote(LogNoteStore.readNote(mapping.buffer, offset, query));
+                    count++;
+                }
+            }
+            return;
+        }
+        // the records after the cursor, sorted by the timestamps in their headers (then by ID, as the index is)
+        ArrayList<Integer> offsets = new ArrayList<Integer>();
+        for (int id = 1; id < mapping.offsets.length(); id++) {
+            int offset = mapping.offsets.get(id);
+            if (offset != 0 && query.isAfter(mapping.buffer.getLong(offset + LogNoteStore.RECORD_TIMESTAMP), id, after)) {
+                offsets.add(offset);
+            }
+        }
+        Comparator<Integer> order = Comparator.<Integer>comparingLong(offset -> mapping.buffer.getLong(offset + LogNoteStore.RECORD_TIMESTAMP))
+                .thenComparingInt(offset -> mapping.buffer.getInt(offset + LogNoteStore.RECORD_ID));
+        offsets.sort(query.isDescending() ? order.reversed() : order);
+        for (int i = 0; i < offsets.size() && (limit < 0 || count < limit); i++) {
+            callback.onNote(LogNoteStore.readNote(mapping.buffer, offsets.get(i), query));
+            count++;
+        }
+    }
+
+    /**
+     * Search the Notes containing all the words of the given text, in title or content, ignoring case.
+     * A word ending with <code>*</code> matches any word starting with it.
+     * There's no full-text index here: all notes are scanned, and matches are ordered by ID (there's no rank).
+     */
+    @Override
+    public void searchNotes(String text, int offset, int limit, NoteCallback callback) throws Exception {
+        ArrayList<String> words = new ArrayList<String>();
+        ArrayList<String> prefixes = new ArrayList<String>();
+        for (String word : text.trim().split("\\s+")) {
+            boolean isPrefix = word.endsWith("*");
+            List<String> tokens = LogNoteStore.tokenize(isPrefix ? word.substring(0, word.length() - 1) : word);
+            // the last token of a prefix word is the prefix, like the full-text index of SQLite does
+            for (int i = 0; i < tokens.size(); i++) {
+                (isPrefix && i == tokens.size() - 1 ? prefixes : words).add(tokens.get(i));
+            }
+        }
+        if (words.isEmpty() && prefixes.isEmpty()) {
+            // nothing to search for
+            return;
+        }
+        int[] skipped = {0};
+        int[] count = {0};
+        this.streamNotes(NoteQuery.ALL, NoteQuery.ALL.getStart(), -1, note -> {
+            if ((limit >= 0 && count[0] >= limit) || !LogNoteStore.matches(note, words, prefixes)) {
+                return;
+            }
+            if (skipped[0] < offset) {
+                skipped[0]++;
+            } else {
+                callback.onNote(note);
+                count[0]++;
+            }
+        });
+    }
+
+    /**
+     * Split the given text into lower case words, at anything not a letter or digit.
+     */
+    private static List<String> tokenize(String text) {
+        ArrayList<String> tokens = new ArrayList<String>();
+        for (String token : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if (token.length() != 0) {
+                tokens.add(token);
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Check whether the given Note contains all the given words, and a word starting with each of the prefixes.
+     */
+    private static boolean matches(Note note, List<String> words, List<String> prefixes) {
+        HashSet<String> tokens = new HashSet<String>(LogNoteStore.tokenize(note.getTitle()));
+        if (note.getContent() != null) {
+            tokens.addAll(LogNoteStore.tokenize(note.getContent()));
+        }
+        if (!tokens.containsAll(words)) {
+            return false;
+        }
+        for (String prefix : prefixes) {
+            if (tokens.stream().noneMatch(token -> token.startsWith(prefix))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Retrieve the changes since the given time: Notes modified after it, ordered by timestamp,
+     * and then Notes deleted after it, handing them one by one to the callback.
+     * The tombstones and the clock are taken together holding the write lock, the notes are then looked up without:
+     * changes after that time are left to the next sync, so none is missed.
+     * Returns -1, without calling the callback, if the time is before the sync horizon.
+     */
+    @Override
+    public long syncNotes(long since, ChangeCallback callback) throws Exception {
+        Mapping mapping = null;
+        long horizon = 0;
+        long complete = 0;
+        ArrayList<Map.Entry<Integer, Long>> deleted = new ArrayList<Map.Entry<Integer, Long>>();
+        this.writeLock.lock();
+        try {
+            horizon = this.syncHorizon;
+            if (since > 0 && since < horizon) {
+                return -1;
+            }
+            mapping = this.mapping;
+            complete = this.clock.get();
+            for (Map.Entry<Integer, Long> tombstone : this.tombstones.entrySet()) {
+                if (tombstone.getValue() > since) {
+                    deleted.add(Map.entry(tombstone.getKey(), tombstone.getValue()));
+                }
+            }
+        } finally {
+            this.writeLock.unlock();
+        }
+        long last = Math.max(since, horizon);
+        for (long[] change : LogNoteStore.collectChanges(mapping, since, complete)) {
+            Note note = LogNoteStore.readNote(mapping.buffer, (int) change[1]);
+            callback.onNote(note);
+            last = Math.max(last, note.getTimestamp());
+        }
+        deleted.sort(Map.Entry.comparingByValue());
+        for (Map.Entry<Integer, Long> tombstone : deleted) {
+            callback.onDeleted(tombstone.getKey(), tombstone.getValue());
+            last = Math.max(last, tombstone.getValue());
+        }
+        return last;
+    }
+
+    @Override
+    public long getSyncHorizon() {
+        return this.syncHorizon;
+    }
+
+    /**
+     * Drop the tombstones older than the given time, recording the new sync horizon in the log.
+     * The tombstone records themselves are dropped by the next compaction.
+     */
+    @Override
+    public void purgeTombstones(long cutoff) {
+        try {
+            long written = 0;
+            this.writeLock.lock();
+            try {
+                if (cutoff <= this.syncHorizon) {
+                    return;
+                }
+                int purged = this.tombstones.size();
+                this.tombstones.values().removeIf(timestamp -> timestamp < cutoff);
+                this.deadBytes += (long) (purged - this.tombstones.size()) * LogNoteStore.RECORD_HEADER_SIZE;
+                int offset = this.append(LogNoteStore.RECORD_HORIZON, this.lastID, cutoff, LogNoteStore.NO_JSON);
+                this.deadBytes += LogNoteStore.RECORD_HEADER_SIZE;
+                this.horizonOffset = offset;
+                this.syncHorizon = cutoff;
+                written = this.written;
+                this.compactIfNeeded();
+            } finally {
+                this.writeLock.unlock();
+            }
+            this.sync(written);
+        } catch (Exception e) {
+            // try again next time
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Start compacting the log in the background, if enough of it is superseded and it isn't compacting already.
+     * To be called holding the write lock.
+     */
+    private void compactIfNeeded() {
+        if (!this.compacting && this.position >= LogNoteStore.MIN_COMPACT_SIZE
+                && this.deadBytes * 100 >= (long) this.position * this.compactThreshold) {
+            this.compacting = true;
+            this.compactor.execute(this::compact);
+        }
+    }
+
+    /**
+     * Rewrite the log with only its live records: the notes, the tombstones and the sync horizon.
+     * The bulk is copied without holding the write lock; the writes meanwhile are then copied holding it,
+     * before the new log replaces the old one (by an atomic rename) and its mapping is swapped in.
+     * Readers still on the old mapping keep reading it, it stays valid until they're done with it.
+     */
+    private void compact() {
+        FileChannel channel = null;
+        boolean swapped = false;
+        try {
+            // take the live records as of now
+            Mapping mapping = null;
+            int end = 0;
+            int lastID = 0;
+            long horizon = 0;
+            int[] live = null;
+            ArrayList<Map.Entry<Integer, Long>> tombstones = null;
+            this.writeLock.lock();
+            try {
+                mapping = this.mapping;
+                end = this.position;
+                lastID = this.lastID;
+                horizon = this.syncHorizon;
+                live = LogNoteStore.liveOffsets(mapping);
+                tombstones = new ArrayList<Map.Entry<Integer, Long>>(this.tombstones.entrySet());
+            } finally {
+                this.writeLock.unlock();
+            }
+            // copy them to the new log, in the order of the old one
+            long size = LogNoteStore.FILE_HEADER_SIZE + (long) (tombstones.size() + 1) * LogNoteStore.RECORD_HEADER_SIZE;
+            for (int offset : live) {
+                size += mapping.buffer.getInt(offset);
+            }
+            channel = FileChannel.open(this.compactPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            Compaction compaction = new Compaction(channel, size, mapping.offsets.length());
+            compaction.horizonOffset = compaction.position;
+            compaction.position += LogNoteStore.writeRecord(
+                    compaction.buffer, compaction.position, LogNoteStore.RECORD_HORIZON, lastID, horizon, LogNoteStore.NO_JSON);
+            for (int offset : live) {
+                compaction.copy(mapping.buffer, offset);
+            }
+            for (Map.Entry<Integer, Long> tombstone : tombstones) {
+                compaction.position += LogNoteStore.writeRecord(compaction.buffer, compaction.position,
+                        LogNoteStore.RECORD_DELETE, tombstone.getKey(), tombstone.getValue(), LogNoteStore.NO_JSON);
+            }
+            // catch up with the writes meanwhile and swap, no writes nor syncs in between
+            synchronized (this.syncLock) {
+                this.writeLock.lock();
+                try {
+                    compaction.ensureIndex(this.mapping.offsets.length());
+                    ByteBuffer buffer = this.mapping.buffer;
+                    for (int offset = end; offset < this.position; offset += buffer.getInt(offset)) {
+                        LogNoteStore.forEachRecord(buffer, offset, recordOffset -> compaction.copy(buffer, recordOffset));
+                    }
+                    compaction.buffer.force();
+                    Files.move(this.compactPath, this.path, StandardCopyOption.ATOMIC_MOVE);
+                    swapped = true;
+                    this.channel.close();
+                    this.channel = channel;
+                    this.mapping = new Mapping(compaction.buffer, compaction.offsets);
+                    this.position = compaction.position;
+                    this.deadBytes = compaction.deadBytes;
+                    this.horizonOffset = compaction.horizonOffset;
+                    // all in the new log is synced already
+                    this.synced = this.written;
+                } finally {
+                    this.compacting = false;
+                    this.writeLock.unlock();
+                }
+            }
+            LogNoteStore.syncDirectory(this.path);
+        } catch (Exception e) {
+            // try again with the next write
+            e.printStackTrace();
+            this.writeLock.lock();
+            this.compacting = false;
+            this.writeLock.unlock();
+        } finally {
+            if (!swapped) {
+                if (channel != null) {
+                    try { channel.close(); } catch (IOException ignored) { ; }
+                }
+                try { Files.deleteIfExists(this.compactPath); } catch (IOException ignored) { ; }
+            }
+        }
+    }
+
+    /**
+     * Get the offsets of the records of all notes in the given mapping, in the order of the log.
+     */
+    private static int[] liveOffsets(Mapping mapping) {
+        int[] offsets = new int[mapping.offsets.length()];
+        int count = 0;
+        for (int id = 1; id < mapping.offsets.length(); id++) {
+            int offset = mapping.offsets.get(id);
+            if (offset != 0) {
+                offsets[count++] = offset;
+            }
+        }
+        offsets = Arrays.copyOf(offsets, count);
+        Arrays.sort(offsets);
+        return offsets;
+    }
+
+    /**
+     * Get the timestamps and offsets of the records of the notes changed after <code>since</code> and up to
+     * <code>until</code> in the given mapping, ordered by timestamp.
+     */
+    private static ArrayList<long[]> collectChanges(Mapping mapping, long since, long until) {
+        ArrayList<long[]> changes = new ArrayList<long[]>();
+        for (int id = 1; id < mapping.offsets.length(); id++) {
+            int offset = mapping.offsets.get(id);
+            if (offset != 0) {
+                long timestamp = mapping.buffer.getLong(offset + LogNoteStore.RECORD_TIMESTAMP);
+                if (timestamp > since && timestamp <= until) {
+                    changes.add(new long[] {timestamp, offset});
+                }
+            }
+        }
+        changes.sort(Comparator.comparingLong(change -> change[0]));
+        return changes;
+    }
+
+    /**
+     * Sync the directory of the given file to disk, so a rename within it is durable (where supported).
+     */
+    private static void syncDirectory(Path path) {
+        try {
+            FileChannel directory = FileChannel.open(path.toAbsolutePath().getParent(), StandardOpenOption.READ);
+            try {
+                directory.force(true);
+            } finally {
+                directory.close();
+            }
+        } catch (IOException ignored) {
+            // not supported on all platforms, the rename is atomic still
+        }
+    }
+
+    /**
+     * Check the record at the given offset, returning its size, or 0 if it's incomplete or corrupt (or there's none).
+     */
+    private static int checkRecord(ByteBuffer buffer, int offset, int limit) {
+        if (limit - offset < LogNoteStore.RECORD_HEADER_SIZE) {
+            return 0;
+        }
+        int size = buffer.getInt(offset);
+        if (size < LogNoteStore.RECORD_HEADER_SIZE || size > limit - offset) {
+            return 0;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.slice(offset + LogNoteStore.RECORD_TYPE, size - LogNoteStore.RECORD_TYPE));
+        return buffer.getInt(offset + LogNoteStore.RECORD_CRC) == (int) crc.getValue() ? size : 0;
+    }
+
+    /**
+     * Hand the offset of the record at the given offset to the consumer, or of each one within if it's a batch.
+     */
+    private static void forEachRecord(ByteBuffer buffer, int offset, RecordConsumer consumer) throws IOException {
+        if (buffer.get(offset + LogNoteStore.RECORD_TYPE) != LogNoteStore.RECORD_BATCH) {
+            consumer.accept(offset);
+            return;
+        }
+        int end = offset + buffer.getInt(offset);
+        for (int recordOffset = offset + LogNoteStore.RECORD_HEADER_SIZE; recordOffset < end; recordOffset += buffer.getInt(recordOffset)) {
+            consumer.accept(recordOffset);
+        }
+    }
+
+    /**
+     * Write a record with the given JSON at the given offset, returning its size.
+     */
+    private static int writeRecord(ByteBuffer buffer, int offset, byte type, int id, long timestamp, byte[] json) {
+        int size = LogNoteStore.RECORD_HEADER_SIZE + json.length;
+        buffer.put(offset + LogNoteStore.RECORD_HEADER_SIZE, json);
+        LogNoteStore.writeHeader(buffer, offset, size, type, id, timestamp);
+        return size;
+    }
+
+    /**
+     * Write the header of a record at the given offset, its content (of the given total size) written already.
+     */
+    private static void writeHeader(ByteBuffer buffer, int offset, int size, byte type, int id, long timestamp) {
+        buffer.put(offset + LogNoteStore.RECORD_TYPE, type);
+        buffer.putInt(offset + LogNoteStore.RECORD_ID, id);
+        buffer.putLong(offset + LogNoteStore.RECORD_TIMESTAMP, timestamp);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.slice(offset + LogNoteStore.RECORD_TYPE, size - LogNoteStore.RECORD_TYPE));
+        buffer.putInt(offset + LogNoteStore.RECORD_CRC, (int) crc.getValue());
+        buffer.putInt(offset, size);
+    }
+
+    /**
+     * Copy the given index into a new one of the given size.
+     */
+    private static AtomicIntegerArray copyOf(AtomicIntegerArray offsets, int size) {
+        AtomicIntegerArray copy = new AtomicIntegerArray(size);
+        for (int i = 0; i < Math.min(size, offsets.length()); i++) {
+            copy.set(i, offsets.get(i));
+        }
+        return copy;
+    }
+
+    @Override
+    public long getLastModified() {
+        return this.clock.get();
+    }
+
+    @Override
+    public StatementStatistics getStatementStatistics() {
+        return this.statistics;
+    }
+
+    /**
+     * Close the log, after waiting for a compaction in progress and syncing it.
+     */
+    @Override
+    public void close() throws Exception {
+        this.compactor.shutdown();
+        this.compactor.awaitTermination(1, TimeUnit.MINUTES);
+        this.writeLock.lock();
+        try {
+            this.mapping.buffer.force();
+            this.channel.close();
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    /**
+     * Receives the offsets of records, see <code>forEachRecord()</code>.
+     */
+    private interface RecordConsumer {
+
+        void accept(int offset) throws IOException;
+
+    }
+
+    /**
+     * The mapped log together with the index of the offsets of the notes' records in it, by ID (0 for none).
+     */
+    private static class Mapping {
+
+        private final MappedByteBuffer buffer;
+        private final AtomicIntegerArray offsets;
+
+        Mapping(MappedByteBuffer buffer, AtomicIntegerArray offsets) {
+            this.buffer = buffer;
+            this.offsets = offsets;
+        }
+
+    }
+
+    /**
+     * The new log being written by <code>compact()</code>, with its own index.
+     */
+    private static class Compaction {
+
+        private final FileChannel channel;
+        private MappedByteBuffer buffer;
+        private AtomicIntegerArray offsets;
+        private int position = LogNoteStore.FILE_HEADER_SIZE;
+        private long deadBytes = 0;
+        private int horizonOffset = 0;
+
+        /**
+         * Map the new log, with room for the given size to start with, and write its header.
+         */
+        Compaction(FileChannel channel, long size, int indexSize) throws IOException {
+            this.channel = channel;
+            this.offsets = new AtomicIntegerArray(indexSize);
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    Math.min(Integer.MAX_VALUE, Math.max(LogNoteStore.INITIAL_CAPACITY, 2 * size)));
+            this.buffer.putInt(0, LogNoteStore.MAGIC);
+            this.buffer.putInt(4, LogNoteStore.VERSION);
+        }
+
+        /**
+         * Make room in the index for IDs below the given size.
+         */
+        void ensureIndex(int size) {
+            if (size > this.offsets.length()) {
+                this.offsets = LogNoteStore.copyOf(this.offsets, size);
+            }
+        }
+
+        /**
+         * Copy the (note, tombstone or horizon) record at the given offset of the old log, as is, and index it.
+         */
+        void copy(ByteBuffer source, int offset) throws IOException {
+            int size = source.getInt(offset);
+            if ((long) this.position + size > this.buffer.capacity()) {
+                if ((long) this.position + size > Integer.MAX_VALUE) {
+                    throw new IOException("compacted log is full, it can't grow beyond 2 GB");
+                }
+                this.buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                        Math.min(Integer.MAX_VALUE, Math.max((long) this.position + size, 2L * this.buffer.capacity())));
+            }
+            this.buffer.put(this.position, source, offset, size);
+            byte type = source.get(offset + LogNoteStore.RECORD_TYPE);
+            int id = source.getInt(offset + LogNoteStore.RECORD_ID);
+            if (type == LogNoteStore.RECORD_HORIZON) {
+                this.deadBytes += LogNoteStore.RECORD_HEADER_SIZE;
+                this.horizonOffset = this.position;
+            } else {
+                int previous = this.offsets.getAndSet(id, type == LogNoteStore.RECORD_PUT ? this.position : 0);
+                if (previous != 0) {
+                    this.deadBytes += this.buffer.getInt(previous);
+                }
+            }
+            this.position += size;
+        }
+
+    }
+
+}
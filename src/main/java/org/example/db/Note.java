@@ -1,7 +1,11 @@
 package org.example.db;
 
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
+import java.io.IOException;
 import java.util.Date;
 
 public class Note {
@@ -39,6 +43,13 @@ public class Note {
         return this.id;
     }
 
+    /**
+     * Set the ID assigned to this Note by the DB.
+     */
+    void setID(int id) {
+        this.id = id;
+    }
+
     public String getTitle() {
         return this.title;
     }
@@ -59,6 +70,13 @@ public class Note {
         return this.timestamp;
     }
 
+    /**
+     * Set the timestamp of this Note, as assigned by the DB.
+     */
+    void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
     /**
      * Set the timestamp of this Note to now.
      */
@@ -99,4 +117,44 @@ public class Note {
         return jsonNote;
     }
 
+    /**
+     * Write the data contained in this Note as JSON object to the given writer.
+     * Same output as <code>toJsonObject()</code>, without building the intermediate object (and as
+     * <code>NoteCodec</code>, which writes bytes without going through Gson at all).
+     */
+    public void writeJson(JsonWriter jsonWriter) throws IOException {
+        jsonWriter.beginObject();
+        // write each property one by one
+        jsonWriter.name(Note.JSON_ID_KEY).value(this.id);
+        jsonWriter.name(Note.JSON_TITLE_KEY).value(this.title);
+        jsonWriter.name(Note.JSON_CONTENT_KEY).value(this.content);
+        jsonWriter.name(Note.JSON_TIMESTAMP_KEY).value(this.timestamp);
+        jsonWriter.endObject();
+    }
+
+    /**
+     * Read the next JSON object from the given reader as new Note, with only title and content.
+     * Other properties are ignored, missing ones are left null.
+     */
+    public static Note readJson(JsonReader jsonReader) throws IOException {
+        String title = null;
+        String content = null;
+        jsonReader.beginObject();
+        while (jsonReader.hasNext()) {
+            String name = jsonReader.nextName();
+            if (jsonReader.peek() == JsonToken.NULL) {
+                // explicitly null, same as missing
+                jsonReader.nextNull();
+            } else if (name.equals(Note.JSON_TITLE_KEY)) {
+                title = jsonReader.nextString();
+            } else if (name.equals(Note.JSON_CONTENT_KEY)) {
+                content = jsonReader.nextString();
+            } else {
+                jsonReader.skipValue();
+            }
+        }
+        jsonReader.endObject();
+        return new Note(title, content);
+    }
+
 }
@@ -0,0 +1,195 @@
+package org.example.db;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded in-memory cache of Notes by ID, holding each Note already serialized as JSON bytes (<code>SerializedNote</code>).
+ * Evicts the least recently used Notes to stay within its memory budget (JSON size plus an estimated overhead).
+ * Split into segments, each with its own lock and share of the budget, so concurrent reads rarely contend.
+ *
+ * Writers must <code>invalidate()</code> a Note after changing it. Readers filling the cache take a
+ * <code>stamp()</code> before reading the DB and pass it to <code>put()</code>, which drops the value if
+ * the segment was invalidated in the meantime (as it may be stale).
+ */
+public class NoteCache {
+
+    // estimated memory of an entry besides the JSON itself: map entry, key, SerializedNote, array header
+    private static final int ENTRY_OVERHEAD = 128;
+    private static final int SEGMENTS = 16;
+
+    private final Segment[] segments = new Segment[NoteCache.SEGMENTS];
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Create an empty cache using at most (about) the given number of bytes.
+     */
+    NoteCache(long maxBytes) {
+        for (int i = 0; i < this.segments.length; i++) {
+            this.segments[i] = new Segment(maxBytes / this.segments.length);
+        }
+    }
+
+    /**
+     * Get the Note with given ID, or null if not cached.
+     */
+    SerializedNote get(int id) {
+        Segment segment = this.segmentOf(id);
+        SerializedNote note = null;
+        synchronized (segment) {
+            note = segment.entries.get(id);
+        }
+        if (note != null) {
+            this.hits.increment();
+        } else {
+            this.misses.increment();
+        }
+        return note;
+    }
+
+    /**
+     * Get the timestamp of the Note with given ID, or -1 if not cached. Not counted as hit or miss, it's only about
+     * whether the Note changed, it's looked up itself if needed.
+     */
+    long getTimestamp(int id) {
+        Segment segment = this.segmentOf(id);
+        synchronized (segment) {
+            SerializedNote note = segment.entries.get(id);
+            return note != null ? note.getTimestamp() : -1;
+        }
+    }
+
+    /**
+     * Get the current stamp for the Note with given ID, to be passed to <code>put()</code>.
+     */
+    long stamp(int id) {
+        Segment segment = this.segmentOf(id);
+        synchronized (segment) {
+            return segment.invalidations;
+        }
+    }
+
+    /**
+     * Cache the given Note, as read after taking the given stamp.
+     * Ignored if the Note may have changed since, or if it alone exceeds the budget.
+     */
+    void put(SerializedNote note, long stamp) {
+        Segment segment = this.segmentOf(note.getID());
+        synchronized (segment) {
+            if (segment.invalidations != stamp || NoteCache.sizeOf(note) > segment.maxBytes) {
+                return;
+            }
+            SerializedNote previous = segment.entries.put(note.getID(), note);
+            segment.bytes += NoteCache.sizeOf(note);
+            if (previous != null) {
+                segment.bytes -= NoteCache.sizeOf(previous);
+            }
+            // evict the least recently used entries until within budget
+            Iterator<Map.Entry<Integer, SerializedNote>> iterator = segment.entries.entrySet().iterator();
+            while (segment.bytes > segment.maxBytes && iterator.hasNext()) {
+                SerializedNote evicted = iterator.next().getValue();
+                iterator.remove();
+                segment.bytes -= NoteCache.sizeOf(evicted);
+                this.evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * Remove the Note with given ID, after it was changed/deleted.
+     */
+    void invalidate(int id) {
+        Segment segment = this.segmentOf(id);
+        synchronized (segment) {
+            SerializedNote previous = segment.entries.remove(id);
+            if (previous != null) {
+                segment.bytes -= NoteCache.sizeOf(previous);
+            }
+            segment.invalidations++;
+        }
+    }
+
+    /**
+     * Get the number of lookups which found the Note in the cache.
+     */
+    public long getHits() {
+        return this.hits.sum();
+    }
+
+    /**
+     * Get the number of lookups which didn't find the Note in the cache.
+     */
+    public long getMisses() {
+        return this.misses.sum();
+    }
+
+    /**
+     * Get the number of Notes evicted to stay within the budget.
+     */
+    public long getEvictions() {
+        return this.evictions.sum();
+    }
+
+    /**
+     * Get the number of Notes currently cached.
+     */
+    public long getSize() {
+        long size = 0;
+        for (Segment segment : this.segments) {
+            synchronized (segment) {
+                size += segment.entries.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Get the (estimated) memory currently used by the cached Notes, in bytes.
+     */
+    public long getBytes() {
+        long bytes = 0;
+        for (Segment segment : this.segments) {
+            synchronized (segment) {
+                bytes += segment.bytes;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Get the (estimated) memory used by the given cached Note.
+     */
+    private static long sizeOf(SerializedNote note) {
+        return note.getSize() + NoteCache.ENTRY_OVERHEAD;
+    }
+
+    /**
+     * Get the segment holding the Note with given ID.
+     */
+    private Segment segmentOf(int id) {
+        // spread consecutive IDs over the segments
+        int hash = id * 0x9E3779B9;
+        return this.segments[(hash >>> 16) % this.segments.length];
+    }
+
+    /**
+     * Part of the cache, in least recently used order.
+     */
+    private static class Segment {
+
+        private final LinkedHashMap<Integer, SerializedNote> entries = new LinkedHashMap<Integer, SerializedNote>(16, 0.75f, true);
+        private final long maxBytes;
+        private long bytes = 0;
+        private long invalidations = 0;
+
+        Segment(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+    }
+
+}
@@ -0,0 +1,14 @@
+package org.example.db;
+
+/**
+ * Receives Notes one by one, as they are read from the DB.
+ * Allows processing large results without collecting them in memory first.
+ */
+public interface NoteCallback {
+
+    /**
+     * Called for each Note read from the DB, in order.
+     */
+    void onNote(Note note) throws Exception;
+
+}
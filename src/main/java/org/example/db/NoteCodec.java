@@ -0,0 +1,675 @@
+package org.example.db;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Specialized JSON codec of Notes, working straight on UTF-8 bytes in a reusable buffer, without Gson's tree model
+ * (nor its chars and Strings) in between: writing a Note allocates nothing, reading one only its title and content.
+ * Writes the same JSON as Gson, byte for byte (see <code>Note.writeJson()</code>), and reads any JSON object.
+ * Besides the Notes it writes the bits of JSON around them, so whole responses are built in the buffer and sent
+ * in chunks (see <code>flushTo()</code>).
+ * Not thread-safe, meant to be used by one request at a time.
+ */
+public class NoteCodec {
+
+    // initial size of the buffer, and the size beyond which callers should flush it
+    public static final int BUFFER_SIZE = 8192;
+    // chars of a string written per step, the buffer grows by the worst case of a step rather than of the whole string
+    private static final int STRING_STEP = 4096;
+
+    // the properties of a Note, in the order written, with the punctuation around them
+    private static final byte[] ID_PREFIX = ("{\"" + Note.JSON_ID_KEY + "\":").getBytes(StandardCharsets.UTF_8);
+    private static final byte[] TITLE_PREFIX = (",\"" + Note.JSON_TITLE_KEY + "\":").getBytes(StandardCharsets.UTF_8);
+    private static final byte[] CONTENT_PREFIX = (",\"" + Note.JSON_CONTENT_KEY + "\":").getBytes(StandardCharsets.UTF_8);
+    private static final byte[] TIMESTAMP_PREFIX = (",\"" + Note.JSON_TIMESTAMP_KEY + "\":").getBytes(StandardCharsets.UTF_8);
+    private static final byte[] TITLE_KEY = Note.JSON_TITLE_KEY.getBytes(StandardCharsets.UTF_8);
+    private static final byte[] CONTENT_KEY = Note.JSON_CONTENT_KEY.getBytes(StandardCharsets.UTF_8);
+    private static final byte[] NULL = "null".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.UTF_8);
+
+    // keys read, see readKey()
+    private static final int KEY_OTHER = 0;
+    private static final int KEY_TITLE = 1;
+    private static final int KEY_CONTENT = 2;
+
+    private byte[] buffer = null;
+    // bytes written to (or read into) the buffer, and the position of the parser
+    private int size = 0;
+    private int position = 0;
+
+    /**
+     * Create a codec with an empty buffer of the default size.
+     */
+    public NoteCodec() {
+        this(NoteCodec.BUFFER_SIZE);
+    }
+
+    /**
+     * Create a codec with an empty buffer of the given size.
+     */
+    private NoteCodec(int size) {
+        this.buffer = new byte[size];
+    }
+
+    /**
+     * Serialize the given Note on its own, as JSON object.
+     */
+    public static byte[] toJson(Note note) {
+        // room for text without escapes (at most 3 bytes per char), so the buffer rarely grows
+        int length = (note.getTitle() != null ? note.getTitle().length() : 0) + (note.getContent() != null ? note.getContent().length() : 0);
+        return new NoteCodec(128 + 3 * length).writeNote(note).toByteArray();
+    }
+
+    /**
+     * Write the given Note as JSON object.
+     */
+    public NoteCodec writeNote(Note note) {
+        this.writeRaw(NoteCodec.ID_PREFIX);
+        this.writeLong(note.getID());
+        this.writeRaw(NoteCodec.TITLE_PREFIX);
+        this.writeString(note.getTitle());
+        this.writeRaw(NoteCodec.CONTENT_PREFIX);
+        this.writeString(note.getContent());
+        this.writeRaw(NoteCodec.TIMESTAMP_PREFIX);
+        this.writeLong(note.getTimestamp());
+        this.writeRaw('}');
+        return this;
+    }
+
+    /**
+     * Write the given Note as JSON object, with only the fields of the given query (in the usual order).
+     */
+    public NoteCodec writeNote(Note note, NoteQuery query) {
+        if (query == NoteQuery.ALL) {
+            return this.writeNote(note);
+        }
+        boolean first = true;
+        if (query.hasID()) {
+            this.writeRaw(NoteCodec.ID_PREFIX);
+            this.writeLong(note.getID());
+            first = false;
+        }
+        if (query.hasTitle()) {
+            this.writeProperty(NoteCodec.TITLE_PREFIX, first);
+            this.writeString(note.getTitle());
+            first = false;
+        }
+        if (query.hasContent()) {
+            this.writeProperty(NoteCodec.CONTENT_PREFIX, first);
+            this.writeString(note.getContent());
+            first = false;
+        }
+        if (query.hasTimestamp()) {
+            this.writeProperty(NoteCodec.TIMESTAMP_PREFIX, first);
+            this.writeLong(note.getTimestamp());
+        }
+        this.writeRaw('}');
+        return this;
+    }
+
+    /**
+     * Write the given prefix of a property (comma and name), opening the object instead of the comma if first.
+     */
+    private void writeProperty(byte[] prefix, boolean first) {
+        this.ensure(prefix.length);
+        this.buffer[this.size] = first ? (byte) '{' : prefix[0];
+        System.arraycopy(prefix, 1, this.buffer, this.size + 1, prefix.length - 1);
+        this.size += prefix.length;
+    }
+
+    /**
+     * Write the given ASCII text as it is, e.g. punctuation or names of properties (quoted by the caller).
+     */
+    public NoteCodec writeRaw(String text) {
+        int length = text.length();
+        this.ensure(length);
+        for (int i = 0; i < length; i++) {
+            this.buffer[this.size++] = (byte) text.charAt(i);
+        }
+        return this;
+    }
+
+    /**
+     * Write the given ASCII character as it is.
+     */
+    public NoteCodec writeRaw(char c) {
+        this.ensure(1);
+        this.buffer[this.size++] = (byte) c;
+        return this;
+    }
+
+    /**
+     * Write the given bytes as they are, e.g. JSON serialized before.
+     */
+    public NoteCodec writeRaw(byte[] bytes) {
+        this.ensure(bytes.length);
+        System.arraycopy(bytes, 0, this.buffer, this.size, bytes.length);
+        this.size += bytes.length;
+        return this;
+    }
+
+    /**
+     * Write the given number.
+     */
+    public NoteCodec writeLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            // can't be negated
+            return this.writeRaw(Long.toString(value));
+        }
+        this.ensure(20);
+        if (value < 0) {
+            this.buffer[this.size++] = '-';
+            value = -value;
+        }
+        // digits backwards, from the end of the number
+        int end = this.size + NoteCodec.digits(value);
+        int index = end;
+        do {
+            this.buffer[--index] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        this.size = end;
+        return this;
+    }
+
+    /**
+     * Write the given text as JSON string, escaped as Gson does (not HTML-safe), or null.
+     * Unpaired surrogates, which can't be encoded, are replaced by '?' like <code>String.getBytes()</code> does.
+     */
+    public NoteCodec writeString(String text) {
+        if (text == null) {
+            return this.writeRaw(NoteCodec.NULL);
+        }
+        int length = text.length();
+        this.ensure(2);
+        byte[] buffer = this.buffer;
+        int size = this.size;
+        buffer[size++] = '"';
+        int stepEnd = 0;
+        for (int i = 0; i < length; i++) {
+            if (i >= stepEnd) {
+                // room for the next step, at most 6 bytes per char (escaped) plus the closing quote, so a large text
+                // grows the buffer by about its size rather than 6 times that
+                this.size = size;
+                stepEnd = Math.min(i + NoteCodec.STRING_STEP, length);
+                this.ensure(1 + 6 * (stepEnd - i));
+                buffer = this.buffer;
+            }
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                if (c >= 0x20 && c != '"' && c != '\\') {
+                    buffer[size++] = (byte) c;
+                } else {
+                    size = NoteCodec.escape(buffer, size, c);
+                }
+            } else if (c < 0x800) {
+                buffer[size++] = (byte) (0xc0 | (c >> 6));
+                buffer[size++] = (byte) (0x80 | (c & 0x3f));
+            } else if (c == '\u2028' || c == '\u2029') {
+                // line separators, escaped by Gson
+                size = NoteCodec.escape(buffer, size, c);
+            } else if (!Character.isSurrogate(c)) {
+                buffer[size++] = (byte) (0xe0 | (c >> 12));
+                buffer[size++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buffer[size++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                buffer[size++] = (byte) (0xf0 | (codePoint >> 18));
+                buffer[size++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                buffer[size++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                buffer[size++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else {
+                buffer[size++] = '?';
+            }
+        }
+        buffer[size++] = '"';
+        this.size = size;
+        return this;
+    }
+
+    /**
+     * Get the number of bytes written, not flushed yet.
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Write the bytes written so far to the given stream, emptying the buffer for the next ones.
+     */
+    public void flushTo(OutputStream outputStream) throws IOException {
+        outputStream.write(this.buffer, 0, this.size);
+        this.size = 0;
+    }
+
+    /**
+     * Get a copy of the bytes written so far.
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(this.buffer, this.size);
+    }
+
+    /**
+     * Read the given stream to its end as JSON object, as new Note with only title and content.
+     * Other properties are ignored, missing ones (or null) are left null.
+     * Throws an IOException if it isn't a JSON object, or title/content aren't strings.
+     */
+    public Note readNote(InputStream inputStream) throws IOException {
+        // read it all into the buffer, reused for any data written before
+        this.size = 0;
+        int read = 0;
+        while (read >= 0) {
+            this.ensure(1);
+            this.size += read;
+            read = inputStream.read(this.buffer, this.size, this.buffer.length - this.size);
+        }
+        return this.parse();
+    }
+
+    /**
+     * Parse the given JSON object, the remaining bytes of the buffer (left as they are), like <code>readNote()</code>.
+     */
+    public static Note fromJson(ByteBuffer json) throws IOException {
+        NoteCodec codec = new NoteCodec(json.remaining());
+        json.duplicate().get(codec.buffer);
+        codec.size = codec.buffer.length;
+        return codec.parse();
+    }
+
+    /**
+     * Parse the bytes in the buffer as Note, emptying it afterwards.
+     */
+    private Note parse() throws IOException {
+        this.position = 0;
+        Note note = this.parseNote();
+        this.skipWhitespace();
+        if (this.position != this.size) {
+            throw this.malformed("more data after the object");
+        }
+        this.size = 0;
+        return note;
+    }
+
+    /**
+     * Parse the JSON object at the current position as Note.
+     */
+    private Note parseNote() throws IOException {
+        String title = null;
+        String content = null;
+        this.skipWhitespace();
+        this.expect('{');
+        this.skipWhitespace();
+        if (this.peek() == '}') {
+            this.position++;
+        } else {
+            while (true) {
+                this.skipWhitespace();
+                this.expect('"');
+                int key = this.readKey();
+                this.skipWhitespace();
+                this.expect(':');
+                this.skipWhitespace();
+                if (key == NoteCodec.KEY_OTHER) {
+                    this.skipValue();
+                } else if (key == NoteCodec.KEY_TITLE) {
+                    title = this.readStringOrNull();
+                } else {
+                    content = this.readStringOrNull();
+                }
+                this.skipWhitespace();
+                byte next = this.next();
+                if (next == '}') {
+                    break;
+                } else if (next != ',') {
+                    throw this.malformed("expected ',' or '}'");
+                }
+            }
+        }
+        return new Note(title, content);
+    }
+
+    /**
+     * Read the name of a property (after its opening quote), telling which key of the Note it is.
+     */
+    private int readKey() throws IOException {
+        int start = this.position;
+        int end = this.scanString();
+        int key = NoteCodec.KEY_OTHER;
+        if (end >= 0) {
+            // no escapes, compare the bytes as they are
+            if (Arrays.equals(this.buffer, start, end, NoteCodec.TITLE_KEY, 0, NoteCodec.TITLE_KEY.length)) {
+                key = NoteCodec.KEY_TITLE;
+            } else if (Arrays.equals(this.buffer, start, end, NoteCodec.CONTENT_KEY, 0, NoteCodec.CONTENT_KEY.length)) {
+                key = NoteCodec.KEY_CONTENT;
+            }
+        } else {
+            // escaped, rare enough to decode it
+            this.position = start;
+            String name = this.readString();
+            if (name.equals(Note.JSON_TITLE_KEY)) {
+                key = NoteCodec.KEY_TITLE;
+            } else if (name.equals(Note.JSON_CONTENT_KEY)) {
+                key = NoteCodec.KEY_CONTENT;
+            }
+        }
+        return key;
+    }
+
+    /**
+     * Read a string value, or null. Numbers and booleans are taken as string too, as written.
+     */
+    private String readStringOrNull() throws IOException {
+        byte first = this.peek();
+        if (first == 'n') {
+            this.expectLiteral(NoteCodec.NULL);
+            return null;
+        } else if (first == '"') {
+            this.position++;
+            return this.readString();
+        } else if (first == '{' || first == '[') {
+            throw this.malformed("expected string");
+        }
+        int start = this.position;
+        this.skipValue();
+        return new String(this.buffer, start, this.position - start, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Read a string (after its opening quote), decoding its escapes in place.
+     */
+    private String readString() throws IOException {
+        int start = this.position;
+        int end = this.scanString();
+        if (end >= 0) {
+            // no escapes, the common case
+            return new String(this.buffer, start, end - start, StandardCharsets.UTF_8);
+        }
+        // unescape into the buffer behind the reading position, never longer than the escaped form
+        byte[] buffer = this.buffer;
+        int read = start;
+        int write = start;
+        while (true) {
+            if (read >= this.size) {
+                throw this.malformed("unterminated string");
+            }
+            byte b = buffer[read++];
+            if (b == '"') {
+                break;
+            } else if (b != '\\') {
+                buffer[write++] = b;
+                continue;
+            }
+            if (read >= this.size) {
+                throw this.malformed("unterminated string");
+            }
+            byte escaped = buffer[read++];
+            switch (escaped) {
+                case '"':
+                case '\\':
+                case '/':
+                    buffer[write++] = escaped;
+                    break;
+                case 'b':
+                    buffer[write++] = '\b';
+                    break;
+                case 'f':
+                    buffer[write++] = '\f';
+                    break;
+                case 'n':
+                    buffer[write++] = '\n';
+                    break;
+                case 'r':
+                    buffer[write++] = '\r';
+                    break;
+                case 't':
+                    buffer[write++] = '\t';
+                    break;
+                case 'u':
+                    int c = this.parseHex(read);
+                    read += 4;
+                    if (Character.isHighSurrogate((char) c) && read + 6 <= this.size && buffer[read] == '\\' && buffer[read + 1] == 'u') {
+                        int low = this.parseHex(read + 2);
+                        if (Character.isLowSurrogate((char) low)) {
+                            c = Character.toCodePoint((char) c, (char) low);
+                            read += 6;
+                        }
+                    }
+                    write = NoteCodec.encode(buffer, write, c);
+                    break;
+                default:
+                    throw this.malformed("invalid escape");
+            }
+        }
+        this.position = read;
+        return new String(buffer, start, write - start, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Find the end of the string starting at the current position (after its opening quote).
+     * Returns the index of its closing quote, and moves past it, if it has no escapes; otherwise returns -1 with
+     * the position unchanged.
+     */
+    private int scanString() throws IOException {
+        for (int i = this.position; i < this.size; i++) {
+            byte b = this.buffer[i];
+            if (b == '"') {
+                this.position = i + 1;
+                return i;
+            } else if (b == '\\') {
+                return -1;
+            }
+        }
+        throw this.malformed("unterminated string");
+    }
+
+    /**
+     * Skip the value at the current position, of any type.
+     */
+    private void skipValue() throws IOException {
+        byte first = this.peek();
+        if (first == '"') {
+            this.position++;
+            this.skipString();
+        } else if (first == '{' || first == '[') {
+            // skip up to the matching bracket, minding the strings in between
+            int depth = 0;
+            do {
+                byte b = this.next();
+                if (b == '{' || b == '[') {
+                    depth++;
+                } else if (b == '}' || b == ']') {
+                    depth--;
+                } else if (b == '"') {
+                    this.skipString();
+                }
+            } while (depth > 0);
+        } else if (first == 't' || first == 'f' || first == 'n' || first == '-' || (first >= '0' && first <= '9')) {
+            // literal or number, up to the next delimiter
+            while (this.position < this.size && "{}[],:\" \t\r\n".indexOf(this.buffer[this.position]) < 0) {
+                this.position++;
+            }
+        } else {
+            throw this.malformed("unexpected character");
+        }
+    }
+
+    /**
+     * Skip the string at the current position (after its opening quote).
+     */
+    private void skipString() throws IOException {
+        while (true) {
+            byte b = this.next();
+            if (b == '"') {
+                return;
+            } else if (b == '\\') {
+                this.next();
+            }
+        }
+    }
+
+    /**
+     * Skip the whitespace at the current position.
+     */
+    private void skipWhitespace() {
+        while (this.position < this.size) {
+            byte b = this.buffer[this.position];
+            if (b != ' ' && b != '\t' && b != '\n' && b != '\r') {
+                break;
+            }
+            this.position++;
+        }
+    }
+
+    /**
+     * Get the byte at the current position, without moving past it.
+     */
+    private byte peek() throws IOException {
+        if (this.position >= this.size) {
+            throw this.malformed("unexpected end");
+        }
+        return this.buffer[this.position];
+    }
+
+    /**
+     * Get the byte at the current position, moving past it.
+     */
+    private byte next() throws IOException {
+        byte b = this.peek();
+        this.position++;
+        return b;
+    }
+
+    /**
+     * Move past the given character, which has to be at the current position.
+     */
+    private void expect(char c) throws IOException {
+        if (this.next() != c) {
+            throw this.malformed("expected '" + c + "'");
+        }
+    }
+
+    /**
+     * Move past the given literal, which has to be at the current position.
+     */
+    private void expectLiteral(byte[] literal) throws IOException {
+        for (byte b : literal) {
+            if (this.next() != b) {
+                throw this.malformed("expected " + new String(literal, StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    /**
+     * Parse the 4 hex digits at the given index.
+     */
+    private int parseHex(int index) throws IOException {
+        if (index + 4 > this.size) {
+            throw this.malformed("unterminated escape");
+        }
+        int value = 0;
+        for (int i = index; i < index + 4; i++) {
+            int digit = Character.digit(this.buffer[i], 16);
+            if (digit < 0) {
+                throw this.malformed("invalid escape");
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    /**
+     * Create the exception for malformed JSON, at the current position.
+     */
+    private IOException malformed(String message) {
+        return new IOException("malformed JSON at " + this.position + ": " + message);
+    }
+
+    /**
+     * Make room for the given number of bytes more, growing the buffer if needed.
+     */
+    private void ensure(int bytes) {
+        if (this.size + bytes > this.buffer.length) {
+            this.buffer = Arrays.copyOf(this.buffer, Math.max(2 * this.buffer.length, this.size + bytes));
+        }
+    }
+
+    /**
+     * Write the given ASCII character escaped, at the given index of the buffer. Returns the index after it.
+     */
+    private static int escape(byte[] buffer, int index, char c) {
+        buffer[index++] = '\\';
+        switch (c) {
+            case '"':
+            case '\\':
+                buffer[index++] = (byte) c;
+                break;
+            case '\t':
+                buffer[index++] = 't';
+                break;
+            case '\b':
+                buffer[index++] = 'b';
+                break;
+            case '\n':
+                buffer[index++] = 'n';
+                break;
+            case '\r':
+                buffer[index++] = 'r';
+                break;
+            case '\f':
+                buffer[index++] = 'f';
+                break;
+            default:
+                buffer[index++] = 'u';
+                buffer[index++] = NoteCodec.HEX_DIGITS[(c >> 12) & 0xf];
+                buffer[index++] = NoteCodec.HEX_DIGITS[(c >> 8) & 0xf];
+                buffer[index++] = NoteCodec.HEX_DIGITS[(c >> 4) & 0xf];
+                buffer[index++] = NoteCodec.HEX_DIGITS[c & 0xf];
+        }
+        return index;
+    }
+
+    /**
+     * Write the given code point as UTF-8, at the given index of the buffer. Returns the index after it.
+     * Unpaired surrogates are written as '?'.
+     */
+    private static int encode(byte[] buffer, int index, int c) {
+        if (c < 0x80) {
+            buffer[index++] = (byte) c;
+        } else if (c < 0x800) {
+            buffer[index++] = (byte) (0xc0 | (c >> 6));
+            buffer[index++] = (byte) (0x80 | (c & 0x3f));
+        } else if (c < 0x10000) {
+            if (Character.isSurrogate((char) c)) {
+                buffer[index++] = '?';
+            } else {
+                buffer[index++] = (byte) (0xe0 | (c >> 12));
+                buffer[index++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buffer[index++] = (byte) (0x80 | (c & 0x3f));
+            }
+        } else {
+            buffer[index++] = (byte) (0xf0 | (c >> 18));
+            buffer[index++] = (byte) (0x80 | ((c >> 12) & 0x3f));
+            buffer[index++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+            buffer[index++] = (byte) (0x80 | (c & 0x3f));
+        }
+        return index;
+    }
+
+    /**
+     * Get the number of decimal digits of the given (non-negative) number.
+     */
+    private static int digits(long value) {
+        int digits = 1;
+        while (value >= 10) {
+            value /= 10;
+            digits++;
+        }
+        return digits;
+    }
+
+}
@@ -0,0 +1,32 @@
+package org.example.db;
+
+/**
+ * Position in a listing of the notes to continue after, see <code>NoteQuery</code>: the key of the last note
+ * retrieved (its ID or timestamp, as sorted by) and its ID, which breaks ties between equal timestamps.
+ * Immutable.
+ */
+public class NoteCursor {
+
+    private final long key;
+    private final int id;
+
+    NoteCursor(long key, int id) {
+        this.key = key;
+        this.id = id;
+    }
+
+    /**
+     * Get the key of the note, its ID or timestamp as sorted by.
+     */
+    public long getKey() {
+        return this.key;
+    }
+
+    /**
+     * Get the ID of the note.
+     */
+    public int getID() {
+        return this.id;
+    }
+
+}
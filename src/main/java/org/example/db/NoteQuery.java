@@ -0,0 +1,188 @@
+package org.example.db;
+
+import java.util.Comparator;
+
+/**
+ * What a listing of the notes retrieves, see <code>Database.streamNotes()</code>: the fields of the notes (projection)
+ * and their order, as given by the query of a request, e.g. <code>?fields=id,title,timestamp&sort=timestamp:desc</code>.
+ * Notes are sorted by ID or by timestamp, then by ID: timestamps aren't unique (notes written by earlier versions
+ * share them within a millisecond), so pages are keyed on the field sorted by and the ID (see <code>NoteCursor</code>).
+ * Fields left out aren't read from the DB if it can help it, and are null in the notes retrieved; the ID and the
+ * timestamp are always read though (they're small, and needed as key).
+ * Immutable.
+ */
+public class NoteQuery {
+
+    // names of the query parameters, and the separator of the direction of the sort (e.g. "timestamp:desc")
+    public static final String QUERY_FIELDS = "fields";
+    public static final String QUERY_SORT = "sort";
+    private static final char SORT_SEPARATOR = ':';
+    private static final String SORT_ASCENDING = "asc";
+    private static final String SORT_DESCENDING = "desc";
+    // separator of the ID in a cursor by timestamp, e.g. "1700000000000.42"
+    private static final char CURSOR_SEPARATOR = '.';
+
+    /**
+     * All fields, ordered by ID.
+     */
+    public static final NoteQuery ALL = new NoteQuery(true, true, true, true, false, false);
+
+    private final boolean id;
+    private final boolean title;
+    private final boolean content;
+    private final boolean timestamp;
+    private final boolean byTimestamp;
+    private final boolean descending;
+
+    private NoteQuery(boolean id, boolean title, boolean content, boolean timestamp, boolean byTimestamp, boolean descending) {
+        this.id = id;
+        this.title = title;
+        this.content = content;
+        this.timestamp = timestamp;
+        this.byTimestamp = byTimestamp;
+        this.descending = descending;
+    }
+
+    /**
+     * Parse the given comma separated list of fields (all if null) and sort (by ID ascending if null), i.e. the
+     * field <code>id</code> or <code>timestamp</code> optionally followed by <code>:asc</code> or <code>:desc</code>.
+     * Throws IllegalArgumentException if either is invalid.
+     */
+    public static NoteQuery parse(String fields, String sort) {
+        boolean id = fields == null;
+        boolean title = fields == null;
+        boolean content = fields == null;
+        boolean timestamp = fields == null;
+        if (fields != null) {
+            for (String field : fields.split(",")) {
+                switch (field.trim()) {
+                    case Note.JSON_ID_KEY:
+                        id = true;
+                        break;
+                    case Note.JSON_TITLE_KEY:
+                        title = true;
+                        break;
+                    case Note.JSON_CONTENT_KEY:
+                        content = true;
+                        break;
+                    case Note.JSON_TIMESTAMP_KEY:
+                        timestamp = true;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("invalid " + NoteQuery.QUERY_FIELDS + ": " + fields);
+                }
+            }
+        }
+        boolean byTimestamp = false;
+        boolean descending = false;
+        if (sort != null) {
+            int separator = sort.indexOf(NoteQuery.SORT_SEPARATOR);
+            String field = separator < 0 ? sort : sort.substring(0, separator);
+            String direction = separator < 0 ? NoteQuery.SORT_ASCENDING : sort.substring(separator + 1);
+            if ((!field.equals(Note.JSON_ID_KEY) && !field.equals(Note.JSON_TIMESTAMP_KEY)) ||
+                    (!direction.equals(NoteQuery.SORT_ASCENDING) && !direction.equals(NoteQuery.SORT_DESCENDING))) {
+                throw new IllegalArgumentException("invalid " + NoteQuery.QUERY_SORT + ": " + sort);
+            }
+            byTimestamp = field.equals(Note.JSON_TIMESTAMP_KEY);
+            descending = direction.equals(NoteQuery.SORT_DESCENDING);
+        }
+        return new NoteQuery(id, title, content, timestamp, byTimestamp, descending);
+    }
+
+    public boolean hasID() {
+        return this.id;
+    }
+
+    public boolean hasTitle() {
+        return this.title;
+    }
+
+    public boolean hasContent() {
+        return this.content;
+    }
+
+    public boolean hasTimestamp() {
+        return this.timestamp;
+    }
+
+    /**
+     * Whether the notes are sorted by timestamp, otherwise by ID.
+     */
+    public boolean isByTimestamp() {
+        return this.byTimestamp;
+    }
+
+    public boolean isDescending() {
+        return this.descending;
+    }
+
+    /**
+     * Get the key of the given Note in this order: its timestamp or its ID.
+     */
+    public long getKey(Note note) {
+        return this.byTimestamp ? note.getTimestamp() : note.getID();
+    }
+
+    /**
+     * Get the cursor to continue after the given Note.
+     */
+    public NoteCursor getCursor(Note note) {
+        return new NoteCursor(this.getKey(note), note.getID());
+    }
+
+    /**
+     * Get the cursor of the start of the listing, before the first note whatever the direction.
+     */
+    public NoteCursor getStart() {
+        return this.descending ? new NoteCursor(Long.MAX_VALUE, Integer.MAX_VALUE) : new NoteCursor(0, 0);
+    }
+
+    /**
+     * Parse the given cursor as formatted by <code>formatCursor()</code>, the start if null or 0 (or less).
+     * By timestamp the ID may be left out, the cursor is then after all notes with the timestamp.
+     * Throws IllegalArgumentException if invalid.
+     */
+    public NoteCursor parseCursor(String text) {
+        if (text == null || text.isEmpty()) {
+            return this.getStart();
+        }
+        int separator = this.byTimestamp ? text.indexOf(NoteQuery.CURSOR_SEPARATOR) : -1;
+        long key = Long.parseLong(separator < 0 ? text : text.substring(0, separator));
+        if (key <= 0) {
+            return this.getStart();
+        }
+        int id = 0;
+        if (separator >= 0) {
+            id = Integer.parseInt(text.substring(separator + 1));
+        } else if (this.byTimestamp) {
+            id = this.descending ? 0 : Integer.MAX_VALUE;
+        } else {
+            id = (int) Math.min(key, Integer.MAX_VALUE);
+        }
+        return new NoteCursor(key, id);
+    }
+
+    /**
+     * Format the given cursor, to be passed back to <code>parseCursor()</code>: the ID, or the timestamp and the ID.
+     */
+    public String formatCursor(NoteCursor cursor) {
+        return this.byTimestamp ? Long.toString(cursor.getKey()) + NoteQuery.CURSOR_SEPARATOR + cursor.getID() : String.valueOf(cursor.getKey());
+    }
+
+    /**
+     * Whether the Note with the given key and ID comes after the given cursor, in this order.
+     */
+    boolean isAfter(long key, int id, NoteCursor after) {
+        int compared = key != after.getKey() ? Long.compare(key, after.getKey()) : Integer.compare(id, after.getID());
+        return this.descending ? compared < 0 : compared > 0;
+    }
+
+    /**
+     * Get the order of the notes.
+     */
+    Comparator<Note> comparator() {
+        Comparator<Note> comparator = Comparator.comparingLong(this::getKey).thenComparingInt(Note::getID);
+        return this.descending ? comparator.reversed() : comparator;
+    }
+
+}
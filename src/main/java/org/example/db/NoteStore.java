@@ -0,0 +1,111 @@
+package org.example.db;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Storage backend of the notes, see <code>Config.DB_BACKEND</code>.
+ * <code>Database</code> hands the operations on to it, adding the metrics, the cache and the version of the notes.
+ * Implementations are thread-safe. Notes passed to the writes are valid (see <code>Note.isValid()</code>).
+ */
+interface NoteStore {
+
+    /**
+     * Add the given new Note, assigning its ID and timestamp.
+     */
+    void addNote(Note note) throws Exception;
+
+    /**
+     * Add the given new Notes, all or none of them, assigning their IDs and timestamps.
+     * A store spread over several files adds all or none of those in each file, so on failure some may be added still:
+     * those not added are left without ID (-1).
+     */
+    void addNotes(List<Note> notes) throws Exception;
+
+    /**
+     * Update the given Note (if it exists), assigning its new timestamp.
+     * Returns whether the Note existed, i.e. was updated.
+     */
+    boolean updateNote(Note note) throws Exception;
+
+    /**
+     * Delete the Note with given ID, leaving a tombstone.
+     * Returns the time of the deletion, -1 if there's no such Note.
+     */
+    long deleteNote(int id) throws Exception;
+
+    /**
+     * Get the Note with given ID, or null if not found.
+     */
+    Note getNote(int id) throws Exception;
+
+    /**
+     * Get the Note with given ID serialized as JSON, or null if not found.
+     */
+    SerializedNote getSerializedNote(int id) throws Exception;
+
+    /**
+     * Get the timestamp of the Note with given ID, or -1 if not found, without reading the rest of it.
+     */
+    long getNoteTimestamp(int id) throws Exception;
+
+    /**
+     * Hand the Notes with the given IDs to the callback, in the order of the IDs (repeated ones as often as given),
+     * skipping the ones not found.
+     */
+    void getNotes(int[] ids, NoteCallback callback) throws Exception;
+
+    /**
+     * Whether the notes are kept serialized in memory already, so <code>getSerializedNote()</code> needs no cache.
+     */
+    boolean isSerialized();
+
+    /**
+     * Get all Notes, in no particular order.
+     */
+    ArrayList<Note> getAllNotes() throws Exception;
+
+    /**
+     * Hand the Notes after the given cursor to the callback, in the order of the query, up to <code>limit</code> of
+     * them (all if negative), with at least the fields of the query read, see <code>Database.streamNotes()</code>.
+     */
+    void streamNotes(NoteQuery query, NoteCursor after, int limit, NoteCallback callback) throws Exception;
+
+    /**
+     * Hand the Notes containing all words of the given text to the callback, best matches first, skipping the first
+     * <code>offset</code> and up to <code>limit</code> of them (all if negative).
+     */
+    void searchNotes(String text, int offset, int limit, NoteCallback callback) throws Exception;
+
+    /**
+     * Hand the changes since the given time to the callback, see <code>Database.syncNotes()</code>.
+     * Returns the time up to which the changes are complete, -1 if the time is before the sync horizon.
+     */
+    long syncNotes(long since, ChangeCallback callback) throws Exception;
+
+    /**
+     * Get the time since which all deletions are recorded as tombstones.
+     */
+    long getSyncHorizon() throws Exception;
+
+    /**
+     * Delete the tombstones older than the given time, moving the sync horizon past them.
+     */
+    void purgeTombstones(long cutoff);
+
+    /**
+     * Get the timestamp of the last change stored, 0 if there's none.
+     */
+    long getLastModified() throws Exception;
+
+    /**
+     * Get the hit/miss counters of the prepared statements, empty if the store has none.
+     */
+    StatementStatistics getStatementStatistics();
+
+    /**
+     * Close the store, after completing the pending writes.
+     */
+    void close() throws Exception;
+
+}
@@ -0,0 +1,13 @@
+package org.example.db;
+
+/**
+ * Read from the DB, run on a read-only connection of a shard, e.g. on a fan-out thread for all shards at once.
+ */
+interface ReadOperation<T> {
+
+    /**
+     * Run this read on the given (reader) connection, returning its result.
+     */
+    T execute(DatabaseConnection connection) throws Exception;
+
+}
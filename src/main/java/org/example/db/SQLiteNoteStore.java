@@ -0,0 +1,1192 @@
+package org.example.db;
+
+import org.example.Config;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Storage of the notes in SQLite, the default backend of the DB.
+ * Thread-safe: reads run in parallel on a pool of connections, writes are serialized on a single connection.
+ * Optionally the notes are spread over several DB files (shards) by ID, each with its own connections and writer,
+ * so writes to different shards run in parallel. Collections are then read from all shards in parallel and merged.
+ */
+class SQLiteNoteStore implements NoteStore {
+
+    // name of our DB, in relative path (unless configured otherwise)
+    private static final String DATABASE = "NotesDB";
+    private static final String DATABASE_URL_PREFIX = "jdbc:sqlite:";
+
+    // structure of "Note" table to store notes (duh!)
+    private static final String NOTE_TABLE = "Note";
+    private static final String NOTE_ID_FIELD = "n_id";
+    private static final String NOTE_TITLE_FIELD = "n_title";
+    private static final String NOTE_CONTENT_FIELD = "n_content";
+    private static final String NOTE_TIMESTAMP_FIELD = "n_timestamp";
+    private static final String CREATE_NOTE_TABLE_SQL =
+            "CREATE TABLE IF NOT EXISTS " + NOTE_TABLE +
+            " (" +
+                SQLiteNoteStore.NOTE_ID_FIELD + " INTEGER NOT NULL PRIMARY KEY AUTOINCREMENT, " +
+                SQLiteNoteStore.NOTE_TITLE_FIELD + " TEXT NOT NULL, " +
+                SQLiteNoteStore.NOTE_CONTENT_FIELD + " TEXT, " +
+                SQLiteNoteStore.NOTE_TIMESTAMP_FIELD + " INTEGER NOT NULL" +
+            ");";
+
+    // index to retrieve the notes changed since a given time, or ordered by timestamp (then ID, timestamps aren't
+    // unique), covering the listings without content so they don't read the rows (the content is stored before the
+    // timestamp, so would have to be skipped)
+    private static final String CREATE_NOTE_TIMESTAMP_INDEX_SQL =
+            "CREATE INDEX IF NOT EXISTS " + SQLiteNoteStore.NOTE_TABLE + "_timestamp_id_title ON " + SQLiteNoteStore.NOTE_TABLE +
+            " (" + SQLiteNoteStore.NOTE_TIMESTAMP_FIELD + ", " + SQLiteNoteStore.NOTE_ID_FIELD + ", " + SQLiteNoteStore.NOTE_TITLE_FIELD + ");";
+    // the former indexes by timestamp only, and by timestamp and title (not ordered by ID), superseded by the one above
+    private static final String DROP_NOTE_TIMESTAMP_INDEX_SQL =
+            "DROP INDEX IF EXISTS " + SQLiteNoteStore.NOTE_TABLE + "_timestamp;";
+    private static final String DROP_NOTE_TIMESTAMP_TITLE_INDEX_SQL =
+            "DROP INDEX IF EXISTS " + SQLiteNoteStore.NOTE_TABLE + "_timestamp_title;";
+    // index covering the listings without content ordered by ID, only used where requested (the table is preferred)
+    private static final String NOTE_LIST_INDEX = SQLiteNoteStore.NOTE_TABLE + "_list";
+    private static final String CREATE_NOTE_LIST_INDEX_SQL =
+            "CREATE INDEX IF NOT EXISTS " + SQLiteNoteStore.NOTE_LIST_INDEX + " ON " + SQLiteNoteStore.NOTE_TABLE +
+            " (" + SQLiteNoteStore.NOTE_ID_FIELD + ", " + SQLiteNoteStore.NOTE_TITLE_FIELD + ", " + SQLiteNoteStore.NOTE_TIMESTAMP_FIELD + ");";
+
+    // structure of "NoteTombstone" table, recording when notes were deleted, kept for the retention period
+    private static final String TOMBSTONE_TABLE = "NoteTombstone";
+    private static final String TOMBSTONE_ID_FIELD = "t_id";
+    private static final String TOMBSTONE_TIMESTAMP_FIELD = "t_timestamp";
+    private static final String CREATE_TOMBSTONE_TABLE_SQL =
+            "CREATE TABLE IF NOT EXISTS " + SQLiteNoteStore.TOMBSTONE_TABLE +
+            " (" +
+                SQLiteNoteStore.TOMBSTONE_ID_FIELD + " INTEGER NOT NULL PRIMARY KEY, " +
+                SQLiteNoteStore.TOMBSTONE_TIMESTAMP_FIELD + " INTEGER NOT NULL" +
+            ");";
+    private static final String CREATE_TOMBSTONE_TIMESTAMP_INDEX_SQL =
+            "CREATE INDEX IF NOT EXISTS " + SQLiteNoteStore.TOMBSTONE_TABLE + "_timestamp ON " + SQLiteNoteStore.TOMBSTONE_TABLE + " (" + SQLiteNoteStore.TOMBSTONE_TIMESTAMP_FIELD + ");";
+
+    // structure of "NoteMeta" table, holding single values about the notes by key
+    private static final String META_TABLE = "NoteMeta";
+    private static final String META_KEY_FIELD = "m_key";
+    private static final String META_VALUE_FIELD = "m_value";
+    private static final String CREATE_META_TABLE_SQL =
+            "CREATE TABLE IF NOT EXISTS " + SQLiteNoteStore.META_TABLE +
+            " (" +
+                SQLiteNoteStore.META_KEY_FIELD + " TEXT NOT NULL PRIMARY KEY, " +
+                SQLiteNoteStore.META_VALUE_FIELD + " INTEGER NOT NULL" +
+            ");";
+    // time since which all deletions are recorded as tombstones, changes before can't be synced
+    private static final String META_SYNC_HORIZON = "sync_horizon";
+    private static final String INIT_SYNC_HORIZON_SQL =
+            "INSERT OR IGNORE INTO " + SQLiteNoteStore.META_TABLE + " VALUES ('" + SQLiteNoteStore.META_SYNC_HORIZON + "', CAST(strftime('%s', 'now') AS INTEGER) * 1000);";
+    // index of the shard in a DB file, and the number of shards it's part of, fixed once the file is created
+    private static final String META_SHARD_INDEX = "shard_index";
+    private static final String META_SHARD_COUNT = "shard_count";
+    private static final String INIT_SHARD_SQL =
+            "INSERT OR IGNORE INTO " + SQLiteNoteStore.META_TABLE + " VALUES ('" + SQLiteNoteStore.META_SHARD_INDEX + "', %d), ('" + SQLiteNoteStore.META_SHARD_COUNT + "', %d);";
+    private static final String SELECT_META_SQL =
+            "SELECT " + SQLiteNoteStore.META_VALUE_FIELD + " FROM " + SQLiteNoteStore.META_TABLE + " WHERE " + SQLiteNoteStore.META_KEY_FIELD + " = ?";
+
+    // full-text index over title and content of the notes, kept in sync by triggers on the "Note" table
+    private static final String SEARCH_TABLE = "NoteSearch";
+    private static final String CREATE_SEARCH_TABLE_SQL =
+            "CREATE VIRTUAL TABLE " + SQLiteNoteStore.SEARCH_TABLE + " USING fts5(" +
+                SQLiteNoteStore.NOTE_TITLE_FIELD + ", " + SQLiteNoteStore.NOTE_CONTENT_FIELD + ", " +
+                "content='" + SQLiteNoteStore.NOTE_TABLE + "', content_rowid='" + SQLiteNoteStore.NOTE_ID_FIELD + "'" +
+            ");";
+    private static final String[] CREATE_SEARCH_TRIGGERS_SQL = {
+            "CREATE TRIGGER IF NOT EXISTS " + SQLiteNoteStore.SEARCH_TABLE + "_insert AFTER INSERT ON " + SQLiteNoteStore.NOTE_TABLE + " BEGIN " +
+                "INSERT INTO " + SQLiteNoteStore.SEARCH_TABLE + "(rowid, " + SQLiteNoteStore.NOTE_TITLE_FIELD + ", " + SQLiteNoteStore.NOTE_CONTENT_FIELD + ") " +
+                "VALUES (new." + SQLiteNoteStore.NOTE_ID_FIELD + ", new." + SQLiteNoteStore.NOTE_TITLE_FIELD + ", new." + SQLiteNoteStore.NOTE_CONTENT_FIELD + "); " +
+            "END;",
+            "CREATE TRIGGER IF NOT EXISTS " + SQLiteNoteStore.SEARCH_TABLE + "_delete AFTER DELETE ON " + SQLiteNoteStore.NOTE_TABLE + " BEGIN " +
+                "INSERT INTO " + SQLiteNoteStore.SEARCH_TABLE + "(" + SQLiteNoteStore.SEARCH_TABLE + ", rowid, " + SQLiteNoteStore.NOTE_TITLE_FIELD + ", " + SQLiteNoteStore.NOTE_CONTENT_FIELD + ") " +
+                "VALUES ('delete', old." + SQLiteNoteStore.NOTE_ID_FIELD + ", old." + SQLiteNoteStore.NOTE_TITLE_FIELD + ", old." + SQLiteNoteStore.NOTE_CONTENT_FIELD + "); " +
+            "END;",
+            "CREATE TRIGGER IF NOT EXISTS " + SQLiteNoteStore.SEARCH_TABLE + "_update AFTER UPDATE ON " + SQLiteNoteStore.NOTE_TABLE + " BEGIN " +
+                "INSERT INTO " + SQLiteNoteStore.SEARCH_TABLE + "(" + SQLiteNoteStore.SEARCH_TABLE + ", rowid, " + SQLiteNoteStore.NOTE_TITLE_FIELD + ", " + SQLiteNoteStore.NOTE_CONTENT_FIELD + ") " +
+                "VALUES ('delete', old." + SQLiteNoteStore.NOTE_ID_FIELD + ", old." + SQLiteNoteStore.NOTE_TITLE_FIELD + ", old." + SQLiteNoteStore.NOTE_CONTENT_FIELD + "); " +
+                "INSERT INTO " + SQLiteNoteStore.SEARCH_TABLE + "(rowid, " + SQLiteNoteStore.NOTE_TITLE_FIELD + ", " + SQLiteNoteStore.NOTE_CONTENT_FIELD + ") " +
+                "VALUES (new." + SQLiteNoteStore.NOTE_ID_FIELD + ", new." + SQLiteNoteStore.NOTE_TITLE_FIELD + ", new." + SQLiteNoteStore.NOTE_CONTENT_FIELD + "); " +
+            "END;"
+    };
+    // (re)build the index from the existing notes, e.g. once for a DB created before the index existed
+    private static final String REBUILD_SEARCH_TABLE_SQL =
+            "INSERT INTO " + SQLiteNoteStore.SEARCH_TABLE + "(" + SQLiteNoteStore.SEARCH_TABLE + ") VALUES ('rebuild')";
+    private static final String SELECT_SEARCH_TABLE_SQL =
+            "SELECT name FROM sqlite_master WHERE type = 'table' AND name = '" + SQLiteNoteStore.SEARCH_TABLE + "'";
+
+    // statements on the "Note" table, built once and prepared once per connection
+    private static final String INSERT_NOTE_SQL =
+            "INSERT INTO " + SQLiteNoteStore.NOTE_TABLE +
+            "(" + SQLiteNoteStore.NOTE_ID_FIELD + ", " + SQLiteNoteStore.NOTE_TITLE_FIELD + ", " + SQLiteNoteStore.NOTE_CONTENT_FIELD + ", " + SQLiteNoteStore.NOTE_TIMESTAMP_FIELD + ") " +
+            "VALUES (?, ?, ?, ?)";
+    private static final String UPDATE_NOTE_SQL =
+            "UPDATE " + SQLiteNoteStore.NOTE_TABLE + " SET " +
+            SQLiteNoteStore.NOTE_TITLE_FIELD + " = ?, " + SQLiteNoteStore.NOTE_CONTENT_FIELD + " = ?, " + SQLiteNoteStore.NOTE_TIMESTAMP_FIELD + " = ? " +
+            "WHERE " + SQLiteNoteStore.NOTE_ID_FIELD + " = ?";
+    private static final String DELETE_NOTE_SQL =
+            "DELETE FROM " + SQLiteNoteStore.NOTE_TABLE + " WHERE " + SQLiteNoteStore.NOTE_ID_FIELD + " = ?";
+    private static final String SELECT_NOTE_SQL =
+            "SELECT * FROM " + SQLiteNoteStore.NOTE_TABLE + " WHERE " + SQLiteNoteStore.NOTE_ID_FIELD + " = ?";
+    // only the timestamp, from the index covering the listings by ID rather than the row (with the content before it)
+    private static final String SELECT_NOTE_TIMESTAMP_SQL =
+            "SELECT " + SQLiteNoteStore.NOTE_TIMESTAMP_FIELD + " FROM " + SQLiteNoteStore.NOTE_TABLE +
+            " INDEXED BY " + SQLiteNoteStore.NOTE_LIST_INDEX + " WHERE " + SQLiteNoteStore.NOTE_ID_FIELD + " = ?";
+    private static final String SELECT_LAST_MODIFIED_SQL =
+            "SELECT MAX(" +
+                "(SELECT IFNULL(MAX(" + SQLiteNoteStore.NOTE_TIMESTAMP_FIELD + "), 0) FROM " + SQLiteNoteStore.NOTE_TABLE + "), " +
+                "(SELECT IFNULL(MAX(" + SQLiteNoteStore.TOMBSTONE_TIMESTAMP_FIELD + "), 0) FROM " + SQLiteNoteStore.TOMBSTONE_TABLE + ")" +
+            ")";
+    private static final String SELECT_CHANGED_NOTES_SQL =
+            "SELECT * FROM " + SQLiteNoteStore.NOTE_TABLE +
+            " WHERE " + SQLiteNoteStore.NOTE_TIMESTAMP_FIELD + " > ?" +
+            " ORDER BY " + SQLiteNoteStore.NOTE_TIMESTAMP_FIELD;
+    private static final String INSERT_TOMBSTONE_SQL =
+            "INSERT OR REPLACE INTO " + SQLiteNoteStore.TOMBSTONE_TABLE + " VALUES (?, ?)";
+    private static final String SELECT_TOMBSTONES_SQL =
+            "SELECT * FROM " + SQLiteNoteStore.TOMBSTONE_TABLE +
+            " WHERE " + SQLiteNoteStore.TOMBSTONE_TIMESTAMP_FIELD + " > ?" +
+            " ORDER BY " + SQLiteNoteStore.TOMBSTONE_TIMESTAMP_FIELD;
+    private static final String DELETE_TOMBSTONES_SQL =
+            "DELETE FROM " + SQLiteNoteStore.TOMBSTONE_TABLE + " WHERE " + SQLiteNoteStore.TOMBSTONE_TIMESTAMP_FIELD + " < ?";
+    private static final String SELECT_SYNC_HORIZON_SQL =
+            "SELECT " + SQLiteNoteStore.META_VALUE_FIELD + " FROM " + SQLiteNoteStore.META_TABLE +
+            " WHERE " + SQLiteNoteStore.META_KEY_FIELD + " = '" + SQLiteNoteStore.META_SYNC_HORIZON + "'";
+    private static final String UPDATE_SYNC_HORIZON_SQL =
+            "UPDATE " + SQLiteNoteStore.META_TABLE + " SET " + SQLiteNoteStore.META_VALUE_FIELD + " = MAX(" + SQLiteNoteStore.META_VALUE_FIELD + ", ?)" +
+            " WHERE " + SQLiteNoteStore.META_KEY_FIELD + " = '" + SQLiteNoteStore.META_SYNC_HORIZON + "'";
+    // highest ID ever used, including deleted notes (as recorded for AUTOINCREMENT)
+    private static final String SELECT_LAST_ID_SQL =
+            "SELECT MAX(" +
+                "(SELECT IFNULL(MAX(" + SQLiteNoteStore.NOTE_ID_FIELD + "), 0) FROM " + SQLiteNoteStore.NOTE_TABLE + "), " +
+                "(SELECT IFNULL(MAX(seq), 0) FROM sqlite_sequence WHERE name = '" + SQLiteNoteStore.NOTE_TABLE + "')" +
+            ")";
+    // notes looked up by a list of IDs at a time, see getNotes(), the lists are padded to the next power of two
+    // so only a few statements are prepared: IN (?), IN (?, ?), IN (?, ?, ?, ?), ...
+    private static final int SELECT_NOTES_BATCH_SIZE = 256;
+    private static final String[] SELECT_NOTES_SQL = SQLiteNoteStore.selectNotesSql();
+    private static final String SELECT_ALL_NOTES_SQL =
+            "SELECT * FROM " + SQLiteNoteStore.NOTE_TABLE;
+    // pages of the listings, by the fields and the order of the query, see selectNotesPageSql()
+    private static final String[] SELECT_NOTES_PAGE_SQL = SQLiteNoteStore.selectNotesPageSql();
+    private static final String SEARCH_RANK_FIELD = "n_rank";
+    private static final String SEARCH_NOTES_SQL =
+            "SELECT " + SQLiteNoteStore.NOTE_TABLE + ".*, found.rank AS " + SQLiteNoteStore.SEARCH_RANK_FIELD + " FROM " + SQLiteNoteStore.NOTE_TABLE + " JOIN (" +
+                "SELECT rowid, rank FROM " + SQLiteNoteStore.SEARCH_TABLE +
+                " WHERE " + SQLiteNoteStore.SEARCH_TABLE + " MATCH ? ORDER BY rank LIMIT ? OFFSET ?" +
+            ") AS found ON " + SQLiteNoteStore.NOTE_TABLE + "." + SQLiteNoteStore.NOTE_ID_FIELD + " = found.rowid" +
+            " ORDER BY found.rank";
+
+    // supported write modes, see Config.DB_WRITE_MODE
+    private static final String WRITE_MODE_LATENCY = "latency";
+    private static final String WRITE_MODE_THROUGHPUT = "throughput";
+
+    // notes read per shard at a time, when merging the collection of all shards
+    private static final int SHARD_PAGE_SIZE = 1024;
+
+    // the DB files with their connections, a single one unless sharded, and the shard for the next new note
+    private DatabaseShard[] shards = null;
+    private final AtomicInteger nextShard = new AtomicInteger();
+    // prepared statement counters of all connections
+    private final StatementStatistics statistics = new StatementStatistics();
+    // threads reading all shards in parallel, only if sharded
+    private ExecutorService fanOut = null;
+    // last timestamp assigned to a change, timestamps are unique and increasing in the order of the writes (of a shard)
+    private final AtomicLong clock = new AtomicLong();
+
+    /**
+     * Open the connections to the DB and create it (if not already existing).
+     */
+    SQLiteNoteStore() throws Exception {
+        String writeMode = Config.getString(Config.DB_WRITE_MODE, SQLiteNoteStore.WRITE_MODE_LATENCY);
+        if (!writeMode.equals(SQLiteNoteStore.WRITE_MODE_LATENCY) && !writeMode.equals(SQLiteNoteStore.WRITE_MODE_THROUGHPUT)) {
+            throw new IllegalArgumentException("unknown " + Config.DB_WRITE_MODE + ": " + writeMode);
+        }
+        int shardCount = Config.getInt(Config.DB_SHARDS, 1);
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("invalid " + Config.DB_SHARDS + ": " + shardCount);
+        }
+        String path = Config.getString(Config.DB_PATH, SQLiteNoteStore.DATABASE);
+        int readers = Config.getInt(Config.DB_READERS, Runtime.getRuntime().availableProcessors());
+        this.shards = new DatabaseShard[shardCount];
+        try {
+            for (int i = 0; i < shardCount; i++) {
+                // a single DB keeps its plain file name, shards are numbered
+                this.shards[i] = this.openShard(shardCount == 1 ? path : path + "-" + i, i, shardCount, readers);
+                // group the writes, if configured
+                if (writeMode.equals(SQLiteNoteStore.WRITE_MODE_THROUGHPUT)) {
+                    this.shards[i].setWriter(new GroupCommitWriter(
+                            this.shards[i].getPool(),
+                            Config.getInt(Config.DB_BATCH_SIZE, 256),
+                            Config.getLong(Config.DB_BATCH_DELAY, 2),
+                            Config.getInt(Config.DB_WRITE_QUEUE, 4096)));
+                }
+            }
+        } catch (Exception e) {
+            // don't leave the shards opened so far behind
+            for (DatabaseShard shard : this.shards) {
+                if (shard != null) {
+                    shard.close();
+                }
+            }
+            throw e;
+        }
+        // continue the timestamps from the last change
+        this.clock.set(this.selectLastModified());
+        if (shardCount > 1) {
+            // enough threads to use all reader connections of all shards
+            AtomicInteger count = new AtomicInteger();
+            this.fanOut = Executors.newFixedThreadPool(shardCount * Math.max(1, readers), runnable -> {
+                Thread thread = new Thread(runnable, "shard-reader-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Open the DB file of the shard with given index out of the given number of shards, creating it if needed.
+     * Fails if the file was created for another shard, its notes would be looked up in the wrong shard.
+     */
+    private DatabaseShard openShard(String path, int index, int count, int readers) throws Exception {
+        // create the connections to the DB, the DB/table is created before opening the readers
+        ConnectionPool pool = new ConnectionPool(
+                SQLiteNoteStore.DATABASE_URL_PREFIX + path,
+                readers,
+                Config.getInt(Config.DB_BUSY_TIMEOUT, 5000),
+                this.statistics,
+                SQLiteNoteStore.CREATE_NOTE_TABLE_SQL,
+                SQLiteNoteStore.CREATE_NOTE_TIMESTAMP_INDEX_SQL,
+                SQLiteNoteStore.DROP_NOTE_TIMESTAMP_INDEX_SQL,
+                SQLiteNoteStore.DROP_NOTE_TIMESTAMP_TITLE_INDEX_SQL,
+                SQLiteNoteStore.CREATE_NOTE_LIST_INDEX_SQL,
+                SQLiteNoteStore.CREATE_TOMBSTONE_TABLE_SQL,
+                SQLiteNoteStore.CREATE_TOMBSTONE_TIMESTAMP_INDEX_SQL,
+                SQLiteNoteStore.CREATE_META_TABLE_SQL,
+                SQLiteNoteStore.INIT_SYNC_HORIZON_SQL,
+                String.format(SQLiteNoteStore.INIT_SHARD_SQL, index, count));
+        DatabaseShard shard = new DatabaseShard(index, count, pool, this.clock);
+        try {
+            DatabaseConnection connection = pool.acquireWriter();
+            try {
+                if (SQLiteNoteStore.selectMeta(connection, SQLiteNoteStore.META_SHARD_INDEX) != index || SQLiteNoteStore.selectMeta(connection, SQLiteNoteStore.META_SHARD_COUNT) != count) {
+                    throw new IllegalStateException("DB " + path + " is shard " + SQLiteNoteStore.selectMeta(connection, SQLiteNoteStore.META_SHARD_INDEX) +
+                            " of " + SQLiteNoteStore.selectMeta(connection, SQLiteNoteStore.META_SHARD_COUNT) + ", not " + index + " of " + count);
+                }
+                // new notes continue after the highest ID ever used
+                shard.setLastID((int) SQLiteNoteStore.selectLong(connection, SQLiteNoteStore.SELECT_LAST_ID_SQL));
+            } finally {
+                pool.releaseWriter();
+            }
+            this.createSearchIndex(shard);
+        } catch (Exception e) {
+            pool.close();
+            throw e;
+        }
+        return shard;
+    }
+
+    /**
+     * Read the value with given key of the "NoteMeta" table, -1 if not set.
+     */
+    private static long selectMeta(DatabaseConnection connection, String key) throws Exception {
+        long value = -1;
+        PreparedStatement preparedStatement = connection.getPreparedStatement(SQLiteNoteStore.SELECT_META_SQL);
+        preparedStatement.setString(1, key);
+        ResultSet resultSet = preparedStatement.executeQuery();
+        if (resultSet.next()) {
+            value = resultSet.getLong(1);
+        }
+        resultSet.close();
+        return value;
+    }
+
+    /**
+     * Run the given query returning a single number, 0 if it returns nothing.
+     */
+    private static long selectLong(DatabaseConnection connection, String sql) throws Exception {
+        long value = 0;
+        PreparedStatement preparedStatement = connection.getPreparedStatement(sql);
+        ResultSet resultSet = preparedStatement.executeQuery();
+        if (resultSet.next()) {
+            value = resultSet.getLong(1);
+        }
+        resultSet.close();
+        return value;
+    }
+
+    /**
+     * Get the shard holding the note with given ID.
+     */
+    private DatabaseShard shardOf(int id) {
+        return this.shards[Math.floorMod(id - 1, this.shards.length)];
+    }
+
+    /**
+     * Pick the shard for a new note, in turn so the writes spread evenly.
+     */
+    private DatabaseShard shardForNew() {
+        return this.shards[Math.floorMod(this.nextShard.getAndIncrement(), this.shards.length)];
+    }
+
+    /**
+     * Run the given read on a reader connection of the given shard.
+     */
+    private <T> T read(DatabaseShard shard, ReadOperation<T> operation) throws Exception {
+        DatabaseConnection connection = shard.getPool().acquireReader();
+        try {
+            return operation.execute(connection);
+        } finally {
+            shard.getPool().releaseReader(connection);
+        }
+    }
+
+    /**
+     * Run the given read on every shard, in parallel on the fan-out threads (the first shard on the calling thread),
+     * returning the results by shard.
+     */
+    private <T> ArrayList<T> readAll(ReadOperation<T> operation) throws Exception {
+        ArrayList<Future<T>> futures = new ArrayList<Future<T>>(this.shards.length);
+        for (int i = 1; i < this.shards.length; i++) {
+            DatabaseShard shard = this.shards[i];
+            futures.add(this.fanOut.submit(() -> this.read(shard, operation)));
+        }
+        ArrayList<T> results = new ArrayList<T>(this.shards.length);
+        results.add(this.read(this.shards[0], operation));
+        for (Future<T> future : futures) {
+            results.add(SQLiteNoteStore.await(future));
+        }
+        return results;
+    }
+
+    /**
+     * Wait for the result of the given read, rethrowing what went wrong if it failed.
+     */
+    private static <T> T await(Future<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Delete the tombstones older than the given time, moving the sync horizon past them.
+     */
+    @Override
+    public void purgeTombstones(long cutoff) {
+        for (DatabaseShard shard : this.shards) {
+            try {
+                shard.writeInTransaction(connection -> {
+                    PreparedStatement preparedStatement = connection.getPreparedStatement(SQLiteNoteStore.UPDATE_SYNC_HORIZON_SQL);
+                    preparedStatement.setLong(1, cutoff);
+                    preparedStatement.executeUpdate();
+                    preparedStatement = connection.getPreparedStatement(SQLiteNoteStore.DELETE_TOMBSTONES_SQL);
+                    preparedStatement.setLong(1, cutoff);
+                    return preparedStatement.executeUpdate();
+                });
+            } catch (Exception e) {
+                // try again next time
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Assign the timestamp for a change, now or just after the previous change if that's later.
+     * To be called while holding the writer connection, so timestamps increase in the order of the commits (of each
+     * shard, the clock is shared so timestamps are unique across shards).
+     */
+    private long nextTimestamp() {
+        long now = System.currentTimeMillis();
+        return this.clock.accumulateAndGet(now, (last, time) -> Math.max(last + 1, time));
+    }
+
+    /**
+     * Create the full-text index and its triggers, if not existing yet, indexing the notes already in the DB.
+     */
+    private void createSearchIndex(DatabaseShard shard) throws Exception {
+        shard.writeInTransaction(connection -> {
+            Statement statement = connection.getConnection().createStatement();
+            ResultSet resultSet = statement.executeQuery(SQLiteNoteStore.SELECT_SEARCH_TABLE_SQL);
+            boolean exists = resultSet.next();
+            resultSet.close();
+            if (!exists) {
+                // new index, fill it
+                statement.execute(SQLiteNoteStore.CREATE_SEARCH_TABLE_SQL);
+                statement.execute(SQLiteNoteStore.REBUILD_SEARCH_TABLE_SQL);
+            }
+            for (String sql : SQLiteNoteStore.CREATE_SEARCH_TRIGGERS_SQL) {
+                statement.execute(sql);
+            }
+            statement.close();
+            return null;
+        });
+    }
+
+    /**
+     * Get the timestamp of the last modified Note (of all shards), 0 if there's none.
+     */
+    private long selectLastModified() throws Exception {
+        long timestamp = 0;
+        for (DatabaseShard shard : this.shards) {
+            timestamp = Math.max(timestamp, this.read(shard, connection -> SQLiteNoteStore.selectLong(connection, SQLiteNoteStore.SELECT_LAST_MODIFIED_SQL)));
+        }
+        return timestamp;
+    }
+
+    /**
+     * Parse a single (first) ResultSet from query to Note.
+     */
+    private Note resultSetToNote(ResultSet resultSet) throws Exception {
+        Note note = null;
+        if (resultSet != null && resultSet.next()) {
+            // ResultSet found, parse
+            note = new Note(
+                    resultSet.getInt(SQLiteNoteStore.NOTE_ID_FIELD),
+                    resultSet.getString(SQLiteNoteStore.NOTE_TITLE_FIELD),
+                    resultSet.getString(SQLiteNoteStore.NOTE_CONTENT_FIELD),
+                    resultSet.getLong(SQLiteNoteStore.NOTE_TIMESTAMP_FIELD));
+        }
+        return note;
+    }
+
+    /**
+     * Parse the next row of a ResultSet from query to Note, with only the fields of the given query (and always ID and
+     * timestamp), or null if there are no more.
+     */
+    private Note resultSetToNote(ResultSet resultSet, NoteQuery query) throws Exception {
+        Note note = null;
+        if (resultSet.next()) {
+            note = new Note(
+                    resultSet.getInt(SQLiteNoteStore.NOTE_ID_FIELD),
+                    query.hasTitle() ? resultSet.getString(SQLiteNoteStore.NOTE_TITLE_FIELD) : null,
+                    query.hasContent() ? resultSet.getString(SQLiteNoteStore.NOTE_CONTENT_FIELD) : null,
+                    resultSet.getLong(SQLiteNoteStore.NOTE_TIMESTAMP_FIELD));
+        }
+        return note;
+    }
+
+    /**
+     * Parse a ResultSet from query to list of Notes.
+     */
+    private ArrayList<Note> resultSetToNoteList(ResultSet resultSet) throws Exception {
+        ArrayList<Note> notes = new ArrayList<Note>();
+        // loop and parse notes one by one
+        Note note = null;
+        while ((note = this.resultSetToNote(resultSet)) != null) {
+            notes.add(note);
+        }
+        return notes;
+    }
+
+    /**
+     * Insert the given Note into the next shard, with timestamp now.
+     */
+    @Override
+    public void addNote(Note note) throws Exception {
+        DatabaseShard shard = this.shardForNew();
+        shard.write(connection -> {
+            note.setID(shard.nextID());
+            note.setTimestamp(this.nextTimestamp());
+            PreparedStatement preparedStatement = connection.getPreparedStatement(SQLiteNoteStore.INSERT_NOTE_SQL);
+            preparedStatement.setInt(1, note.getID());
+            preparedStatement.setString(2, note.getTitle());
+            preparedStatement.setString(3, note.getContent());
+            preparedStatement.setLong(4, note.getTimestamp());
+            return preparedStatement.executeUpdate();
+        });
+    }
+
+    /**
+     * Insert the given Notes spread over the shards in turn (like one by one), with timestamp now, as one JDBC batch
+     * and transaction per shard. When a shard fails those of the shards before stay added, the others get no ID.
+     */
+    @Override
+    public void addNotes(List<Note> notes) throws Exception {
+        ArrayList<ArrayList<Note>> batches = new ArrayList<ArrayList<Note>>(this.shards.length);
+        for (int i = 0; i < this.shards.length; i++) {
+            batches.add(new ArrayList<Note>(notes.size() / this.shards.length + 1));
+        }
+        int first = this.nextShard.getAndAdd(notes.size());
+        for (int i = 0; i < notes.size(); i++) {
+            batches.get(Math.floorMod(first + i, this.shards.length)).add(notes.get(i));
+        }
+        for (int i = 0; i < this.shards.length; i++) {
+            try {
+                if (batches.get(i).size() != 0) {
+                    this.addNotes(this.shards[i], batches.get(i));
+                }
+            } catch (Exception e) {
+                // rolled back, this shard's and the following ones' notes aren't added
+                for (int j = i; j < this.shards.length; j++) {
+                    for (Note note : batches.get(j)) {
+                        note.setID(-1);
+                    }
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Insert the given Notes into the given shard as one JDBC batch, with timestamp now, in one transaction.
+     */
+    private void addNotes(DatabaseShard shard, List<Note> notes) throws Exception {
+        shard.writeInTransaction(connection -> {
+            PreparedStatement preparedStatement = connection.getPreparedStatement(SQLiteNoteStore.INSERT_NOTE_SQL);
+            for (Note note : notes) {
+                note.setID(shard.nextID());
+                note.setTimestamp(this.nextTimestamp());
+                preparedStatement.setInt(1, note.getID());
+                preparedStatement.setString(2, note.getTitle());
+                preparedStatement.setString(3, note.getContent());
+                preparedStatement.setLong(4, note.getTimestamp());
+                preparedStatement.addBatch();
+            }
+            preparedStatement.executeBatch();
+            return null;
+        });
+    }
+
+    /**
+     * Delete Note with given ID from its shard, together with inserting its tombstone.
+     */
+    @Override
+    public long deleteNote(int id) throws Exception {
+        return this.shardOf(id).writeInTransaction(connection -> {
+            PreparedStatement preparedStatement = connection.getPreparedStatement(SQLiteNoteStore.DELETE_NOTE_SQL);
+            preparedStatement.setInt(1, id);
+            if (preparedStatement.executeUpdate() == 0) {
+                // nothing deleted
+                return -1L;
+            }
+            long deleted = this.nextTimestamp();
+            preparedStatement = connection.getPreparedStatement(SQLiteNoteStore.INSERT_TOMBSTONE_SQL);
+            preparedStatement.setInt(1, id);
+            preparedStatement.setLong(2, deleted);
+            preparedStatement.executeUpdate();
+            return deleted;
+        });
+    }
+
+    @Override
+    public Note getNote(int id) throws Exception {
+        Note note = null;
+        // retrieve Note with given ID from its shard
+        DatabaseShard shard = this.shardOf(id);
+        DatabaseConnection connection = shard.getPool().acquireReader();
+        try {
+            PreparedStatement preparedStatement = connection.getPreparedStatement(SQLiteNoteStore.SELECT_NOTE_SQL);
+            preparedStatement.setInt(1, id);
+            ResultSet resultSet = preparedStatement.executeQuery();
+            // parse found ResultSet to Note
+            note = this.resultSetToNote(resultSet);
+            // done, close
+            resultSet.close();
+        } finally {
+            shard.getPool().releaseReader(connection);
+        }
+        return note;
+    }
+
+    /**
+     * Retrieve the timestamp of the Note with given ID from its shard, -1 if not found.
+     */
+    @Override
+    public long getNoteTimestamp(int id) throws Exception {
+        return this.read(this.shardOf(id), connection -> {
+            PreparedStatement preparedStatement = connection.getPreparedStatement(SQLiteNoteStore.SELECT_NOTE_TIMESTAMP_SQL);
+            preparedStatement.setInt(1, id);
+            ResultSet resultSet = preparedStatement.executeQuery();
+            long timestamp = resultSet.next() ? resultSet.getLong(1) : -1;
+            resultSet.close();
+            return timestamp;
+        });
+    }
+
+    /**
+     * Retrieve Note with given ID and serialize it.
+     */
+    @Override
+    public SerializedNote getSerializedNote(int id) throws Exception {
+        Note note = this.getNote(id);
+        return note != null ? new SerializedNote(note) : null;
+    }
+
+    /**
+     * Build the statements selecting the notes with a list of IDs, one for each power of two up to the batch size.
+     */
+    private static String[] selectNotesSql() {
+        String[] sql = new String[Integer.numberOfTrailingZeros(SQLiteNoteStore.SELECT_NOTES_BATCH_SIZE) + 1];
+        for (int i = 0; i < sql.length; i++) {
+            StringBuilder parameters = new StringBuilder("?");
+            for (int j = 1; j < 1 << i; j++) {
+                parameters.append(", ?");
+            }
+            sql[i] = "SELECT * FROM " + SQLiteNoteStore.NOTE_TABLE + " WHERE " + SQLiteNoteStore.NOTE_ID_FIELD + " IN (" + parameters + ")";
+        }
+        return sql;
+    }
+
+    /**
+     * Build the statements reading a page of the listings, for all combinations of the fields read (title, content)
+     * and the order (by ID or timestamp, ascending or descending), see <code>selectNotesPageSql(NoteQuery)</code>.
+     * By timestamp the key is the timestamp and the ID, see <code>bindNotesPage()</code>.
+     * Without content the covering indexes are read instead of the table.
+     */
+    private static String[] selectNotesPageSql() {
+        String[] sql = new String[16];
+        for (int i = 0; i < sql.length; i++) {
+            boolean content = (i & 8) != 0;
+            boolean title = (i & 4) != 0;
+            boolean byTimestamp = (i & 2) != 0;
+            boolean descending = (i & 1) != 0;
+            String key = byTimestamp ? "(" + SQLiteNoteStore.NOTE_TIMESTAMP_FIELD + ", " + SQLiteNoteStore.NOTE_ID_FIELD + ")" : SQLiteNoteStore.NOTE_ID_FIELD;
+            String order = byTimestamp ? SQLiteNoteStore.NOTE_TIMESTAMP_FIELD + (descending ? " DESC, " : ", ") + SQLiteNoteStore.NOTE_ID_FIELD : SQLiteNoteStore.NOTE_ID_FIELD;
+            sql[i] = "SELECT " + SQLiteNoteStore.NOTE_ID_FIELD +
+                    (title ? ", " + SQLiteNoteStore.NOTE_TITLE_FIELD : "") +
+                    (content ? ", " + SQLiteNoteStore.NOTE_CONTENT_FIELD : "") +
+                    ", " + SQLiteNoteStore.NOTE_TIMESTAMP_FIELD +
+                    " FROM " + SQLiteNoteStore.NOTE_TABLE +
+                    (!content && !byTimestamp ? " INDEXED BY " + SQLiteNoteStore.NOTE_LIST_INDEX : "") +
+                    " WHERE " + key + (descending ? " < " : " > ") + (byTimestamp ? "(?, ?)" : "?") +
+                    " ORDER BY " + order + (descending ? " DESC" : "") + " LIMIT ?";
+        }
+        return sql;
+    }
+
+    /**
+     * Get the statement reading a page of the listing of the given query.
+     */
+    private static String selectNotesPageSql(NoteQuery query) {
+        int i = (query.hasContent() ? 8 : 0) | (query.hasTitle() ? 4 : 0) | (query.isByTimestamp() ? 2 : 0) | (query.isDescending() ? 1 : 0);
+        return SQLiteNoteStore.SELECT_NOTES_PAGE_SQL[i];
+    }
+
+    /**
+     * Bind the parameters of the statement reading a page of the listing of the given query: the cursor to start
+     * after (timestamp and ID, or only the ID) and the limit.
+     */
+    private static void bindNotesPage(PreparedStatement preparedStatement, NoteQuery query, NoteCursor after, int limit) throws Exception {
+        int parameter = 1;
+        preparedStatement.setLong(parameter++, after.getKey());
+        if (query.isByTimestamp()) {
+            preparedStatement.setInt(parameter++, after.getID());
+        }
+        preparedStatement.setInt(parameter, limit);
+    }
+
+    /**
+     * Retrieve the Notes with the given IDs, a batch of them per query (per shard, read in parallel if sharded),
+     * handing them to the callback in the order of the IDs.
+     */
+    @Override
+    public void getNotes(int[] ids, NoteCallback callback) throws Exception {
+        for (int start = 0; start < ids.length; start += SQLiteNoteStore.SELECT_NOTES_BATCH_SIZE) {
+            int end = Math.min(ids.length, start + SQLiteNoteStore.SELECT_NOTES_BATCH_SIZE);
+            // the IDs of the batch by shard
+            ArrayList<ArrayList<Integer>> shardIDs = new ArrayList<ArrayList<Integer>>(this.shards.length);
+            for (int i = 0; i < this.shards.length; i++) {
+                shardIDs.add(new ArrayList<Integer>());
+            }
+            for (int i = start; i < end; i++) {
+                shardIDs.get(Math.floorMod(ids[i] - 1, this.shards.length)).add(ids[i]);
+            }
+            // the other shards on the fan-out threads, the first one with IDs on the calling thread
+            HashMap<Integer, Note> notes = new HashMap<Integer, Note>();
+            ArrayList<Future<HashMap<Integer, Note>>> futures = new ArrayList<Future<HashMap<Integer, Note>>>();
+            int first = -1;
+            for (int i = 0; i < this.shards.length; i++) {
+                if (shardIDs.get(i).isEmpty()) {
+                    continue;
+                }
+                if (first < 0) {
+                    first = i;
+                } else {
+                    DatabaseShard shard = this.shards[i];
+                    List<Integer> shardBatch = shardIDs.get(i);
+                    futures.add(this.fanOut.submit(() -> this.read(shard, connection -> this.selectNotes(connection, shardBatch))));
+                }
+            }
+            List<Integer> firstBatch = shardIDs.get(first);
+            notes.putAll(this.read(this.shards[first], connection -> this.selectNotes(connection, firstBatch)));
+            for (Future<HashMap<Integer, Note>> future : futures) {
+                notes.putAll(SQLiteNoteStore.await(future));
+            }
+            // in the requested order
+            for (int i = start; i < end; i++) {
+                Note note = notes.get(ids[i]);
+                if (note != null) {
+                    callback.onNote(note);
+                }
+            }
+        }
+    }
+
+    /**
+     * Select the Notes with the given IDs (at most a batch of them) through the given connection, by ID.
+     */
+    private HashMap<Integer, Note> selectNotes(DatabaseConnection connection, List<Integer> ids) throws Exception {
+        // pad the list to the size of the statement, repeating the last ID
+        int size = 32 - Integer.numberOfLeadingZeros(ids.size() - 1);
+        PreparedStatement preparedStatement = connection.getPreparedStatement(SQLiteNoteStore.SELECT_NOTES_SQL[size]);
+        for (int i = 0; i < 1 << size; i++) {
+            preparedStatement.setInt(i + 1, ids.get(Math.min(i, ids.size() - 1)));
+        }
+        ResultSet resultSet = preparedStatement.executeQuery();
+        HashMap<Integer, Note> notes = new HashMap<Integer, Note>();
+        Note note = null;
+        while ((note = this.resultSetToNote(resultSet)) != null) {
+            notes.put(note.getID(), note);
+        }
+        resultSet.close();
+        return notes;
+    }
+
+    /**
+     * Serialized only on request, see <code>getSerializedNote()</code>.
+     */
+    @Override
+    public boolean isSerialized() {
+        return false;
+    }
+
+    /**
+     * Retrieve all Notes, from all shards in parallel.
+     */
+    @Override
+    public ArrayList<Note> getAllNotes() throws Exception {
+        // retrieve all Notes of each shard
+        ArrayList<ArrayList<Note>> shardNotes = this.readAll(connection -> {
+            PreparedStatement preparedStatement = connection.getPreparedStatement(SQLiteNoteStore.SELECT_ALL_NOTES_SQL);
+            ResultSet resultSet = preparedStatement.executeQuery();
+            // parse found ResultSet to list of Notes
+            ArrayList<Note> notes = this.resultSetToNoteList(resultSet);
+            // done, close
+            resultSet.close();
+            return notes;
+        });
+        if (shardNotes.size() == 1) {
+            return shardNotes.get(0);
+        }
+        ArrayList<Note> notes = new ArrayList<Note>(shardNotes.stream().mapToInt(ArrayList::size).sum());
+        shardNotes.forEach(notes::addAll);
+        return notes;
+    }
+
+    /**
+     * Retrieve Notes in the order of the given query, after the given cursor, up to <code>limit</code> Notes.
+     * A negative limit retrieves all remaining Notes.
+     * Only the fields of the query are selected, so without content it's neither read nor (by the covering indexes)
+     * skipped over.
+     * Notes are not collected, each one is handed to the callback as soon as it's read from the ResultSet.
+     * If sharded, the shards are read in parallel, page by page, and merged in the order of the query.
+     */
+    @Override
+    public void streamNotes(NoteQuery query, NoteCursor after, int limit, NoteCallback callback) throws Exception {
+        if (this.shards.length > 1) {
+            // read ahead from every shard, at most as many as requested per page
+            int pageSize = limit >= 0 ? Math.min(limit, SQLiteNoteStore.SHARD_PAGE_SIZE) : SQLiteNoteStore.SHARD_PAGE_SIZE;
+            ArrayList<PageSource> sources = new ArrayList<PageSource>(this.shards.length);
+            for (DatabaseShard shard : this.shards) {
+                sources.add(new PageSource(shard, query, after, pageSize, limit < 0 || limit > pageSize));
+            }
+            ShardMerger.merge(sources, query.comparator(), limit, callback::onNote);
+            return;
+        }
+        // retrieve the requested page of Notes from DB, keyset on the ID or timestamp (and ID)
+        DatabaseShard shard = this.shards[0];
+        DatabaseConnection connection = shard.getPool().acquireReader();
+        try {
+            PreparedStatement preparedStatement = connection.getPreparedStatement(SQLiteNoteStore.selectNotesPageSql(query));
+            SQLiteNoteStore.bindNotesPage(preparedStatement, query, after, limit);
+            ResultSet resultSet = preparedStatement.executeQuery();
+            try {
+                // parse and pass on the Notes one by one
+                Note note = null;
+                while ((note = this.resultSetToNote(resultSet, query)) != null) {
+                    callback.onNote(note);
+                }
+            } finally {
+                // done, close (even if the callback failed) so the statement can be reused
+                resultSet.close();
+            }
+        } finally {
+            shard.getPool().releaseReader(connection);
+        }
+    }
+
+    /**
+     * Read a page of Notes of the given shard, after the given cursor, in the order of the given query.
+     */
+    private ArrayList<Note> readNotesPage(DatabaseShard shard, NoteQuery query, NoteCursor after, int pageSize) throws Exception {
+        return this.read(shard, connection -> {
+            PreparedStatement preparedStatement = connection.getPreparedStatement(SQLiteNoteStore.selectNotesPageSql(query));
+            SQLiteNoteStore.bindNotesPage(preparedStatement, query, after, pageSize);
+            ResultSet resultSet = preparedStatement.executeQuery();
+            ArrayList<Note> notes = new ArrayList<Note>();
+            Note note = null;
+            while ((note = this.resultSetToNote(resultSet, query)) != null) {
+                notes.add(note);
+            }
+            resultSet.close();
+            return notes;
+        });
+    }
+
+    /**
+     * Search the Notes containing all the words of the given text, in title or content, best matches first.
+     * Skips the first <code>offset</code> matches and retrieves up to <code>limit</code> Notes
+     * (all remaining ones if negative), handing them one by one to the callback.
+     * A word ending with <code>*</code> matches any word starting with it.
+     * If sharded, the best matches of every shard are read in parallel and merged by rank. That's approximate: the rank
+     * (bm25) of each shard is computed from the statistics of its own notes (how many contain each word, how long
+     * they are), so ranks of different shards don't quite compare, and the order (and what a page at an offset holds)
+     * may differ with the number of shards. Each shard reads <code>offset + limit</code> matches for a page.
+     */
+    @Override
+    public void searchNotes(String text, int offset, int limit, NoteCallback callback) throws Exception {
+        String match = SQLiteNoteStore.textToMatchQuery(text);
+        if (match.length() == 0) {
+            // nothing to search for
+            return;
+        }
+        if (this.shards.length > 1) {
+            // any shard may hold all of the requested matches, so each one has to skip none of them (deep pages cost
+            // offset + limit matches per shard)
+            int shardLimit = limit >= 0 ? offset + limit : -1;
+            ArrayList<ArrayList<RankedNote>> shardMatches = this.readAll(connection -> this.selectMatches(connection, match, shardLimit));
+            ArrayList<ShardMerger.Source<RankedNote>> sources = new ArrayList<ShardMerger.Source<RankedNote>>(shardMatches.size());
+            for (ArrayList<RankedNote> matches : shardMatches) {
+                Iterator<RankedNote> iterator = matches.iterator();
+                sources.add(() -> iterator.hasNext() ? iterator.next() : null);
+            }
+            int[] skipped = {0};
+            ShardMerger.merge(sources, Comparator.comparingDouble(RankedNote::getRank), shardLimit, rankedNote -> {
+                if (skipped[0] < offset) {
+                    skipped[0]++;
+                } else {
+                    callback.onNote(rankedNote.getNote());
+                }
+            });
+            return;
+        }
+        DatabaseShard shard = this.shards[0];
+        DatabaseConnection connection = shard.getPool().acquireReader();
+        try {
+            PreparedStatement preparedStatement = connection.getPreparedStatement(SQLiteNoteStore.SEARCH_NOTES_SQL);
+            preparedStatement.setString(1, match);
+            preparedStatement.setInt(2, limit);
+            preparedStatement.setInt(3, offset);
+            ResultSet resultSet = preparedStatement.executeQuery();
+            try {
+                // parse and pass on the Notes one by one
+                Note note = null;
+                while ((note = this.resultSetToNote(resultSet)) != null) {
+                    callback.onNote(note);
+                }
+            } finally {
+                resultSet.close();
+            }
+        } finally {
+            shard.getPool().releaseReader(connection);
+        }
+    }
+
+    /**
+     * Read the best matches of the given full-text query through the given connection, up to <code>limit</code>
+     * (all if negative), with their rank.
+     */
+    private ArrayList<RankedNote> selectMatches(DatabaseConnection connection, String match, int limit) throws Exception {
+        ArrayList<RankedNote> matches = new ArrayList<RankedNote>();
+        PreparedStatement preparedStatement = connection.getPreparedStatement(SQLiteNoteStore.SEARCH_NOTES_SQL);
+        preparedStatement.setString(1, match);
+        preparedStatement.setInt(2, limit);
+        preparedStatement.setInt(3, 0);
+        ResultSet resultSet = preparedStatement.executeQuery();
+        try {
+            Note note = null;
+            while ((note = this.resultSetToNote(resultSet)) != null) {
+                matches.add(new RankedNote(note, resultSet.getDouble(SQLiteNoteStore.SEARCH_RANK_FIELD)));
+            }
+        } finally {
+            resultSet.close();
+        }
+        return matches;
+    }
+
+    /**
+     * Convert the given text to a full-text query matching all of its words.
+     * Each word is quoted, so no character of the text is taken as query syntax, except a trailing <code>*</code>.
+     */
+    private static String textToMatchQuery(String text) {
+        StringBuilder match = new StringBuilder();
+        for (String word : text.trim().split("\\s+")) {
+            boolean isPrefix = word.endsWith("*");
+            if (isPrefix) {
+                word = word.substring(0, word.length() - 1);
+            }
+            if (word.length() != 0) {
+                if (match.length() != 0) {
+                    match.append(' ');
+                }
+                match.append('"').append(word.replace("\"", "\"\"")).append('"');
+                if (isPrefix) {
+                    match.append('*');
+                }
+            }
+        }
+        return match.toString();
+    }
+
+    /**
+     * Retrieve the changes since the given time: Notes modified after it, ordered by timestamp,
+     * and then Notes deleted after it, handing them one by one to the callback.
+     * Both are read from the same snapshot of the DB, consistent with each other.
+     * Returns the time up to which the changes are complete, to sync from next time: the last change or,
+     * if later, the sync horizon.
+     * Returns -1, without calling the callback, if the time is before the sync horizon (see
+     * <code>getSyncHorizon()</code>): tombstones of the deletions since may have been purged already.
+     * Since 0 (i.e. from scratch) always succeeds, as deletions don't matter without previous sync.
+     */
+    @Override
+    public long syncNotes(long since, ChangeCallback callback) throws Exception {
+        long synced = -1;
+        // with several shards, changes are only known to be complete up to the oldest write still in progress
+        // (taken before reading), as a write to another shard may commit an earlier timestamp after the read
+        long complete = Long.MAX_VALUE;
+        if (this.shards.length > 1) {
+            for (DatabaseShard shard : this.shards) {
+                complete = Math.min(complete, shard.getOldestWrite());
+            }
+        }
+        ArrayList<DatabaseConnection> connections = new ArrayList<DatabaseConnection>(this.shards.length);
+        try {
+            // single read transaction per shard, so all reads of a shard see the same snapshot
+            long horizon = 0;
+            for (DatabaseShard shard : this.shards) {
+                DatabaseConnection connection = shard.getPool().acquireReader();
+                connections.add(connection);
+                connection.getConnection().setAutoCommit(false);
+                horizon = Math.max(horizon, this.selectSyncHorizon(connection));
+            }
+            if (since <= 0 || horizon <= since) {
+                long[] last = {Math.max(since, horizon)};
+                // modified notes of all shards, merged by timestamp
+                ArrayList<ShardMerger.Source<Note>> noteSources = new ArrayList<ShardMerger.Source<Note>>(connections.size());
+                ArrayList<ResultSet> resultSets = new ArrayList<ResultSet>(connections.size());
+                try {
+                    for (DatabaseConnection connection : connections) {
+                        PreparedStatement preparedStatement = connection.getPreparedStatement(SQLiteNoteStore.SELECT_CHANGED_NOTES_SQL);
+                        preparedStatement.setLong(1, since);
+                        ResultSet resultSet = preparedStatement.executeQuery();
+                        resultSets.add(resultSet);
+                        noteSources.add(() -> this.resultSetToNote(resultSet));
+                    }
+                    ShardMerger.merge(noteSources, Comparator.comparingLong(Note::getTimestamp), -1, note -> {
+                        callback.onNote(note);
+                        last[0] = Math.max(last[0], note.getTimestamp());
+                    });
+                    SQLiteNoteStore.closeAll(resultSets);
+                    // then the deleted ones, also by timestamp
+                    ArrayList<ShardMerger.Source<Map.Entry<Integer, Long>>> tombstoneSources = new ArrayList<ShardMerger.Source<Map.Entry<Integer, Long>>>(connections.size());
+                    for (DatabaseConnection connection : connections) {
+                        PreparedStatement preparedStatement = connection.getPreparedStatement(SQLiteNoteStore.SELECT_TOMBSTONES_SQL);
+                        preparedStatement.setLong(1, since);
+                        ResultSet resultSet = preparedStatement.executeQuery();
+                        resultSets.add(resultSet);
+                        tombstoneSources.add(() -> resultSet.next() ?
+                                Map.entry(resultSet.getInt(SQLiteNoteStore.TOMBSTONE_ID_FIELD), resultSet.getLong(SQLiteNoteStore.TOMBSTONE_TIMESTAMP_FIELD)) : null);
+                    }
+                    ShardMerger.merge(tombstoneSources, Map.Entry.comparingByValue(), -1, tombstone -> {
+                        callback.onDeleted(tombstone.getKey(), tombstone.getValue());
+                        last[0] = Math.max(last[0], tombstone.getValue());
+                    });
+                } finally {
+                    SQLiteNoteStore.closeAll(resultSets);
+                }
+                // nothing missed up to the last change seen, unless a shard may still commit an earlier one
+                synced = this.shards.length > 1 ? Math.max(Math.max(since, horizon), complete) : last[0];
+            }
+        } finally {
+            // end the read transactions
+            for (int i = 0; i < connections.size(); i++) {
+                Connection jdbcConnection = connections.get(i).getConnection();
+                try { jdbcConnection.rollback(); } catch (Exception ignored) { ; }
+                jdbcConnection.setAutoCommit(true);
+                this.shards[i].getPool().releaseReader(connections.get(i));
+            }
+        }
+        return synced;
+    }
+
+    /**
+     * Close the given ResultSets (and forget them), so their statements can be reused.
+     */
+    private static void closeAll(List<ResultSet> resultSets) throws Exception {
+        for (ResultSet resultSet : resultSets) {
+            resultSet.close();
+        }
+        resultSets.clear();
+    }
+
+    /**
+     * Get the sync horizon: the time since which all deletions are recorded as tombstones.
+     * Changes can only be synced from this time on, older clients have to retrieve all notes again.
+     */
+    @Override
+    public long getSyncHorizon() throws Exception {
+        // the latest of all shards, deletions before it may be lost in one of them
+        long horizon = 0;
+        for (DatabaseShard shard : this.shards) {
+            horizon = Math.max(horizon, this.read(shard, this::selectSyncHorizon));
+        }
+        return horizon;
+    }
+
+    /**
+     * Read the sync horizon through the given connection.
+     */
+    private long selectSyncHorizon(DatabaseConnection connection) throws Exception {
+        long horizon = Long.MAX_VALUE;
+        PreparedStatement preparedStatement = connection.getPreparedStatement(SQLiteNoteStore.SELECT_SYNC_HORIZON_SQL);
+        ResultSet resultSet = preparedStatement.executeQuery();
+        if (resultSet.next()) {
+            horizon = resultSet.getLong(1);
+        }
+        resultSet.close();
+        return horizon;
+    }
+
+    /**
+     * Update given Note in its shard, with timestamp now. Returns whether it exists.
+     */
+    @Override
+    public boolean updateNote(Note note) throws Exception {
+        int updated = this.shardOf(note.getID()).write(connection -> {
+            note.setTimestamp(this.nextTimestamp());
+            PreparedStatement preparedStatement = connection.getPreparedStatement(SQLiteNoteStore.UPDATE_NOTE_SQL);
+            preparedStatement.setString(1, note.getTitle());
+            preparedStatement.setString(2, note.getContent());
+            preparedStatement.setLong(3, note.getTimestamp());
+            preparedStatement.setInt(4, note.getID());
+            return preparedStatement.executeUpdate();
+        });
+        return updated != 0;
+    }
+
+    /**
+     * Get the hit/miss counters of the prepared statement caches of the connections.
+     */
+    @Override
+    public StatementStatistics getStatementStatistics() {
+        return this.statistics;
+    }
+
+    /**
+     * Get the timestamp of the last change, the clock continues from it.
+     */
+    @Override
+    public long getLastModified() {
+        return this.clock.get();
+    }
+
+    /**
+     * Close the connections of all shards.
+     */
+    @Override
+    public void close() throws Exception {
+        if (this.fanOut != null) {
+            this.fanOut.shutdown();
+            this.fanOut = null;
+        }
+        // each commits its pending writes first
+        for (DatabaseShard shard : this.shards) {
+            shard.close();
+        }
+    }
+
+    /**
+     * Notes of a shard read page by page, in the order of the query, on the fan-out threads.
+     * The next page is read ahead while the current one is taken, if more pages may be needed.
+     */
+    private class PageSource implements ShardMerger.Source<Note> {
+
+        private final DatabaseShard shard;
+        private final NoteQuery query;
+        private final int pageSize;
+        private final boolean readAhead;
+        private ArrayList<Note> page = new ArrayList<Note>();
+        private int position = 0;
+        // the page being read, null after the last one
+        private Future<ArrayList<Note>> nextPage = null;
+
+        PageSource(DatabaseShard shard, NoteQuery query, NoteCursor after, int pageSize, boolean readAhead) {
+            this.shard = shard;
+            this.query = query;
+            this.pageSize = pageSize;
+            this.readAhead = readAhead;
+            this.nextPage = this.readPage(after);
+        }
+
+        @Override
+        public Note next() throws Exception {
+            if (this.position == this.page.size()) {
+                if (this.nextPage == null) {
+                    return null;
+                }
+                this.page = SQLiteNoteStore.await(this.nextPage);
+                this.position = 0;
+                // a full page may be followed by more
+                boolean more = this.readAhead && this.page.size() == this.pageSize;
+                this.nextPage = more ? this.readPage(this.query.getCursor(this.page.get(this.page.size() - 1))) : null;
+                if (this.page.isEmpty()) {
+                    return null;
+                }
+            }
+            return this.page.get(this.position++);
+        }
+
+        private Future<ArrayList<Note>> readPage(NoteCursor after) {
+            return SQLiteNoteStore.this.fanOut.submit(() -> SQLiteNoteStore.this.readNotesPage(this.shard, this.query, after, this.pageSize));
+        }
+
+    }
+
+    /**
+     * Note found by a full-text search, with its rank in its shard (lower is better).
+     */
+    private static class RankedNote {
+
+        private final Note note;
+        private final double rank;
+
+        RankedNote(Note note, double rank) {
+            this.note = note;
+            this.rank = rank;
+        }
+
+        Note getNote() {
+            return this.note;
+        }
+
+        double getRank() {
+            return this.rank;
+        }
+
+    }
+
+}
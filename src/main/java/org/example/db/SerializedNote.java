@@ -0,0 +1,60 @@
+package org.example.db;
+
+import org.example.metrics.RequestTimes;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Note already serialized as JSON object (UTF-8), together with the ID and timestamp it was serialized from.
+ * Immutable, so it can be cached and shared between requests.
+ */
+public class SerializedNote {
+
+    private final int id;
+    private final long timestamp;
+    private final ByteBuffer json;
+
+    /**
+     * Serialize the given Note.
+     */
+    SerializedNote(Note note) {
+        this.id = note.getID();
+        this.timestamp = note.getTimestamp();
+        long start = System.nanoTime();
+        this.json = ByteBuffer.wrap(NoteCodec.toJson(note)).asReadOnlyBuffer();
+        RequestTimes.current().addSerializationTime(System.nanoTime() - start);
+    }
+
+    /**
+     * Wrap the given JSON of the Note with given ID and timestamp, serialized before (e.g. as stored).
+     * The buffer is shared, not copied, and must not change afterwards.
+     */
+    SerializedNote(int id, long timestamp, ByteBuffer json) {
+        this.id = id;
+        this.timestamp = timestamp;
+        this.json = json.asReadOnlyBuffer();
+    }
+
+    public int getID() {
+        return this.id;
+    }
+
+    public long getTimestamp() {
+        return this.timestamp;
+    }
+
+    /**
+     * Get the JSON of the Note, as read-only buffer of its own (so reading it doesn't affect other readers).
+     */
+    public ByteBuffer getJson() {
+        return this.json.duplicate();
+    }
+
+    /**
+     * Get the size of the JSON of the Note, in bytes.
+     */
+    public int getSize() {
+        return this.json.remaining();
+    }
+
+}
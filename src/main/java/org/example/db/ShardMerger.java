@@ -0,0 +1,80 @@
+package org.example.db;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Merges the results of the shards, each one already ordered, into a single ordered result.
+ * Items are taken from the shards only as needed, so results needn't be collected in memory first.
+ */
+class ShardMerger {
+
+    /**
+     * Ordered items of one shard, taken one by one.
+     */
+    interface Source<T> {
+
+        /**
+         * Take the next item, or null if there are no more.
+         */
+        T next() throws Exception;
+
+    }
+
+    /**
+     * Receives the merged items one by one.
+     */
+    interface Sink<T> {
+
+        void accept(T item) throws Exception;
+
+    }
+
+    /**
+     * Merge the items of the given sources in the given order, handing up to <code>limit</code> of them to the sink
+     * (all if negative). Returns the number of items handed on.
+     */
+    static <T> int merge(List<? extends Source<T>> sources, Comparator<? super T> order, int limit, Sink<T> sink) throws Exception {
+        // the next item of each source, smallest first
+        PriorityQueue<Head<T>> heads = new PriorityQueue<Head<T>>(Math.max(1, sources.size()), (a, b) -> order.compare(a.item, b.item));
+        for (Source<T> source : sources) {
+            T item = source.next();
+            if (item != null) {
+                heads.add(new Head<T>(source, item));
+            }
+        }
+        int count = 0;
+        while (!heads.isEmpty() && (limit < 0 || count < limit)) {
+            Head<T> head = heads.poll();
+            sink.accept(head.item);
+            count++;
+            // the source's next item takes its place, if any
+            head.item = head.source.next();
+            if (head.item != null) {
+                heads.add(head);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * A source with its next item.
+     */
+    private static class Head<T> {
+
+        private final Source<T> source;
+        private T item;
+
+        Head(Source<T> source, T item) {
+            this.source = source;
+            this.item = item;
+        }
+
+    }
+
+    private ShardMerger() {
+        // only static access
+    }
+
+}
@@ -0,0 +1,48 @@
+package org.example.db;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hit/miss counters of the prepared statement caches, per SQL statement, summed over all connections.
+ * A hit is a statement reused from the cache, a miss one which had to be parsed/prepared by SQLite.
+ */
+public class StatementStatistics {
+
+    private final ConcurrentHashMap<String, LongAdder> hits = new ConcurrentHashMap<String, LongAdder>();
+    private final ConcurrentHashMap<String, LongAdder> misses = new ConcurrentHashMap<String, LongAdder>();
+
+    /**
+     * Count a lookup of the given statement in a cache.
+     */
+    void record(String sql, boolean hit) {
+        ConcurrentHashMap<String, LongAdder> counters = hit ? this.hits : this.misses;
+        counters.computeIfAbsent(sql, key -> new LongAdder()).increment();
+    }
+
+    /**
+     * Get the number of cache hits of each statement, by SQL.
+     */
+    public Map<String, Long> getHits() {
+        return StatementStatistics.snapshot(this.hits);
+    }
+
+    /**
+     * Get the number of cache misses of each statement, by SQL.
+     */
+    public Map<String, Long> getMisses() {
+        return StatementStatistics.snapshot(this.misses);
+    }
+
+    /**
+     * Copy the current values of the given counters.
+     */
+    private static Map<String, Long> snapshot(ConcurrentHashMap<String, LongAdder> counters) {
+        TreeMap<String, Long> snapshot = new TreeMap<String, Long>();
+        counters.forEach((sql, counter) -> snapshot.put(sql, counter.sum()));
+        return snapshot;
+    }
+
+}
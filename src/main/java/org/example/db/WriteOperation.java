@@ -0,0 +1,13 @@
+package org.example.db;
+
+/**
+ * Write to the DB, run on the writer connection either on its own or grouped with others in one transaction.
+ */
+interface WriteOperation<T> {
+
+    /**
+     * Run this write on the given (writer) connection, returning its result.
+     */
+    T execute(DatabaseConnection connection) throws Exception;
+
+}
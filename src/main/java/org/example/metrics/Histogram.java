@@ -0,0 +1,107 @@
+package org.example.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of (positive) values, e.g. latencies in nanoseconds, to estimate their quantiles.
+ * Values are counted in logarithmic buckets, each power of 2 split into 16 sub-buckets, so quantiles are
+ * accurate to about 3% at any magnitude (as with HdrHistogram), in constant memory.
+ * Recording is lock-free, concurrent recordings only contend on the same bucket.
+ */
+public class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << Histogram.SUB_BUCKET_BITS;
+    // enough buckets for any positive long
+    private static final int BUCKETS = (64 - Histogram.SUB_BUCKET_BITS) * Histogram.SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(Histogram.BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * Record the given value, negative ones are taken as 0.
+     */
+    public void record(long value) {
+        value = Math.max(value, 0);
+        this.buckets.incrementAndGet(Histogram.index(value));
+        this.count.increment();
+        this.sum.add(value);
+    }
+
+    /**
+     * Get the number of values recorded.
+     */
+    public long getCount() {
+        return this.count.sum();
+    }
+
+    /**
+     * Get the sum of the values recorded.
+     */
+    public long getSum() {
+        return this.sum.sum();
+    }
+
+    /**
+     * Estimate the given quantiles (in ascending order, between 0 and 1) of the values recorded, in one pass.
+     * Each is the middle of the bucket holding it, 0 if nothing was recorded.
+     */
+    public long[] getQuantiles(double... quantiles) {
+        long[] values = new long[quantiles.length];
+        // snapshot of the buckets, recordings may go on meanwhile
+        long[] counts = new long[Histogram.BUCKETS];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = this.buckets.get(i);
+            total += counts[i];
+        }
+        if (total != 0) {
+            // walk up the buckets until each quantile's rank is reached
+            long cumulative = 0;
+            int bucket = -1;
+            for (int q = 0; q < quantiles.length; q++) {
+                long rank = Math.max(1, (long) Math.ceil(quantiles[q] * total));
+                while (cumulative < rank && bucket < counts.length - 1) {
+                    bucket++;
+                    cumulative += counts[bucket];
+                }
+                values[q] = Histogram.lowest(bucket) + (Histogram.width(bucket) - 1) / 2;
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Get the bucket of the given value: the value itself if small, else its highest bits.
+     */
+    private static int index(long value) {
+        int index = (int) value;
+        if (value >= Histogram.SUB_BUCKETS) {
+            int shift = 63 - Long.numberOfLeadingZeros(value) - Histogram.SUB_BUCKET_BITS;
+            index = (shift + 1) * Histogram.SUB_BUCKETS + (int) ((value >>> shift) & (Histogram.SUB_BUCKETS - 1));
+        }
+        return index;
+    }
+
+    /**
+     * Get the lowest value of the given bucket.
+     */
+    private static long lowest(int index) {
+        long lowest = index;
+        if (index >= Histogram.SUB_BUCKETS) {
+            int shift = index / Histogram.SUB_BUCKETS - 1;
+            lowest = (long) (Histogram.SUB_BUCKETS + index % Histogram.SUB_BUCKETS) << shift;
+        }
+        return lowest;
+    }
+
+    /**
+     * Get the number of values in the given bucket.
+     */
+    private static long width(int index) {
+        return index < Histogram.SUB_BUCKETS ? 1 : 1L << (index / Histogram.SUB_BUCKETS - 1);
+    }
+
+}
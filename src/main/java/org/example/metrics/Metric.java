@@ -0,0 +1,98 @@
+package org.example.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * A named metric, with one child (e.g. a counter) per combination of label values.
+ * Children are created on first use, lookups of existing ones don't lock.
+ * Hot paths with fixed labels may keep the child instead of looking it up each time.
+ */
+public class Metric<T> {
+
+    private final String name;
+    private final String help;
+    private final String type;
+    private final String[] labelNames;
+    private final Supplier<T> factory;
+    // children by their joined label values
+    private final ConcurrentHashMap<String, Child<T>> children = new ConcurrentHashMap<String, Child<T>>();
+
+    /**
+     * Create a new metric of given Prometheus type, creating its children through the given factory
+     * (null if children are only set, see <code>set()</code>).
+     */
+    Metric(String name, String help, String type, String[] labelNames, Supplier<T> factory) {
+        this.name = name;
+        this.help = help;
+        this.type = type;
+        this.labelNames = labelNames;
+        this.factory = factory;
+    }
+
+    /**
+     * Get the child for the given label values (in the order of the label names), creating it if new.
+     */
+    public T labels(String... labelValues) {
+        String key = Metric.key(labelValues);
+        Child<T> child = this.children.get(key);
+        if (child == null) {
+            child = this.children.computeIfAbsent(key, k -> new Child<T>(labelValues.clone(), this.factory.get()));
+        }
+        return child.value;
+    }
+
+    /**
+     * Set the child for the given label values, replacing the previous one (if any).
+     */
+    public void set(T value, String... labelValues) {
+        this.children.put(Metric.key(labelValues), new Child<T>(labelValues.clone(), value));
+    }
+
+    String getName() {
+        return this.name;
+    }
+
+    String getHelp() {
+        return this.help;
+    }
+
+    String getType() {
+        return this.type;
+    }
+
+    String[] getLabelNames() {
+        return this.labelNames;
+    }
+
+    /**
+     * Get the children, by their joined label values.
+     */
+    Map<String, Child<T>> getChildren() {
+        return this.children;
+    }
+
+    /**
+     * Join the given label values to the key of their child.
+     */
+    private static String key(String[] labelValues) {
+        return labelValues.length == 1 ? labelValues[0] : String.join("\u0000", labelValues);
+    }
+
+    /**
+     * A child of the metric, with its label values.
+     */
+    static class Child<T> {
+
+        final String[] labelValues;
+        final T value;
+
+        Child(String[] labelValues, T value) {
+            this.labelValues = labelValues;
+            this.value = value;
+        }
+
+    }
+
+}
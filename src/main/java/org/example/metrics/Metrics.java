@@ -0,0 +1,137 @@
+package org.example.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Registry of the metrics of the process, written in the Prometheus text format.
+ * Counters and gauges are <code>LongAdder</code>s and latencies <code>Histogram</code>s (in nanoseconds, written
+ * as seconds), so recording doesn't lock. Values kept elsewhere can be sampled when written instead.
+ */
+public class Metrics {
+
+    // quantiles written for each histogram, 1 being (about) the maximum
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999, 1};
+    private static final double NANOS_PER_SECOND = 1_000_000_000.0;
+
+    private static final String TYPE_SUMMARY = "summary";
+    private static final String TYPE_COUNTER = "counter";
+    private static final String TYPE_GAUGE = "gauge";
+
+    // metrics by name
+    private static final ConcurrentHashMap<String, Metric<?>> METRICS = new ConcurrentHashMap<String, Metric<?>>();
+
+    private Metrics() {
+    }
+
+    /**
+     * Get the latency histogram (in nanoseconds) of given name with given labels, created if new.
+     */
+    public static Metric<Histogram> summary(String name, String help, String... labelNames) {
+        return Metrics.register(name, help, Metrics.TYPE_SUMMARY, labelNames, Histogram::new);
+    }
+
+    /**
+     * Get the counter of given name with given labels, created if new.
+     */
+    public static Metric<LongAdder> counter(String name, String help, String... labelNames) {
+        return Metrics.register(name, help, Metrics.TYPE_COUNTER, labelNames, LongAdder::new);
+    }
+
+    /**
+     * Get the gauge of given name with given labels, created if new.
+     */
+    public static Metric<LongAdder> gauge(String name, String help, String... labelNames) {
+        return Metrics.register(name, help, Metrics.TYPE_GAUGE, labelNames, LongAdder::new);
+    }
+
+    /**
+     * Get the counter of given name with given labels sampled when written, created if new.
+     * Set its values through <code>Metric.set()</code>.
+     */
+    public static Metric<LongSupplier> sampledCounter(String name, String help, String... labelNames) {
+        return Metrics.register(name, help, Metrics.TYPE_COUNTER, labelNames, null);
+    }
+
+    /**
+     * Get the gauge of given name with given labels sampled when written, created if new.
+     * Set its values through <code>Metric.set()</code>.
+     */
+    public static Metric<LongSupplier> sampledGauge(String name, String help, String... labelNames) {
+        return Metrics.register(name, help, Metrics.TYPE_GAUGE, labelNames, null);
+    }
+
+    /**
+     * Get the metric of given name, registering it if new.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> Metric<T> register(String name, String help, String type, String[] labelNames, Supplier<T> factory) {
+        Metric<?> metric = Metrics.METRICS.computeIfAbsent(name, n -> new Metric<T>(name, help, type, labelNames, factory));
+        if (!metric.getType().equals(type) || metric.getLabelNames().length != labelNames.length) {
+            throw new IllegalArgumentException("metric " + name + " already registered differently");
+        }
+        return (Metric<T>) metric;
+    }
+
+    /**
+     * Write all metrics in the Prometheus text format, ordered by name.
+     */
+    public static void write(Writer writer) throws IOException {
+        for (Metric<?> metric : new TreeMap<String, Metric<?>>(Metrics.METRICS).values()) {
+            writer.write("# HELP " + metric.getName() + " " + metric.getHelp() + "\n");
+            writer.write("# TYPE " + metric.getName() + " " + metric.getType() + "\n");
+            for (Metric.Child<?> child : new TreeMap<String, Metric.Child<?>>(metric.getChildren()).values()) {
+                String labels = Metrics.formatLabels(metric.getLabelNames(), child.labelValues);
+                if (child.value instanceof Histogram) {
+                    Metrics.writeSummary(writer, metric.getName(), labels, (Histogram) child.value);
+                } else if (child.value instanceof LongAdder) {
+                    writer.write(metric.getName() + Metrics.braces(labels) + " " + ((LongAdder) child.value).sum() + "\n");
+                } else if (child.value instanceof LongSupplier) {
+                    writer.write(metric.getName() + Metrics.braces(labels) + " " + ((LongSupplier) child.value).getAsLong() + "\n");
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the quantiles, sum and count of the given histogram, in seconds.
+     */
+    private static void writeSummary(Writer writer, String name, String labels, Histogram histogram) throws IOException {
+        String separator = labels.length() != 0 ? "," : "";
+        long[] values = histogram.getQuantiles(Metrics.QUANTILES);
+        for (int i = 0; i < values.length; i++) {
+            writer.write(name + "{" + labels + separator + "quantile=\"" + Metrics.QUANTILES[i] + "\"} " + values[i] / Metrics.NANOS_PER_SECOND + "\n");
+        }
+        writer.write(name + "_sum" + Metrics.braces(labels) + " " + histogram.getSum() / Metrics.NANOS_PER_SECOND + "\n");
+        writer.write(name + "_count" + Metrics.braces(labels) + " " + histogram.getCount() + "\n");
+    }
+
+    /**
+     * Enclose the given formatted labels in braces, if any.
+     */
+    private static String braces(String labels) {
+        return labels.length() != 0 ? "{" + labels + "}" : "";
+    }
+
+    /**
+     * Format the given labels as <code>name="value"</code> pairs, escaping the values.
+     */
+    private static String formatLabels(String[] labelNames, String[] labelValues) {
+        StringBuilder labels = new StringBuilder();
+        for (int i = 0; i < labelNames.length; i++) {
+            if (i != 0) {
+                labels.append(',');
+            }
+            String value = labelValues[i].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+            labels.append(labelNames[i]).append("=\"").append(value).append('"');
+        }
+        return labels.toString();
+    }
+
+}
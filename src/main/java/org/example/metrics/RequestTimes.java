@@ -0,0 +1,106 @@
+package org.example.metrics;
+
+/**
+ * Times spent by the request running on the current thread: in the DB and serializing its response.
+ * Lets the time of a request be broken down, as both are recorded as they happen, deep down.
+ * Besides, the time it waited for the thread in the first place.
+ */
+public class RequestTimes {
+
+    private static final ThreadLocal<RequestTimes> CURRENT = ThreadLocal.withInitial(RequestTimes::new);
+
+    private long database = 0;
+    private long serialization = 0;
+    // nesting of DB operations, only the outermost one counts
+    private int depth = 0;
+    // time waited for the thread, set when taken from the queue
+    private long queue = 0;
+    // whether the request found neither a thread nor room in the queue, so it's only to be rejected
+    private boolean overflow = false;
+
+    /**
+     * Get the times of the current thread.
+     */
+    public static RequestTimes current() {
+        return RequestTimes.CURRENT.get();
+    }
+
+    /**
+     * Reset the times, on the start of a new request.
+     */
+    public void reset() {
+        this.database = 0;
+        this.serialization = 0;
+        this.depth = 0;
+    }
+
+    /**
+     * Set the time the request waited for this thread, in nanoseconds. Not reset with the other times, as it's set
+     * before the request is handled; set it to 0 once handled, so a next request on the same connection doesn't count it.
+     */
+    public void setQueueTime(long nanos) {
+        this.queue = nanos;
+    }
+
+    /**
+     * Get the time the request waited for this thread, in nanoseconds, 0 if it didn't.
+     */
+    public long getQueueTime() {
+        return this.queue;
+    }
+
+    /**
+     * Set whether the request found neither a thread nor room in the queue, so it's to be rejected right away.
+     * Like the queue time it's set before the request is handled, clear it once handled.
+     */
+    public void setOverflow(boolean overflow) {
+        this.overflow = overflow;
+    }
+
+    /**
+     * Whether the request found neither a thread nor room in the queue, see <code>setOverflow()</code>.
+     */
+    public boolean isOverflow() {
+        return this.overflow;
+    }
+
+    /**
+     * Get the time spent in the DB, in nanoseconds.
+     */
+    public long getDatabaseTime() {
+        return this.database;
+    }
+
+    /**
+     * Get the time spent serializing, in nanoseconds.
+     */
+    public long getSerializationTime() {
+        return this.serialization;
+    }
+
+    /**
+     * Add the given time spent serializing, in nanoseconds.
+     */
+    public void addSerializationTime(long nanos) {
+        this.serialization += nanos;
+    }
+
+    /**
+     * Enter a DB operation, to be matched by <code>exitDatabase()</code>.
+     */
+    public void enterDatabase() {
+        this.depth++;
+    }
+
+    /**
+     * Exit a DB operation which took the given time, in nanoseconds.
+     * The time of nested operations is already included in the outer one.
+     */
+    public void exitDatabase(long nanos) {
+        this.depth--;
+        if (this.depth == 0) {
+            this.database += nanos;
+        }
+    }
+
+}
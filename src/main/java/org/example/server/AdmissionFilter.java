@@ -0,0 +1,146 @@
+package org.example.server;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+import org.example.Config;
+import org.example.metrics.Metric;
+import org.example.metrics.Metrics;
+import org.example.metrics.RequestTimes;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Filter admitting the requests to the notes, so overload is answered right away instead of by ever growing latency.
+ * Requests which waited longer than the queue-time budget for a thread are answered with 503 - service unavailable.
+ * Each client (by address) may send requests up to a rate, beyond it they're answered with 429 - too many requests.
+ * The requests in flight are capped, a request waits for its turn only within what's left of the queue-time budget,
+ * then it's answered with 503 as well. All of them with Retry-After, the seconds after which to try again.
+ * Reads and writes have separate limits, see <code>Config.LIMIT_READ_RATE</code> and following, all disabled by default
+ * except the queue-time budget. Change streams (which stay open) are only rate limited, they have their own cap.
+ */
+public class AdmissionFilter extends Filter {
+
+    // kinds of requests, limited separately
+    private static final String KIND_READ = "read";
+    private static final String KIND_WRITE = "write";
+
+    // reasons for rejecting a request
+    private static final String REASON_QUEUE = "queue";
+    private static final String REASON_RATE = "rate";
+    private static final String REASON_CONCURRENCY = "concurrency";
+
+    // not among the codes of HttpURLConnection
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    private static final Metric<LongAdder> REJECTED = Metrics.counter(
+            "notes_http_rejected_total", "Requests rejected by the admission control, by kind and reason", "kind", "reason");
+
+    // time in nanoseconds a request may wait, for a thread and for its turn, 0 for no limit
+    private final long queueTime;
+    private final Limits reads;
+    private final Limits writes;
+
+    /**
+     * Create a new filter, configured as set in <code>Config</code>.
+     */
+    public AdmissionFilter() {
+        this.queueTime = TimeUnit.MILLISECONDS.toNanos(Config.getLong(Config.LIMIT_QUEUE_TIME, 1000));
+        this.reads = new Limits(AdmissionFilter.KIND_READ,
+                Config.getInt(Config.LIMIT_READ_RATE, 0), Config.getInt(Config.LIMIT_READ_CONCURRENCY, 0));
+        this.writes = new Limits(AdmissionFilter.KIND_WRITE,
+                Config.getInt(Config.LIMIT_WRITE_RATE, 0), Config.getInt(Config.LIMIT_WRITE_CONCURRENCY, 0));
+    }
+
+    @Override
+    public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+        Limits limits = this.isRead(exchange) ? this.reads : this.writes;
+        // no thread nor room in the queue, or waited too long for a thread already (the client may have given up)
+        long queued = RequestTimes.current().getQueueTime();
+        if (RequestTimes.current().isOverflow() || (this.queueTime > 0 && queued > this.queueTime)) {
+            this.reject(exchange, limits, AdmissionFilter.REASON_QUEUE, HttpURLConnection.HTTP_UNAVAILABLE, 1);
+            return;
+        }
+        if (limits.rateLimiter != null) {
+            long wait = limits.rateLimiter.acquire(exchange.getRemoteAddress().getAddress());
+            if (wait > 0) {
+                long second = TimeUnit.SECONDS.toNanos(1);
+                this.reject(exchange, limits, AdmissionFilter.REASON_RATE, AdmissionFilter.HTTP_TOO_MANY_REQUESTS, (wait + second - 1) / second);
+                return;
+            }
+        }
+        Semaphore inFlight = exchange.getRequestURI().getPath().equals(NoteRequestHandler.STREAM_PATH) ? null : limits.inFlight;
+        if (inFlight != null) {
+            // wait for a turn, within what's left of the budget
+            boolean acquired = false;
+            try {
+                acquired = this.queueTime > 0 ? inFlight.tryAcquire(Math.max(0, this.queueTime - queued), TimeUnit.NANOSECONDS) : inFlight.tryAcquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (!acquired) {
+                this.reject(exchange, limits, AdmissionFilter.REASON_CONCURRENCY, HttpURLConnection.HTTP_UNAVAILABLE, 1);
+                return;
+            }
+        }
+        try {
+            chain.doFilter(exchange);
+        } finally {
+            if (inFlight != null) {
+                inFlight.release();
+            }
+        }
+    }
+
+    @Override
+    public String description() {
+        return "rejects the requests beyond the rate, concurrency and queue-time limits";
+    }
+
+    /**
+     * Whether the request only reads the notes: GET (and the like) or retrieving many notes at once.
+     */
+    private boolean isRead(HttpExchange exchange) {
+        String method = exchange.getRequestMethod();
+        return method.equals("GET") || method.equals("HEAD") || method.equals("OPTIONS") ||
+                exchange.getRequestURI().getPath().equals(NoteRequestHandler.MULTI_GET_PATH);
+    }
+
+    /**
+     * Reject the request with the given code, to be retried after the given seconds, without reading its body.
+     */
+    private void reject(HttpExchange exchange, Limits limits, String reason, int code, long retryAfter) throws IOException {
+        AdmissionFilter.REJECTED.labels(limits.kind, reason).increment();
+        byte[] response = ("too many " + limits.kind + "s (" + reason + "), retry later\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+        exchange.getResponseHeaders().set("Retry-After", String.valueOf(retryAfter));
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(code, response.length);
+        OutputStream outputStream = exchange.getResponseBody();
+        outputStream.write(response);
+        outputStream.close();
+    }
+
+    /**
+     * Limits of a kind of requests: rate per client and requests in flight, each null if not limited.
+     */
+    private static class Limits {
+
+        private final String kind;
+        private final RateLimiter rateLimiter;
+        private final Semaphore inFlight;
+
+        Limits(String kind, int rate, int concurrency) {
+            this.kind = kind;
+            this.rateLimiter = rate > 0 ? new RateLimiter(rate) : null;
+            this.inFlight = concurrency > 0 ? new Semaphore(concurrency) : null;
+        }
+
+    }
+
+}
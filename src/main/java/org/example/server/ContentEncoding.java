@@ -0,0 +1,95 @@
+package org.example.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compression of response bodies, as negotiated through the Accept-Encoding header of the request.
+ * Supports gzip and deflate (i.e. zlib), preferring gzip.
+ */
+class ContentEncoding {
+
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+
+    // size of the compressor's output buffer
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Choose the encoding to compress with, given the Accept-Encoding header of the request.
+     * Returns null if the client accepts no supported encoding (or sent no header).
+     */
+    static String negotiate(String acceptEncoding) {
+        String encoding = null;
+        if (acceptEncoding != null) {
+            // -1 while not listed
+            float gzipQuality = -1;
+            float deflateQuality = -1;
+            float anyQuality = 0;
+            // list of "coding;q=value", without quality it's 1
+            for (String part : acceptEncoding.split(",")) {
+                String[] parameters = part.split(";");
+                String coding = parameters[0].trim().toLowerCase();
+                float quality = 1;
+                for (int i = 1; i < parameters.length; i++) {
+                    String parameter = parameters[i].trim();
+                    if (parameter.startsWith("q=")) {
+                        try {
+                            quality = Float.parseFloat(parameter.substring(2));
+                        } catch (NumberFormatException e) {
+                            quality = 0;
+                        }
+                    }
+                }
+                switch (coding) {
+                    case ContentEncoding.GZIP:
+                    case "x-gzip":
+                        gzipQuality = quality;
+                        break;
+                    case ContentEncoding.DEFLATE:
+                        deflateQuality = quality;
+                        break;
+                    case "*":
+                        anyQuality = quality;
+                        break;
+                    default:
+                        // not supported
+                }
+            }
+            // codings not listed get the quality of "*", if any
+            if (gzipQuality < 0) {
+                gzipQuality = anyQuality;
+            }
+            if (deflateQuality < 0) {
+                deflateQuality = anyQuality;
+            }
+            if (gzipQuality > 0 && gzipQuality >= deflateQuality) {
+                encoding = ContentEncoding.GZIP;
+            } else if (deflateQuality > 0) {
+                encoding = ContentEncoding.DEFLATE;
+            }
+        }
+        return encoding;
+    }
+
+    /**
+     * Wrap the given stream, compressing what's written with the given encoding.
+     * Flushing the returned stream flushes what's compressed so far, closing it finishes the compressed data.
+     */
+    static OutputStream wrap(OutputStream outputStream, String encoding) throws IOException {
+        OutputStream encodedStream = outputStream;
+        if (ContentEncoding.GZIP.equals(encoding)) {
+            encodedStream = new GZIPOutputStream(outputStream, ContentEncoding.BUFFER_SIZE, true);
+        } else if (ContentEncoding.DEFLATE.equals(encoding)) {
+            encodedStream = new DeflaterOutputStream(outputStream, true);
+        }
+        return encodedStream;
+    }
+
+    private ContentEncoding() {
+        // only static access
+    }
+
+}
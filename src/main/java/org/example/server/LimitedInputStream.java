@@ -0,0 +1,87 @@
+package org.example.server;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Stream of a request body limited in size, failing with a <code>LimitExceededException</code> as soon as more than
+ * the limit is read, so a body too large is rejected while it streams in rather than once it's in memory.
+ * For bodies of many items (e.g. a bulk import) the limit can apply to each item instead, see <code>restart()</code>.
+ */
+class LimitedInputStream extends FilterInputStream {
+
+    private final long limit;
+    // bytes read since the (re)start of the limit
+    private long count = 0;
+
+    /**
+     * Limit the given stream to the given number of bytes.
+     */
+    LimitedInputStream(InputStream inputStream, long limit) {
+        super(inputStream);
+        this.limit = limit;
+    }
+
+    /**
+     * Start the limit over from here, e.g. for the next item of the body.
+     * What the reader buffered ahead of the item counts against the previous one, so the limit of an item should
+     * allow for that (and is only about its size).
+     */
+    void restart() {
+        this.count = 0;
+    }
+
+    @Override
+    public int read() throws IOException {
+        this.check(1);
+        int read = super.read();
+        if (read >= 0) {
+            this.count++;
+        }
+        return read;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        // never more than one byte beyond the limit, to tell whether there is more
+        int read = super.read(bytes, offset, (int) this.check(length));
+        if (read > 0) {
+            this.count += read;
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long bytes) throws IOException {
+        long skipped = super.skip(this.check(bytes));
+        this.count += skipped;
+        return skipped;
+    }
+
+    /**
+     * Check the limit before reading the given number of bytes (at least one), returning how many may be read,
+     * one more than the limit allows at most.
+     */
+    private long check(long bytes) throws LimitExceededException {
+        if (this.count > this.limit) {
+            throw new LimitExceededException(this.limit);
+        }
+        long allowed = this.limit - this.count;
+        return allowed < bytes ? allowed + 1 : bytes;
+    }
+
+    /**
+     * Thrown when a body is larger than allowed, to be answered with <code>413 Payload Too Large</code>.
+     */
+    static class LimitExceededException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        LimitExceededException(long limit) {
+            super("body larger than " + limit + " bytes");
+        }
+
+    }
+
+}
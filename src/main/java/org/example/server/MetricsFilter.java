@@ -0,0 +1,178 @@
+package org.example.server;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+import org.example.metrics.Histogram;
+import org.example.metrics.Metric;
+import org.example.metrics.Metrics;
+import org.example.metrics.RequestTimes;
+
+import java.io.*;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Filter recording the metrics of each request, by route and method: its latency, broken down into time spent
+ * in the DB and serializing, time waited for a thread before, bytes read and written, errors and requests in flight.
+ */
+public class MetricsFilter extends Filter {
+
+    // routes, i.e. the paths with the ID of a note (and query of the collection) replaced by placeholders
+    private static final String ROUTE_NOTE = NoteRequestHandler.REQUEST_PATH + "/{id}";
+    private static final String ROUTE_SEARCH = NoteRequestHandler.REQUEST_PATH + "?q";
+    private static final String ROUTE_SYNC = NoteRequestHandler.REQUEST_PATH + "?since";
+    private static final String ROUTE_IDS = NoteRequestHandler.REQUEST_PATH + "?ids";
+    private static final String ROUTE_OTHER = "other";
+    // methods labelled as they are, any other is "other" (clients may send any token)
+    private static final Set<String> METHODS = Set.of("GET", "POST", "PUT", "DELETE", "OPTIONS", "HEAD");
+    private static final String METHOD_OTHER = "other";
+
+    private static final Metric<Histogram> REQUEST_TIME = Metrics.summary(
+            "notes_http_request_seconds", "Time of the requests, from being handled to the response being sent", "route", "method");
+    private static final Metric<Histogram> QUEUE_TIME = Metrics.summary(
+            "notes_http_request_queue_seconds", "Time the requests waited for a thread, before being handled", "route", "method");
+    private static final Metric<Histogram> DATABASE_TIME = Metrics.summary(
+            "notes_http_request_db_seconds", "Time of the requests spent in the DB", "route", "method");
+    private static final Metric<Histogram> SERIALIZATION_TIME = Metrics.summary(
+            "notes_http_request_serialization_seconds", "Time of the requests spent serializing/writing notes", "route", "method");
+    private static final Metric<LongAdder> ERRORS = Metrics.counter(
+            "notes_http_errors_total", "Requests failed, by status code (0 if no response was sent)", "route", "method", "status");
+    private static final Metric<LongAdder> BYTES_READ = Metrics.counter(
+            "notes_http_request_bytes_total", "Bytes of the request bodies", "route");
+    private static final Metric<LongAdder> BYTES_WRITTEN = Metrics.counter(
+            "notes_http_response_bytes_total", "Bytes of the response bodies, as sent (i.e. compressed)", "route");
+    private static final LongAdder IN_FLIGHT = Metrics.gauge(
+            "notes_http_requests_in_flight", "Requests being handled").labels();
+
+    @Override
+    public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+        String route = this.route(exchange);
+        String method = this.method(exchange);
+        RequestTimes times = RequestTimes.current();
+        times.reset();
+        // count the bytes of the bodies, as read/written by the handler
+        CountingInputStream inputStream = new CountingInputStream(exchange.getRequestBody());
+        CountingOutputStream outputStream = new CountingOutputStream(exchange.getResponseBody());
+        exchange.setStreams(inputStream, outputStream);
+        MetricsFilter.IN_FLIGHT.increment();
+        long start = System.nanoTime();
+        try {
+            chain.doFilter(exchange);
+        } finally {
+            long time = System.nanoTime() - start;
+            MetricsFilter.IN_FLIGHT.decrement();
+            MetricsFilter.REQUEST_TIME.labels(route, method).record(time);
+            if (route.startsWith(NoteRequestHandler.REQUEST_PATH)) {
+                Startup.requestDone(start, time);
+            }
+            MetricsFilter.QUEUE_TIME.labels(route, method).record(times.getQueueTime());
+            times.setQueueTime(0);
+            MetricsFilter.DATABASE_TIME.labels(route, method).record(times.getDatabaseTime());
+            MetricsFilter.SERIALIZATION_TIME.labels(route, method).record(times.getSerializationTime());
+            MetricsFilter.BYTES_READ.labels(route).add(inputStream.count);
+            MetricsFilter.BYTES_WRITTEN.labels(route).add(outputStream.count);
+            int status = exchange.getResponseCode();
+            if (status < 0 || status >= 400) {
+                MetricsFilter.ERRORS.labels(route, method, String.valueOf(Math.max(status, 0))).increment();
+            }
+        }
+    }
+
+    @Override
+    public String description() {
+        return "records the metrics of the requests";
+    }
+
+    /**
+     * Get the method of the request, one of the known ones or "other", keeping the number of labels small.
+     */
+    private String method(HttpExchange exchange) {
+        String method = exchange.getRequestMethod();
+        return MetricsFilter.METHODS.contains(method) ? method : MetricsFilter.METHOD_OTHER;
+    }
+
+    /**
+     * Get the route of the request, keeping the number of distinct routes (i.e. labels) small.
+     */
+    private String route(HttpExchange exchange) {
+        String route = MetricsFilter.ROUTE_OTHER;
+        String path = exchange.getRequestURI().getPath();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (path.equals(NoteRequestHandler.REQUEST_PATH)) {
+            // collection, searched/synced by query
+            route = path;
+            if (query != null && ("&" + query).contains("&q=")) {
+                route = MetricsFilter.ROUTE_SEARCH;
+            } else if (query != null && ("&" + query).contains("&since=")) {
+                route = MetricsFilter.ROUTE_SYNC;
+            } else if (query != null && ("&" + query).contains("&ids=")) {
+                route = MetricsFilter.ROUTE_IDS;
+            }
+        } else if (path.equals(NoteRequestHandler.BULK_PATH) || path.equals(NoteRequestHandler.EXPORT_PATH) ||
+                path.equals(NoteRequestHandler.MULTI_GET_PATH) || path.equals(NoteRequestHandler.STREAM_PATH) ||
+                path.equals(MetricsRequestHandler.REQUEST_PATH)) {
+            route = path;
+        } else if (path.startsWith(NoteRequestHandler.REQUEST_PATH + "/")) {
+            route = MetricsFilter.ROUTE_NOTE;
+        }
+        return route;
+    }
+
+    /**
+     * Stream counting the bytes read through it.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+
+        long count = 0;
+
+        CountingInputStream(InputStream inputStream) {
+            super(inputStream);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = super.read();
+            if (read >= 0) {
+                this.count++;
+            }
+            return read;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            int read = super.read(bytes, offset, length);
+            if (read > 0) {
+                this.count += read;
+            }
+            return read;
+        }
+
+    }
+
+    /**
+     * Stream counting the bytes written through it.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        long count = 0;
+
+        CountingOutputStream(OutputStream outputStream) {
+            super(outputStream);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.out.write(b);
+            this.count++;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            // pass on as a whole, FilterOutputStream would write byte by byte
+            this.out.write(bytes, offset, length);
+            this.count += length;
+        }
+
+    }
+
+}
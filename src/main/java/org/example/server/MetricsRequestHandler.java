@@ -0,0 +1,50 @@
+package org.example.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.example.metrics.Metrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Handler for the metrics of the server (GET only), in the Prometheus text format.
+ */
+public class MetricsRequestHandler implements HttpHandler {
+
+    public static final String REQUEST_PATH = "/metrics";
+
+    private static final String CONTENT_TYPE_PROMETHEUS = "text/plain; version=0.0.4; charset=utf-8";
+
+    @Override
+    public void handle(HttpExchange exchange) {
+        try {
+            if (exchange.getRequestMethod().equals("GET")) {
+                // write the metrics first, to send them with known length
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                Writer writer = new OutputStreamWriter(bytes, StandardCharsets.UTF_8);
+                Metrics.write(writer);
+                writer.close();
+                exchange.getResponseHeaders().set("Content-Type", MetricsRequestHandler.CONTENT_TYPE_PROMETHEUS);
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, bytes.size());
+                OutputStream outputStream = exchange.getResponseBody();
+                bytes.writeTo(outputStream);
+                outputStream.close();
+            } else {
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_BAD_METHOD, -1);
+            }
+        } catch (Exception e) {
+            // something went wrong, nothing left to respond
+            try { exchange.sendResponseHeaders(HttpURLConnection.HTTP_INTERNAL_ERROR, -1); } catch (Exception ignored) { ; }
+            e.printStackTrace();
+        } finally {
+            // done, close
+            exchange.close();
+        }
+    }
+
+}
@@ -1,17 +1,42 @@
 package org.example.server;
 
-import com.google.gson.JsonArray;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import com.google.gson.Strictness;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
+import org.example.Config;
+import org.example.db.ChangeBus;
+import org.example.db.ChangeCallback;
+import org.example.db.ChangeEvent;
 import org.example.db.Database;
 import org.example.db.Note;
+import org.example.db.NoteCallback;
+import org.example.db.NoteCodec;
+import org.example.db.NoteCursor;
+import org.example.db.NoteQuery;
+import org.example.db.SerializedNote;
+import org.example.metrics.RequestTimes;
 
 import java.io.*;
 import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Handler for the REST requests for the notes, supports GET, POST, PUT, DELETE.
@@ -19,6 +44,13 @@ import java.util.ArrayList;
 public class NoteRequestHandler implements HttpHandler {
 
     public static final String REQUEST_PATH = "/api/notes";
+    // bulk import (POST) and export (GET) of notes
+    public static final String BULK_PATH = NoteRequestHandler.REQUEST_PATH + "/_bulk";
+    public static final String EXPORT_PATH = NoteRequestHandler.REQUEST_PATH + "/_export";
+    // retrieval of many notes by ID at once (POST, the IDs in the body)
+    public static final String MULTI_GET_PATH = NoteRequestHandler.REQUEST_PATH + "/_mget";
+    // live changes of the notes, as server-sent events (GET)
+    public static final String STREAM_PATH = NoteRequestHandler.REQUEST_PATH + "/_stream";
 
     // supported methods
     private static final String GET_REQUEST = "GET";
@@ -29,6 +61,64 @@ public class NoteRequestHandler implements HttpHandler {
 
     private static final String RESPONSE_SUCCESS = "success";
     private static final String RESPONSE_RESULT = "result";
+    private static final String RESPONSE_NEXT = "next";
+    private static final String RESPONSE_DELETED = "deleted";
+    private static final String RESPONSE_INDEX = "index";
+    private static final String RESPONSE_ERROR = "error";
+    private static final String RESPONSE_FOUND = "found";
+
+    private static final byte[] EMPTY_JSON_OBJECT = "{}".getBytes(StandardCharsets.UTF_8);
+
+    // content types of the responses
+    private static final String CONTENT_TYPE_JSON = "application/json; charset=utf-8";
+    private static final String CONTENT_TYPE_NDJSON = "application/x-ndjson; charset=utf-8";
+    private static final String CONTENT_TYPE_TEXT = "text/plain; charset=utf-8";
+    private static final String CONTENT_TYPE_EVENT_STREAM = "text/event-stream; charset=utf-8";
+
+    // notes of a bulk import are added in chunks of this size, each in one transaction, and of at most about this many
+    // chars of title and content, so large notes don't pile up in memory
+    private static final int BULK_CHUNK_SIZE = 1000;
+    private static final int BULK_CHUNK_CHARS = 4 * 1024 * 1024;
+    // bytes the readers of a bulk import may buffer ahead of the note being parsed, allowed on top of its size limit
+    private static final int BULK_READ_AHEAD = 32 * 1024;
+
+    // query parameters for paginating the collection
+    private static final String QUERY_LIMIT = "limit";
+    private static final String QUERY_AFTER = "after";
+    // query parameters for searching the collection, by default the first page holds this many notes
+    private static final String QUERY_SEARCH = "q";
+    private static final String QUERY_OFFSET = "offset";
+    private static final int SEARCH_LIMIT = 50;
+    // query parameter for syncing the collection, retrieving only the changes since a timestamp
+    private static final String QUERY_SINCE = "since";
+    // query parameter for retrieving many notes by ID at once, comma separated (also the key of the IDs in the body)
+    private static final String QUERY_IDS = "ids";
+
+    // a change stream sends a heartbeat after this time (in milliseconds) without changes, to keep the connection open
+    private static final long STREAM_HEARTBEAT = 15_000;
+    // changes are published right after their commit, not necessarily in the order of their timestamps, so a stream
+    // resumes from a bit (in milliseconds) before the last change received, to not miss any committed around it
+    private static final long STREAM_RESUME_OVERLAP = 1000;
+
+    // compression of the responses, see Config.SERVER_COMPRESSION
+    private final boolean compression;
+    private final int compressionMinSize;
+    // maximum size of request bodies (and of each note of a bulk import), see Config.LIMIT_BODY_SIZE
+    private final long bodySizeLimit;
+    // change streams open, and the maximum, see Config.STREAM_LIMIT
+    private final AtomicInteger streams = new AtomicInteger();
+    private final int streamLimit;
+
+    /**
+     * Create a new handler, configured as set in <code>Config</code>, allowing up to the given number of change streams
+     * open at once (see <code>handleStreamRequest()</code>).
+     */
+    public NoteRequestHandler(int streamLimit) {
+        this.compression = Config.getBoolean(Config.SERVER_COMPRESSION, true);
+        this.compressionMinSize = Config.getInt(Config.SERVER_COMPRESSION_MIN_SIZE, 1024);
+        this.bodySizeLimit = Config.getLong(Config.LIMIT_BODY_SIZE, 1024 * 1024);
+        this.streamLimit = streamLimit;
+    }
 
     @Override
     public void handle(HttpExchange exchange) {
@@ -37,7 +127,8 @@ public class NoteRequestHandler implements HttpHandler {
         Headers headers = exchange.getResponseHeaders();
         headers.add("Access-Control-Allow-Origin", "*");
         headers.add("Access-Control-Allow-Methods", "GET, PUT, POST, DELETE, OPTIONS");
-        headers.add("Access-Control-Allow-Headers", "Content-Type");
+        headers.add("Access-Control-Allow-Headers", "Content-Type, If-None-Match, If-Modified-Since, Last-Event-ID");
+        headers.add("Access-Control-Expose-Headers", "ETag, Last-Modified");
         // parse and handle the request
         try {
             switch (exchange.getRequestMethod()) {
@@ -65,6 +156,12 @@ public class NoteRequestHandler implements HttpHandler {
                     // unknown method
                     exchange.sendResponseHeaders(HttpURLConnection.HTTP_BAD_METHOD, -1);
             }
+        } catch (NumberFormatException e) {
+            // malformed ID/parameter in the request
+            try {this.sendBadRequestResponse(exchange, e.getClass() + " : " + e.getMessage()); } catch (Exception ignored) { ; }
+        } catch (LimitedInputStream.LimitExceededException e) {
+            // body too large, the rest of it isn't read
+            try {this.sendResponse(exchange, e.getMessage(), HttpURLConnection.HTTP_ENTITY_TOO_LARGE); } catch (Exception ignored) { ; }
         } catch (Exception e) {
             // something went wrong, respond with an error
             try {this.sendFailureResponse(exchange, e.getClass() + " : " + e.getMessage()); } catch (Exception ignored) { ; }
@@ -77,50 +174,531 @@ public class NoteRequestHandler implements HttpHandler {
 
     /**
      * Returns the desires note(s).
-     * If on whole collection returns an array of Note objects.
+     * If on whole collection streams an array of Note objects, see <code>handleGetCollectionRequest()</code>.
      * If on a singleton returns the Note object itself.
      */
     private void handleGetRequest(HttpExchange exchange) throws Exception {
-        JsonObject response = new JsonObject();
         // check the URI to parse the request: collection or singleton?
         String path = exchange.getRequestURI().getPath();
         if (path.contentEquals(NoteRequestHandler.REQUEST_PATH)) {
-            // collection, get all notes
-            ArrayList<Note> notes = Database.getInstance().getAllNotes();
-            if (notes != null && notes.size() != 0) {
-                // notes found, parse as JSON array
-                JsonArray jsonArray = new JsonArray();
-                for (Note note : notes) {
-                    jsonArray.add(note.toJsonObject());
+            // collection, stream the notes
+            this.handleGetCollectionRequest(exchange);
+        } else if (path.contentEquals(NoteRequestHandler.EXPORT_PATH)) {
+            // export of the whole collection
+            this.handleExportRequest(exchange);
+        } else if (path.contentEquals(NoteRequestHandler.STREAM_PATH)) {
+            // live changes
+            this.handleStreamRequest(exchange);
+        } else {
+            // singleton, parse the ID and check the client's copy (if any) by the timestamp only
+            int id = this.parseSingletonFromPath(path);
+            long timestamp = Database.getInstance().getNoteTimestamp(id);
+            if (timestamp >= 0 && this.checkNotModified(exchange, NoteRequestHandler.noteETag(id, timestamp), timestamp)) {
+                return;
+            }
+            // changed since, get the note, already as JSON
+            SerializedNote note = timestamp >= 0 ? Database.getInstance().getSerializedNote(id) : null;
+            if (note == null) {
+                // note not found (or deleted meanwhile), empty object
+                exchange.getResponseHeaders().remove("ETag");
+                exchange.getResponseHeaders().remove("Last-Modified");
+                this.sendResponse(exchange, NoteRequestHandler.EMPTY_JSON_OBJECT, HttpURLConnection.HTTP_OK, NoteRequestHandler.CONTENT_TYPE_JSON);
+            } else if (note.getTimestamp() == timestamp || !this.checkNotModified(exchange, NoteRequestHandler.noteETag(id, note.getTimestamp()), note.getTimestamp())) {
+                // reply with the retrieved data (if updated meanwhile tagged as such, unless the client has that one)
+                this.sendResponse(exchange, note.getJson(), HttpURLConnection.HTTP_OK, NoteRequestHandler.CONTENT_TYPE_JSON);
+            }
+        }
+    }
+
+    /**
+     * Streams the collection of notes, ordered by ID, as array of Note objects.
+     * Supports keyset pagination through <code>?limit=&after=</code>: returns at most <code>limit</code> notes
+     * with an ID greater than <code>after</code>, plus the cursor <code>next</code> to pass as <code>after</code>
+     * for the following page (missing on the last page).
+     * With <code>?fields=</code> the notes have only the given fields (e.g. <code>id,title,timestamp</code>), the others
+     * aren't even read from the DB. With <code>?sort=</code> they're ordered by <code>id</code> or <code>timestamp</code>,
+     * optionally descending (e.g. <code>timestamp:desc</code>), <code>after</code> and <code>next</code> being the key
+     * sorted by: by timestamp the timestamp and ID of the last note, e.g. <code>"1700000000000.42"</code>, as timestamps
+     * aren't unique. See <code>NoteQuery</code>.
+     * With <code>?q=</code> returns only the notes containing all the given words, best matches first,
+     * paginated through <code>?limit=&offset=</code> with <code>next</code> being the following offset (only the fields
+     * apply, not the sort).
+     * With <code>?since=</code> returns only the changes since then, see <code>handleSyncRequest()</code>.
+     * With <code>?ids=</code> returns only the notes with the given IDs, see <code>handleGetNotesRequest()</code>.
+     * Notes are written to the response body while read from the DB, with chunked transfer.
+     */
+    private void handleGetCollectionRequest(HttpExchange exchange) throws Exception {
+        // parse the pagination from the query, by default all the notes (or the first page of a search)
+        HashMap<String, String> query = this.parseQueryFromURI(exchange.getRequestURI());
+        String text = query.get(NoteRequestHandler.QUERY_SEARCH);
+        int limit = this.parseIntParameter(query, NoteRequestHandler.QUERY_LIMIT, text != null ? NoteRequestHandler.SEARCH_LIMIT : -1);
+        int offset = this.parseIntParameter(query, NoteRequestHandler.QUERY_OFFSET, 0);
+        if (query.containsKey(NoteRequestHandler.QUERY_LIMIT) && limit <= 0) {
+            this.sendBadRequestResponse(exchange, "invalid " + NoteRequestHandler.QUERY_LIMIT + ": " + limit);
+            return;
+        }
+        if (text != null && (text.isBlank() || offset < 0 || query.containsKey(NoteQuery.QUERY_SORT))) {
+            this.sendBadRequestResponse(exchange, "invalid " + NoteRequestHandler.QUERY_SEARCH + "/" + NoteRequestHandler.QUERY_OFFSET + "/" + NoteQuery.QUERY_SORT);
+            return;
+        }
+        // the fields and order of the notes, all fields by ID by default, and where the page starts in that order
+        NoteQuery noteQuery = null;
+        NoteCursor after = null;
+        try {
+            noteQuery = NoteQuery.parse(query.get(NoteQuery.QUERY_FIELDS), query.get(NoteQuery.QUERY_SORT));
+        } catch (IllegalArgumentException e) {
+            this.sendBadRequestResponse(exchange, e.getMessage());
+            return;
+        }
+        try {
+            after = noteQuery.parseCursor(query.get(NoteRequestHandler.QUERY_AFTER));
+        } catch (IllegalArgumentException e) {
+            this.sendBadRequestResponse(exchange, "invalid " + NoteRequestHandler.QUERY_AFTER + ": " + query.get(NoteRequestHandler.QUERY_AFTER));
+            return;
+        }
+        if (this.checkCollectionNotModified(exchange)) {
+            return;
+        }
+        if (query.containsKey(NoteRequestHandler.QUERY_SINCE)) {
+            this.handleSyncRequest(exchange, this.parseLongParameter(query, NoteRequestHandler.QUERY_SINCE, 0));
+            return;
+        }
+        if (query.containsKey(NoteRequestHandler.QUERY_IDS)) {
+            this.handleGetNotesRequest(exchange, this.parseIDs(query.get(NoteRequestHandler.QUERY_IDS)));
+            return;
+        }
+        // start the response with unknown length, i.e. chunked
+        OutputStream outputStream = this.startResponse(exchange, HttpURLConnection.HTTP_OK, NoteRequestHandler.CONTENT_TYPE_JSON, -1);
+        NoteCodec codec = new NoteCodec();
+        codec.writeRaw('{');
+        // query one more note than requested, to know if there's a next page
+        CollectionWriter collectionWriter = new CollectionWriter(codec, outputStream, noteQuery, limit);
+        int fetch = limit > 0 ? limit + 1 : -1;
+        if (text == null) {
+            // whole collection, keyset on the ID or timestamp (and ID)
+            Database.getInstance().streamNotes(noteQuery, after, fetch, collectionWriter);
+            collectionWriter.finish();
+            if (collectionWriter.hasNext()) {
+                // a number by ID, like before, a string by timestamp
+                NoteCursor next = collectionWriter.getLastCursor();
+                NoteCodec nextCodec = NoteRequestHandler.writeName(codec, NoteRequestHandler.RESPONSE_NEXT, false);
+                if (noteQuery.isByTimestamp()) {
+                    nextCodec.writeString(noteQuery.formatCursor(next));
+                } else {
+                    nextCodec.writeLong(next.getKey());
                 }
-                response.add(NoteRequestHandler.RESPONSE_RESULT, jsonArray);
             }
         } else {
-            // singleton, parse the ID and get the note
-            int id = this.parseSingletonFromPath(path);
-            Note note = Database.getInstance().getNote(id);
-            if (note != null) {
-                // note found, parse as JSON object
-                response = note.toJsonObject();
+            // search, ranked so paginated by offset
+            Database.getInstance().searchNotes(text, offset, fetch, collectionWriter);
+            collectionWriter.finish();
+            if (collectionWriter.hasNext()) {
+                NoteRequestHandler.writeName(codec, NoteRequestHandler.RESPONSE_NEXT, false).writeLong(offset + limit);
             }
         }
-        // reply with the retrieved data
-        this.sendSuccessResponse(exchange, response.toString());
+        // same format as the other responses, ending with a newline
+        codec.writeRaw("}\n");
+        codec.flushTo(outputStream);
+        outputStream.close();
+    }
+
+    /**
+     * Streams the changes to the notes since the given timestamp (exclusive): the modified notes as "result" array,
+     * the IDs of the deleted notes as "deleted" array, and as <code>next</code> the timestamp up to which the changes
+     * are complete, to pass as <code>since</code> on the next sync. Since 0 retrieves all notes.
+     * If deletions since then aren't known anymore (see <code>Database.getSyncHorizon()</code>) replies with
+     * code 410 - gone, the client has to start over from 0.
+     */
+    private void handleSyncRequest(HttpExchange exchange, long since) throws Exception {
+        SyncWriter syncWriter = new SyncWriter(exchange);
+        long next = Database.getInstance().syncNotes(since, syncWriter);
+        if (next >= 0) {
+            syncWriter.finish(next);
+        } else {
+            // too old, the deletions since may be lost
+            this.sendResponse(exchange, "changes since " + since + " not available anymore, sync from 0", HttpURLConnection.HTTP_GONE);
+        }
+    }
+
+    /**
+     * Streams the notes with the given IDs as "result" array, in the order of the IDs, retrieved in batches.
+     * A note not found is replaced by <code>{"id": ..., "found": false}</code>, so the array matches the IDs one to one.
+     */
+    private void handleGetNotesRequest(HttpExchange exchange, int[] ids) throws Exception {
+        if (ids.length == 0) {
+            this.sendBadRequestResponse(exchange, "no " + NoteRequestHandler.QUERY_IDS);
+            return;
+        }
+        OutputStream outputStream = this.startResponse(exchange, HttpURLConnection.HTTP_OK, NoteRequestHandler.CONTENT_TYPE_JSON, -1);
+        NoteCodec codec = new NoteCodec();
+        codec.writeRaw('{');
+        NoteRequestHandler.writeName(codec, NoteRequestHandler.RESPONSE_RESULT, true).writeRaw('[');
+        RequestTimes times = RequestTimes.current();
+        // the notes come in the order of the IDs, those skipped in between weren't found
+        int[] next = {0};
+        Database.getInstance().getNotes(ids, note -> {
+            long start = System.nanoTime();
+            while (ids[next[0]] != note.getID()) {
+                this.writeNotFound(codec, ids[next[0]], next[0]++ == 0);
+            }
+            if (next[0]++ != 0) {
+                codec.writeRaw(',');
+            }
+            codec.writeNote(note);
+            if (codec.size() >= NoteCodec.BUFFER_SIZE) {
+                codec.flushTo(outputStream);
+            }
+            times.addSerializationTime(System.nanoTime() - start);
+        });
+        while (next[0] < ids.length) {
+            this.writeNotFound(codec, ids[next[0]], next[0]++ == 0);
+        }
+        codec.writeRaw("]}\n");
+        codec.flushTo(outputStream);
+        outputStream.close();
+    }
+
+    /**
+     * Writes the marker of a note not found, in place of the note (after a comma, unless it's the first one).
+     */
+    private void writeNotFound(NoteCodec codec, int id, boolean first) {
+        if (!first) {
+            codec.writeRaw(',');
+        }
+        codec.writeRaw('{');
+        NoteRequestHandler.writeName(codec, Note.JSON_ID_KEY, true).writeLong(id);
+        NoteRequestHandler.writeName(codec, NoteRequestHandler.RESPONSE_FOUND, false).writeRaw("false}");
+    }
+
+    /**
+     * Streams all notes, ordered by ID, as newline delimited JSON (NDJSON): one Note object per line.
+     */
+    private void handleExportRequest(HttpExchange exchange) throws Exception {
+        if (this.checkCollectionNotModified(exchange)) {
+            return;
+        }
+        OutputStream outputStream = this.startResponse(exchange, HttpURLConnection.HTTP_OK, NoteRequestHandler.CONTENT_TYPE_NDJSON, -1);
+        NoteCodec codec = new NoteCodec();
+        RequestTimes times = RequestTimes.current();
+        Database.getInstance().streamNotes(0, -1, note -> {
+            long start = System.nanoTime();
+            codec.writeNote(note).writeRaw('\n');
+            // written out in chunks, not flushed (which would flush the compression too)
+            if (codec.size() >= NoteCodec.BUFFER_SIZE) {
+                codec.flushTo(outputStream);
+            }
+            times.addSerializationTime(System.nanoTime() - start);
+        });
+        codec.flushTo(outputStream);
+        outputStream.close();
+    }
+
+    /**
+     * Streams the changes to the notes as they're committed, as server-sent events (<code>text/event-stream</code>):
+     * per change an event "created", "updated" or "deleted" with the Note as data (only ID and timestamp if deleted),
+     * and the timestamp of the change as event ID. Without changes a comment is sent now and then as heartbeat.
+     * With <code>?since=</code>, or when the client reconnects with <code>Last-Event-ID</code>, the changes since then
+     * are replayed first (as "updated"/"deleted", see <code>handleSyncRequest()</code>) so none is missed; replies with
+     * 410 - gone if they aren't available anymore. Changes may be sent more than once, and the events of a Note out of
+     * order, so the client keeps the version with the latest timestamp.
+     * A client falling too far behind is disconnected, to reconnect and catch up this way.
+     * Replies with 503 - service unavailable if too many streams are open already.
+     */
+    private void handleStreamRequest(HttpExchange exchange) throws Exception {
+        HashMap<String, String> query = this.parseQueryFromURI(exchange.getRequestURI());
+        long since = this.parseLongParameter(query, NoteRequestHandler.QUERY_SINCE, -1);
+        String lastEventID = exchange.getRequestHeaders().getFirst("Last-Event-ID");
+        if (lastEventID != null && !lastEventID.isBlank()) {
+            since = Math.max(0, Long.parseLong(lastEventID.trim()) - NoteRequestHandler.STREAM_RESUME_OVERLAP);
+        }
+        if (this.streams.incrementAndGet() > this.streamLimit) {
+            // each stream holds a thread, don't take all of them
+            this.streams.decrementAndGet();
+            this.sendResponse(exchange, "too many change streams open", HttpURLConnection.HTTP_UNAVAILABLE);
+            return;
+        }
+        // subscribe before replaying, so no change is missed in between
+        ChangeBus.Subscription subscription = Database.getInstance().getChangeBus().subscribe();
+        try {
+            this.streamChanges(exchange, subscription, since);
+        } finally {
+            subscription.close();
+            this.streams.decrementAndGet();
+        }
+    }
+
+    /**
+     * Streams the changes since the given time (none if negative), then those of the subscription until it ends
+     * or the client disconnects. See <code>handleStreamRequest()</code>.
+     */
+    private void streamChanges(HttpExchange exchange, ChangeBus.Subscription subscription, long since) throws Exception {
+        EventWriter eventWriter = new EventWriter(exchange);
+        // changes up to this time are replayed, the ones published meanwhile are skipped
+        long replayed = -1;
+        try {
+            if (since >= 0) {
+                replayed = Database.getInstance().syncNotes(since, eventWriter);
+                if (replayed < 0) {
+                    // too old, the deletions since may be lost
+                    this.sendResponse(exchange, "changes since " + since + " not available anymore, sync from 0", HttpURLConnection.HTTP_GONE);
+                    return;
+                }
+            }
+            // let the client know it's connected, even without changes
+            eventWriter.flush();
+            while (true) {
+                ChangeEvent event = subscription.poll(NoteRequestHandler.STREAM_HEARTBEAT, TimeUnit.MILLISECONDS);
+                if (event == null && subscription.isEnded()) {
+                    // dropped (or shutting down), the client reconnects
+                    break;
+                }
+                if (event == null) {
+                    eventWriter.writeHeartbeat();
+                }
+                // send all the changes there are, at once
+                while (event != null) {
+                    if (event.getTimestamp() > replayed) {
+                        eventWriter.writeEvent(event);
+                    }
+                    event = subscription.poll();
+                }
+                eventWriter.flush();
+            }
+            eventWriter.close();
+        } catch (IOException e) {
+            // client disconnected
+        }
+    }
+
+    /**
+     * Checks the conditional headers of a request on the collection, see <code>checkNotModified()</code>.
+     * The collection as a whole is versioned by the DB, so this needs neither query nor serialization.
+     */
+    private boolean checkCollectionNotModified(HttpExchange exchange) throws Exception {
+        Database database = Database.getInstance();
+        return this.checkNotModified(exchange, "W/\"" + database.getVersionTag() + "\"", database.getLastModified());
+    }
+
+    /**
+     * Sets the validators of the response, ETag and Last-Modified, and checks them against the conditional headers
+     * of the request, If-None-Match or else If-Modified-Since.
+     * Returns true if the client's copy is still valid, in which case 304 - not modified was already sent.
+     */
+    private boolean checkNotModified(HttpExchange exchange, String etag, long lastModified) throws Exception {
+        Headers headers = exchange.getResponseHeaders();
+        headers.set("ETag", etag);
+        headers.set("Last-Modified", DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(lastModified).atZone(ZoneOffset.UTC)));
+        // clients may keep a copy, but have to check it's still valid
+        headers.set("Cache-Control", "no-cache");
+        boolean notModified = false;
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        String ifModifiedSince = exchange.getRequestHeaders().getFirst("If-Modified-Since");
+        if (ifNoneMatch != null) {
+            // any of the listed tags matches, weak comparison
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.equals("*") || this.stripWeakETag(tag).equals(this.stripWeakETag(etag))) {
+                    notModified = true;
+                    break;
+                }
+            }
+        } else if (ifModifiedSince != null) {
+            // HTTP dates have a resolution of seconds
+            try {
+                long since = ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+                notModified = lastModified / 1000 <= since / 1000;
+            } catch (DateTimeParseException ignored) {
+                // invalid date, ignore the header
+            }
+        }
+        if (notModified) {
+            exchange.sendResponseHeaders(HttpURLConnection.HTTP_NOT_MODIFIED, -1);
+        }
+        return notModified;
+    }
+
+    /**
+     * Remove the weak prefix of the given ETag, if any.
+     */
+    private String stripWeakETag(String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
     }
 
     /**
      * Adds the passed JSON data as new Note.
+     * On the bulk path adds many notes at once, see <code>handleBulkImportRequest()</code>.
+     * On the multi-get path retrieves many notes at once, see <code>handleMultiGetRequest()</code>.
      */
     private void handlePostRequest(HttpExchange exchange) throws Exception {
+        if (exchange.getRequestURI().getPath().contentEquals(NoteRequestHandler.BULK_PATH)) {
+            this.handleBulkImportRequest(exchange);
+            return;
+        }
+        if (exchange.getRequestURI().getPath().contentEquals(NoteRequestHandler.MULTI_GET_PATH)) {
+            this.handleMultiGetRequest(exchange);
+            return;
+        }
         // parse the passed JSON as Note
-        JsonObject jsonNote = this.requestBodyToJSON(exchange);
-        Note note = new Note(jsonNote.get(Note.JSON_TITLE_KEY).getAsString(), jsonNote.get(Note.JSON_CONTENT_KEY).getAsString());
+        Note note = this.requestBodyToNote(exchange);
+        if (note == null) {
+            return;
+        }
         // add it to the DB
         Database.getInstance().addNote(note);
         // reply with success
         this.sendSuccessResponse(exchange, NoteRequestHandler.RESPONSE_SUCCESS);
     }
 
+    /**
+     * Adds the passed notes, either as JSON array of Note objects or as newline delimited JSON (NDJSON).
+     * The body is parsed incrementally and the notes added in chunks, each chunk as one batch in one transaction.
+     * Replies with the result of each note, by its index: success and assigned ID, or the error.
+     * Results are streamed as each chunk is added. Malformed JSON stops the import, reported as error at its index.
+     */
+    private void handleBulkImportRequest(HttpExchange exchange) throws Exception {
+        // read the body incrementally, lenient to accept multiple top-level objects (NDJSON), with the size limit
+        // applying to each note rather than the whole body (plus what's buffered ahead of it)
+        LimitedInputStream body = new LimitedInputStream(exchange.getRequestBody(),
+                this.bodySizeLimit > 0 ? this.bodySizeLimit + NoteRequestHandler.BULK_READ_AHEAD : Long.MAX_VALUE);
+        JsonReader jsonReader = new JsonReader(new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8)));
+        jsonReader.setStrictness(Strictness.LENIENT);
+        boolean isArray = false;
+        try {
+            isArray = jsonReader.peek() == JsonToken.BEGIN_ARRAY;
+            if (isArray) {
+                jsonReader.beginArray();
+            }
+        } catch (LimitedInputStream.LimitExceededException e) {
+            throw e;
+        } catch (IOException e) {
+            // nothing to import
+            this.sendBadRequestResponse(exchange, e.getClass() + " : " + e.getMessage());
+            return;
+        }
+        // start the response, results are added as the notes are imported
+        OutputStream outputStream = this.startResponse(exchange, HttpURLConnection.HTTP_OK, NoteRequestHandler.CONTENT_TYPE_JSON, -1);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+        JsonWriter jsonWriter = new JsonWriter(writer);
+        jsonWriter.beginObject();
+        jsonWriter.name(NoteRequestHandler.RESPONSE_RESULT).beginArray();
+        // parse and add the notes chunk by chunk
+        ArrayList<Note> chunk = new ArrayList<Note>(NoteRequestHandler.BULK_CHUNK_SIZE);
+        int chunkChars = 0;
+        int index = 0;
+        String error = null;
+        while (true) {
+            try {
+                boolean hasNext = isArray ? jsonReader.hasNext() : jsonReader.peek() != JsonToken.END_DOCUMENT;
+                if (!hasNext) {
+                    break;
+                }
+                Note note = Note.readJson(jsonReader);
+                body.restart();
+                chunk.add(note);
+                chunkChars += (note.getTitle() != null ? note.getTitle().length() : 0) + (note.getContent() != null ? note.getContent().length() : 0);
+            } catch (LimitedInputStream.LimitExceededException e) {
+                // note too large, can't continue (the rest of the body isn't read)
+                error = "note larger than " + this.bodySizeLimit + " bytes";
+                break;
+            } catch (IOException | IllegalStateException e) {
+                // malformed JSON, can't continue
+                error = e.getClass() + " : " + e.getMessage();
+                break;
+            }
+            if (chunk.size() == NoteRequestHandler.BULK_CHUNK_SIZE || chunkChars >= NoteRequestHandler.BULK_CHUNK_CHARS) {
+                index = this.importChunk(chunk, index, jsonWriter);
+                chunkChars = 0;
+            }
+        }
+        index = this.importChunk(chunk, index, jsonWriter);
+        if (error != null) {
+            this.writeBulkResult(jsonWriter, index, null, error);
+        }
+        jsonWriter.endArray();
+        jsonWriter.endObject();
+        jsonWriter.flush();
+        writer.write("\n");
+        writer.close();
+    }
+
+    /**
+     * Retrieves the notes with the IDs passed as JSON array, or as "ids" array of a JSON object,
+     * for lists of IDs too long for the query. Replies like <code>handleGetNotesRequest()</code>.
+     */
+    private void handleMultiGetRequest(HttpExchange exchange) throws Exception {
+        ArrayList<Integer> ids = new ArrayList<Integer>();
+        JsonReader jsonReader = new JsonReader(new BufferedReader(new InputStreamReader(this.requestBody(exchange), StandardCharsets.UTF_8)));
+        try {
+            boolean isObject = jsonReader.peek() == JsonToken.BEGIN_OBJECT;
+            if (isObject) {
+                // find the IDs among the properties
+                jsonReader.beginObject();
+                while (jsonReader.hasNext() && !jsonReader.nextName().equals(NoteRequestHandler.QUERY_IDS)) {
+                    jsonReader.skipValue();
+                }
+            }
+            jsonReader.beginArray();
+            while (jsonReader.hasNext()) {
+                ids.add(jsonReader.nextInt());
+            }
+            jsonReader.endArray();
+        } catch (LimitedInputStream.LimitExceededException e) {
+            throw e;
+        } catch (IOException | IllegalStateException e) {
+            // malformed JSON, or no IDs
+            this.sendBadRequestResponse(exchange, e.getClass() + " : " + e.getMessage());
+            return;
+        }
+        this.handleGetNotesRequest(exchange, ids.stream().mapToInt(Integer::intValue).toArray());
+    }
+
+    /**
+     * Adds the given chunk of notes in one go and writes their results, numbered from the given index.
+     * Returns the index of the following note, the chunk is cleared for the next notes.
+     */
+    private int importChunk(ArrayList<Note> chunk, int index, JsonWriter jsonWriter) throws Exception {
+        if (chunk.size() != 0) {
+            boolean[] added = null;
+            String error = null;
+            try {
+                added = Database.getInstance().addNotes(chunk);
+            } catch (Exception e) {
+                // whole chunk failed
+                error = e.getClass() + " : " + e.getMessage();
+            }
+            for (int i = 0; i < chunk.size(); i++) {
+                if (added != null && added[i]) {
+                    this.writeBulkResult(jsonWriter, index + i, chunk.get(i), null);
+                } else if (error == null && chunk.get(i) != null && chunk.get(i).isValid()) {
+                    // in a shard which failed, while others didn't
+                    this.writeBulkResult(jsonWriter, index + i, null, "not added, try again");
+                } else {
+                    this.writeBulkResult(jsonWriter, index + i, null, error != null ? error : "invalid note");
+                }
+            }
+            // let the client see the progress
+            jsonWriter.flush();
+            index += chunk.size();
+            chunk.clear();
+        }
+        return index;
+    }
+
+    /**
+     * Writes the result of a single note of a bulk import: the added note or the error.
+     */
+    private void writeBulkResult(JsonWriter jsonWriter, int index, Note note, String error) throws IOException {
+        jsonWriter.beginObject();
+        jsonWriter.name(NoteRequestHandler.RESPONSE_INDEX).value(index);
+        jsonWriter.name(NoteRequestHandler.RESPONSE_SUCCESS).value(error == null);
+        if (error == null) {
+            jsonWriter.name(Note.JSON_ID_KEY).value(note.getID());
+        } else {
+            jsonWriter.name(NoteRequestHandler.RESPONSE_ERROR).value(error);
+        }
+        jsonWriter.endObject();
+    }
+
     /**
      * Updates the specified singleton/Note with the passed JSON data.
      */
@@ -129,8 +707,11 @@ public class NoteRequestHandler implements HttpHandler {
         String path = exchange.getRequestURI().getPath();
         int id = this.parseSingletonFromPath(path);
         // parse the passed JSON as Note, with corresponding ID
-        JsonObject jsonNote = this.requestBodyToJSON(exchange);
-        Note note = new Note(id, jsonNote.get(Note.JSON_TITLE_KEY).getAsString(), jsonNote.get(Note.JSON_CONTENT_KEY).getAsString(), -1);
+        Note jsonNote = this.requestBodyToNote(exchange);
+        if (jsonNote == null) {
+            return;
+        }
+        Note note = new Note(id, jsonNote.getTitle(), jsonNote.getContent(), -1);
         // update the Note in the DB
         Database.getInstance().updateNote(note);
         // reply with success
@@ -151,31 +732,113 @@ public class NoteRequestHandler implements HttpHandler {
     }
 
     /**
-     * Parses the request body of an HttpExchange as JSON.
+     * Parses the request body of an HttpExchange as Note (title and content), without building a JSON tree first.
+     * If it's malformed or the Note isn't valid replies with 400 - bad request, and returns null.
+     * If it's too large throws a <code>LimitExceededException</code>, see <code>requestBody()</code>.
      */
-    private JsonObject requestBodyToJSON(HttpExchange exchange) throws Exception {
-        JsonObject jsonObject = null;
-        // try to parse the request body as JSON
-        InputStreamReader inputStreamReader = new InputStreamReader(exchange.getRequestBody());
-        jsonObject = JsonParser.parseReader(inputStreamReader).getAsJsonObject();
-        // done, close
-        inputStreamReader.close();
-        return jsonObject;
+    private Note requestBodyToNote(HttpExchange exchange) throws Exception {
+        Note note = null;
+        try {
+            note = new NoteCodec().readNote(this.requestBody(exchange));
+        } catch (LimitedInputStream.LimitExceededException e) {
+            throw e;
+        } catch (IOException e) {
+            this.sendBadRequestResponse(exchange, e.getClass() + " : " + e.getMessage());
+            return null;
+        }
+        if (!note.isValid()) {
+            this.sendBadRequestResponse(exchange, "invalid note");
+            return null;
+        }
+        return note;
+    }
+
+    /**
+     * Get the body of the request, limited in size as configured (unlimited if 0). Reading more than the limit throws a
+     * <code>LimitExceededException</code>, answered with 413 - payload too large by <code>handle()</code>.
+     * If the client declared a larger length it's thrown right away, before anything is read. On the "nio" transport
+     * a client expecting <code>100 Continue</code> then doesn't even send the body (the JDK's server sends
+     * <code>100 Continue</code> itself, before the handler runs).
+     */
+    private LimitedInputStream requestBody(HttpExchange exchange) throws Exception {
+        long limit = this.bodySizeLimit > 0 ? this.bodySizeLimit : Long.MAX_VALUE;
+        String length = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (length != null && Long.parseLong(length.trim()) > limit) {
+            throw new LimitedInputStream.LimitExceededException(limit);
+        }
+        return new LimitedInputStream(exchange.getRequestBody(), limit);
+    }
+
+    /**
+     * Start the response for the exchange, with given code, content type and length of the body (-1 if unknown).
+     * Returns the stream to write the body to, which must be closed when done.
+     * The body is compressed if the client accepts it, unless it's known to be small. With compression (or
+     * unknown length) the body is sent with chunked transfer, as its final length is unknown.
+     */
+    private OutputStream startResponse(HttpExchange exchange, int code, String contentType, long length) throws Exception {
+        Headers headers = exchange.getResponseHeaders();
+        headers.set("Content-Type", contentType);
+        String encoding = null;
+        if (this.compression && (length < 0 || length >= this.compressionMinSize)) {
+            // worth compressing, if accepted
+            headers.set("Vary", "Accept-Encoding");
+            encoding = ContentEncoding.negotiate(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+        }
+        OutputStream outputStream = null;
+        if (encoding != null) {
+            headers.set("Content-Encoding", encoding);
+            exchange.sendResponseHeaders(code, 0);
+            outputStream = ContentEncoding.wrap(exchange.getResponseBody(), encoding);
+        } else {
+            exchange.sendResponseHeaders(code, length < 0 ? 0 : length);
+            outputStream = exchange.getResponseBody();
+        }
+        return outputStream;
     }
 
     /**
-     * Send custom response/code for the exchange.
+     * Send custom response/code for the exchange, as plain text ending with a newline.
      */
     private void sendResponse(HttpExchange exchange, String response, int code) throws Exception {
         // append newline, if it doesn't end with one
         if (response != null && !response.endsWith("\n")) {
             response = response + "\n";
         }
-        // send the provided response/code
-        exchange.sendResponseHeaders(code, response.getBytes().length);
-        OutputStream outputStream = exchange.getResponseBody();
-        outputStream.write(response.getBytes());
-        outputStream.flush();
+        // encode once, and send the provided response/code
+        this.sendResponse(exchange, response.getBytes(StandardCharsets.UTF_8), code, NoteRequestHandler.CONTENT_TYPE_TEXT);
+    }
+
+    /**
+     * Send custom response/code for the exchange, from the given (already encoded) bytes of the given content type.
+     * A newline is appended, if it doesn't end with one.
+     */
+    private void sendResponse(HttpExchange exchange, byte[] response, int code, String contentType) throws Exception {
+        this.sendResponse(exchange, ByteBuffer.wrap(response), code, contentType);
+    }
+
+    /**
+     * Send custom response/code for the exchange, from the given (already encoded) buffer of the given content type.
+     * A heap buffer is written straight from its array; a direct one (e.g. a slice of the mapped notes) goes through
+     * a small array in chunks, as the response is a stream, rather than being copied to an array whole first.
+     * A newline is appended, if it doesn't end with one.
+     */
+    private void sendResponse(HttpExchange exchange, ByteBuffer response, int code, String contentType) throws Exception {
+        int length = response.remaining();
+        boolean newline = length == 0 || response.get(response.limit() - 1) != '\n';
+        OutputStream outputStream = this.startResponse(exchange, code, contentType, length + (newline ? 1 : 0));
+        if (response.hasArray()) {
+            outputStream.write(response.array(), response.arrayOffset() + response.position(), length);
+            response.position(response.limit());
+        } else {
+            WritableByteChannel channel = Channels.newChannel(outputStream);
+            while (response.hasRemaining()) {
+                channel.write(response);
+            }
+        }
+        if (newline) {
+            outputStream.write('\n');
+        }
+        outputStream.close();
     }
 
     /**
@@ -185,6 +848,13 @@ public class NoteRequestHandler implements HttpHandler {
         this.sendResponse(exchange, response, HttpURLConnection.HTTP_OK);
     }
 
+    /**
+     * Send failure response for the exchange, with code 400 - bad request.
+     */
+    private void sendBadRequestResponse(HttpExchange exchange, String response) throws Exception {
+        this.sendResponse(exchange, response, HttpURLConnection.HTTP_BAD_REQUEST);
+    }
+
     /**
      * Send failure response for the exchange, with code 500 - internal error.
      */
@@ -192,6 +862,24 @@ public class NoteRequestHandler implements HttpHandler {
         this.sendResponse(exchange, response, HttpURLConnection.HTTP_INTERNAL_ERROR);
     }
 
+    /**
+     * Get the entity tag of the Note with given ID and timestamp. Weak, as it's the same whether the response is
+     * compressed or not.
+     */
+    private static String noteETag(int id, long timestamp) {
+        return "W/\"" + id + "-" + timestamp + "\"";
+    }
+
+    /**
+     * Writes the name of a property of a JSON object, after a comma unless it's the first property.
+     */
+    private static NoteCodec writeName(NoteCodec codec, String name, boolean first) {
+        if (!first) {
+            codec.writeRaw(',');
+        }
+        return codec.writeRaw('"').writeRaw(name).writeRaw("\":");
+    }
+
     /**
      * Parse the singleton from the given path.
      */
@@ -206,4 +894,309 @@ public class NoteRequestHandler implements HttpHandler {
         return singleton;
     }
 
+    /**
+     * Parse the query of the given URI as map of parameter names to (decoded) values.
+     */
+    private HashMap<String, String> parseQueryFromURI(URI uri) {
+        HashMap<String, String> query = new HashMap<String, String>();
+        String rawQuery = uri.getRawQuery();
+        if (rawQuery != null && rawQuery.length() != 0) {
+            // parse each "name=value" pair, a missing value is taken as empty
+            for (String pair : rawQuery.split("&")) {
+                int separator = pair.indexOf('=');
+                String name = separator < 0 ? pair : pair.substring(0, separator);
+                String value = separator < 0 ? "" : pair.substring(separator + 1);
+                query.put(URLDecoder.decode(name, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+            }
+        }
+        return query;
+    }
+
+    /**
+     * Parse the given comma separated list of IDs.
+     */
+    private int[] parseIDs(String parameter) {
+        String[] parts = parameter.split(",");
+        int[] ids = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            ids[i] = Integer.parseInt(parts[i].trim());
+        }
+        return ids;
+    }
+
+    /**
+     * Parse the given query parameter as int, or the default value if not present.
+     */
+    private int parseIntParameter(HashMap<String, String> query, String name, int defaultValue) {
+        int value = defaultValue;
+        String parameter = query.get(name);
+        if (parameter != null && parameter.length() != 0) {
+            value = Integer.parseInt(parameter);
+        }
+        return value;
+    }
+
+    /**
+     * Parse the given query parameter as long, or the default value if not present.
+     */
+    private long parseLongParameter(HashMap<String, String> query, String name, long defaultValue) {
+        long value = defaultValue;
+        String parameter = query.get(name);
+        if (parameter != null && parameter.length() != 0) {
+            value = Long.parseLong(parameter);
+        }
+        return value;
+    }
+
+    /**
+     * Writes the streamed changes as "result" array of modified notes followed by "deleted" array of IDs.
+     * Arrays are only opened when needed.
+     * The response is only started on the first change (or when finished), so it can still fail before.
+     */
+    private class SyncWriter implements ChangeCallback {
+
+        private final HttpExchange exchange;
+        private final RequestTimes times = RequestTimes.current();
+        private OutputStream outputStream = null;
+        private NoteCodec codec = null;
+        private boolean inResult = false;
+        private boolean inDeleted = false;
+        // whether anything was written into the object (or the current array)
+        private boolean hasResult = false;
+        private boolean hasDeleted = false;
+
+        SyncWriter(HttpExchange exchange) {
+            this.exchange = exchange;
+        }
+
+        @Override
+        public void onNote(Note note) throws Exception {
+            long start = System.nanoTime();
+            this.start();
+            if (!this.inResult) {
+                NoteRequestHandler.writeName(this.codec, NoteRequestHandler.RESPONSE_RESULT, true).writeRaw('[');
+                this.inResult = true;
+            } else {
+                this.codec.writeRaw(',');
+            }
+            this.codec.writeNote(note);
+            this.hasResult = true;
+            this.flushIfFull();
+            this.times.addSerializationTime(System.nanoTime() - start);
+        }
+
+        @Override
+        public void onDeleted(int id, long timestamp) throws Exception {
+            long start = System.nanoTime();
+            this.start();
+            if (this.inResult) {
+                // modified notes come first, done with them
+                this.codec.writeRaw(']');
+                this.inResult = false;
+            }
+            if (!this.inDeleted) {
+                NoteRequestHandler.writeName(this.codec, NoteRequestHandler.RESPONSE_DELETED, !this.hasResult).writeRaw('[');
+                this.inDeleted = true;
+            } else {
+                this.codec.writeRaw(',');
+            }
+            this.codec.writeLong(id);
+            this.hasDeleted = true;
+            this.flushIfFull();
+            this.times.addSerializationTime(System.nanoTime() - start);
+        }
+
+        /**
+         * Start the response, if not started yet.
+         */
+        private void start() throws Exception {
+            if (this.codec == null) {
+                this.outputStream = NoteRequestHandler.this.startResponse(this.exchange, HttpURLConnection.HTTP_OK, NoteRequestHandler.CONTENT_TYPE_JSON, -1);
+                this.codec = new NoteCodec();
+                this.codec.writeRaw('{');
+            }
+        }
+
+        /**
+         * Write out what's written so far, once there's a chunk of it.
+         */
+        private void flushIfFull() throws IOException {
+            if (this.codec.size() >= NoteCodec.BUFFER_SIZE) {
+                this.codec.flushTo(this.outputStream);
+            }
+        }
+
+        /**
+         * Close the open array, if any, write the given timestamp to sync from next time and end the response.
+         */
+        void finish(long next) throws Exception {
+            this.start();
+            if (this.inResult || this.inDeleted) {
+                this.codec.writeRaw(']');
+            }
+            NoteRequestHandler.writeName(this.codec, NoteRequestHandler.RESPONSE_NEXT, !this.hasResult && !this.hasDeleted).writeLong(next);
+            this.codec.writeRaw("}\n");
+            this.codec.flushTo(this.outputStream);
+            this.outputStream.close();
+        }
+
+    }
+
+    /**
+     * Writes the changes as server-sent events, each flushed to the client only on <code>flush()</code>.
+     * Changes read from the DB (i.e. replayed) are sent as "updated" or "deleted" events.
+     * The response is only started on the first change (or flush), so it can still fail before. It's never compressed,
+     * which would hold back the events.
+     */
+    private class EventWriter implements ChangeCallback {
+
+        private final HttpExchange exchange;
+        private final RequestTimes times = RequestTimes.current();
+        private OutputStream outputStream = null;
+        private NoteCodec codec = null;
+
+        EventWriter(HttpExchange exchange) {
+            this.exchange = exchange;
+        }
+
+        @Override
+        public void onNote(Note note) throws Exception {
+            this.writeEvent(new ChangeEvent(ChangeEvent.TYPE_UPDATED, note));
+        }
+
+        @Override
+        public void onDeleted(int id, long timestamp) throws Exception {
+            this.writeEvent(new ChangeEvent(id, timestamp));
+        }
+
+        /**
+         * Write the given change as event, its timestamp as ID and its JSON as data (a single line).
+         */
+        void writeEvent(ChangeEvent event) throws Exception {
+            long start = System.nanoTime();
+            this.start();
+            this.codec.writeRaw("id: ").writeLong(event.getTimestamp());
+            this.codec.writeRaw("\nevent: ").writeRaw(event.getType());
+            this.codec.writeRaw("\ndata: ").writeRaw(event.getJson()).writeRaw("\n\n");
+            // written out in chunks, sent on flush
+            if (this.codec.size() >= NoteCodec.BUFFER_SIZE) {
+                this.codec.flushTo(this.outputStream);
+            }
+            this.times.addSerializationTime(System.nanoTime() - start);
+        }
+
+        /**
+         * Write a comment, ignored by the client, to keep the connection open.
+         */
+        void writeHeartbeat() throws Exception {
+            this.start();
+            this.codec.writeRaw(":\n\n");
+        }
+
+        /**
+         * Send the events written so far to the client.
+         */
+        void flush() throws Exception {
+            this.start();
+            this.codec.flushTo(this.outputStream);
+            this.outputStream.flush();
+        }
+
+        /**
+         * End the response.
+         */
+        void close() throws Exception {
+            this.start();
+            this.codec.flushTo(this.outputStream);
+            this.outputStream.close();
+        }
+
+        /**
+         * Start the response, if not started yet.
+         */
+        private void start() throws Exception {
+            if (this.codec == null) {
+                Headers headers = this.exchange.getResponseHeaders();
+                headers.set("Content-Type", NoteRequestHandler.CONTENT_TYPE_EVENT_STREAM);
+                headers.set("Cache-Control", "no-cache");
+                this.exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, 0);
+                this.outputStream = this.exchange.getResponseBody();
+                this.codec = new NoteCodec();
+            }
+        }
+
+    }
+
+    /**
+     * Writes the streamed notes as "result" array with the fields of the query, up to the limit, remembering whether
+     * there's a next page.
+     * The array is only opened on the first note, so an empty collection results in an empty object.
+     */
+    private static class CollectionWriter implements NoteCallback {
+
+        private final NoteCodec codec;
+        private final OutputStream outputStream;
+        private final NoteQuery query;
+        private final int limit;
+        private final RequestTimes times = RequestTimes.current();
+        private int count = 0;
+        private NoteCursor lastCursor = null;
+        private boolean hasNext = false;
+
+        CollectionWriter(NoteCodec codec, OutputStream outputStream, NoteQuery query, int limit) {
+            this.codec = codec;
+            this.outputStream = outputStream;
+            this.query = query;
+            this.limit = limit;
+        }
+
+        @Override
+        public void onNote(Note note) throws Exception {
+            if (this.limit > 0 && this.count >= this.limit) {
+                // one past the limit, there's a next page
+                this.hasNext = true;
+                return;
+            }
+            long start = System.nanoTime();
+            if (this.count == 0) {
+                // first note, open the array
+                NoteRequestHandler.writeName(this.codec, NoteRequestHandler.RESPONSE_RESULT, true).writeRaw('[');
+            } else {
+                this.codec.writeRaw(',');
+            }
+            this.codec.writeNote(note, this.query);
+            // written out in chunks
+            if (this.codec.size() >= NoteCodec.BUFFER_SIZE) {
+                this.codec.flushTo(this.outputStream);
+            }
+            this.lastCursor = this.query.getCursor(note);
+            this.count++;
+            this.times.addSerializationTime(System.nanoTime() - start);
+        }
+
+        /**
+         * Close the array, if any.
+         */
+        void finish() throws Exception {
+            if (this.count != 0) {
+                this.codec.writeRaw(']');
+            }
+        }
+
+        /**
+         * Whether there are more notes past the limit.
+         */
+        boolean hasNext() {
+            return this.hasNext;
+        }
+
+        /**
+         * Get the cursor of the last note written, to continue after it.
+         */
+        NoteCursor getLastCursor() {
+            return this.lastCursor;
+        }
+
+    }
+
 }
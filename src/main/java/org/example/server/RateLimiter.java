@@ -0,0 +1,107 @@
+package org.example.server;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the rate of requests per client, through a token bucket per client address: the bucket holds up to a
+ * second's worth of requests (so short bursts pass), refilled at the given rate, and each request takes a token.
+ * Buckets of clients idle long enough to be full again are removed now and then, so they don't pile up.
+ * Thread-safe.
+ */
+class RateLimiter {
+
+    // buckets are swept at most this often (in nanoseconds)
+    private static final long SWEEP_INTERVAL = TimeUnit.MINUTES.toNanos(1);
+
+    // requests per second, and per nanosecond for the refill
+    private final double rate;
+    private final double ratePerNano;
+    private final ConcurrentHashMap<InetAddress, Bucket> buckets = new ConcurrentHashMap<InetAddress, Bucket>();
+    private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+
+    /**
+     * Create a limiter allowing each client the given number of requests per second.
+     */
+    RateLimiter(double rate) {
+        this.rate = rate;
+        this.ratePerNano = rate / TimeUnit.SECONDS.toNanos(1);
+    }
+
+    /**
+     * Take a token for a request of the given client.
+     * Returns 0 if the request may pass, otherwise the time in nanoseconds until the next token.
+     */
+    long acquire(InetAddress client) {
+        long now = System.nanoTime();
+        this.sweep(now);
+        Bucket bucket = this.buckets.computeIfAbsent(client, c -> new Bucket(now));
+        return bucket.acquire(now);
+    }
+
+    /**
+     * Remove the buckets which are full, i.e. of clients idle for a while, if not done recently.
+     */
+    private void sweep(long now) {
+        long last = this.lastSweep.get();
+        if (now - last >= RateLimiter.SWEEP_INTERVAL && this.lastSweep.compareAndSet(last, now)) {
+            // only one thread sweeps, the others carry on
+            this.buckets.values().removeIf(bucket -> bucket.isFull(now));
+        }
+    }
+
+    /**
+     * Token bucket of a client, full when created.
+     */
+    private class Bucket {
+
+        private double tokens = RateLimiter.this.capacity();
+        private long refilled;
+
+        Bucket(long now) {
+            this.refilled = now;
+        }
+
+        /**
+         * Refill the tokens for the time passed, then take one if there's one.
+         * Returns 0 if taken, otherwise the time in nanoseconds until the next token.
+         */
+        synchronized long acquire(long now) {
+            this.refill(now);
+            long wait = 0;
+            if (this.tokens >= 1) {
+                this.tokens -= 1;
+            } else {
+                wait = (long) Math.ceil((1 - this.tokens) / RateLimiter.this.ratePerNano);
+            }
+            return wait;
+        }
+
+        /**
+         * Whether the bucket is full (after refilling), i.e. the client didn't send requests for a while.
+         */
+        synchronized boolean isFull(long now) {
+            this.refill(now);
+            return this.tokens >= RateLimiter.this.capacity();
+        }
+
+        /**
+         * Add the tokens for the time passed since the last refill, up to the capacity.
+         */
+        private void refill(long now) {
+            this.tokens = Math.min(RateLimiter.this.capacity(), this.tokens + (now - this.refilled) * RateLimiter.this.ratePerNano);
+            this.refilled = now;
+        }
+
+    }
+
+    /**
+     * Get the capacity of the buckets: a second's worth of requests, at least one.
+     */
+    private double capacity() {
+        return Math.max(1, this.rate);
+    }
+
+}
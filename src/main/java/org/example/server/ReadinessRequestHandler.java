@@ -0,0 +1,56 @@
+package org.example.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Handler for the readiness of the server (GET only), for load balancers and orchestrators to send it requests only
+ * once it's warmed up: <code>200 ready</code> when ready, <code>503 starting</code> before (and while stopping).
+ */
+public class ReadinessRequestHandler implements HttpHandler {
+
+    public static final String REQUEST_PATH = "/ready";
+
+    private static final byte[] READY = "ready\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] STARTING = "starting\n".getBytes(StandardCharsets.UTF_8);
+
+    private final BooleanSupplier ready;
+
+    /**
+     * Create the handler, answering with the readiness of the server as given.
+     */
+    public ReadinessRequestHandler(BooleanSupplier ready) {
+        this.ready = ready;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) {
+        try {
+            if (exchange.getRequestMethod().equals("GET")) {
+                boolean ready = this.ready.getAsBoolean();
+                byte[] body = ready ? ReadinessRequestHandler.READY : ReadinessRequestHandler.STARTING;
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                exchange.getResponseHeaders().set("Cache-Control", "no-store");
+                exchange.sendResponseHeaders(ready ? HttpURLConnection.HTTP_OK : HttpURLConnection.HTTP_UNAVAILABLE, body.length);
+                OutputStream outputStream = exchange.getResponseBody();
+                outputStream.write(body);
+                outputStream.close();
+            } else {
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_BAD_METHOD, -1);
+            }
+        } catch (Exception e) {
+            // something went wrong, nothing left to respond
+            try { exchange.sendResponseHeaders(HttpURLConnection.HTTP_INTERNAL_ERROR, -1); } catch (Exception ignored) { ; }
+            e.printStackTrace();
+        } finally {
+            // done, close
+            exchange.close();
+        }
+    }
+
+}
@@ -1,19 +1,83 @@
 package org.example.server;
 
+import com.sun.net.httpserver.HttpContext;
 import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+import org.example.Config;
 import org.example.db.Database;
+import org.example.metrics.RequestTimes;
+import org.example.server.nio.NioHttpServer;
 
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
 
 /**
- * Local server running on port 8000, which exposes the REST API to the Note DB.
+ * Local server running on port 8000 (unless configured otherwise), which exposes the REST API to the Note DB.
+ * Serves HTTPS instead of HTTP if a key store is configured, see <code>Config.TLS_KEYSTORE</code>.
+ * The DB is opened while the server is created, and once started the server warms up with requests to itself before
+ * it reports to be ready (see <code>ReadinessRequestHandler</code>), so its first clients don't pay for loading the
+ * classes of the request handling.
  */
 public class Server {
 
-    // server port
+    // default server port
     private static final int SERVER_PORT = 8000;
+    // JDK server property to set TCP_NODELAY on its connections, read once when the first server is created
+    private static final String NODELAY_PROPERTY = "sun.net.httpserver.nodelay";
+
+    // supported transports, see Config.SERVER_TRANSPORT
+    private static final String TRANSPORT_JDK = "jdk";
+    private static final String TRANSPORT_NIO = "nio";
+
+    // supported executors for the requests, see Config.SERVER_EXECUTOR
+    private static final String EXECUTOR_POOL = "pool";
+    private static final String EXECUTOR_VIRTUAL = "virtual";
+    private static final String EXECUTOR_SINGLE = "single";
+
+    // requests the server sends itself to warm up, all succeeding without changing any note: method, path below the API
+    // and body, covering the parsing and serializing of notes, pages, projections, search and compression, and the
+    // write path with an update of note 0 (which never exists, IDs start at 1)
+    private static final String[][] WARMUP_REQUESTS = {
+            {"GET", "?limit=1", null},
+            {"GET", "?fields=id,title,timestamp&sort=timestamp:desc&limit=1", null},
+            {"GET", "?q=warmup&limit=1", null},
+            {"GET", "/0", null},
+            {"POST", "/_mget", "{\"ids\" : [0]}"},
+            {"PUT", "/0", "{\"title\" : \"warmup\", \"content\" : \"warmup\"}"}
+    };
+    // time in milliseconds the warm-up waits for each of its requests
+    private static final int WARMUP_TIMEOUT = 5000;
+    // number of rejected requests which may wait to be answered with 503, further ones get their connection closed
+    private static final int OVERFLOW_QUEUE = 256;
 
     private HttpServer server = null;
+    private ExecutorService executor = null;
+    // thread only answering the requests the executor rejects, see timeQueue()
+    private ExecutorService overflowExecutor = null;
+    // TLS of the connections and the key store it's made of, null if plain HTTP
+    private SSLContext sslContext = null;
+    private KeyStore keyStore = null;
+    // the DB, opened in the background meanwhile the server is created
+    private FutureTask<Database> database = null;
+    // whether the server is started and warmed up (and not stopping)
+    private volatile boolean ready = false;
+    // time in milliseconds from the start of the JVM until the server was ready, null if it isn't yet
+    private LongSupplier startupTime = null;
 
     /**
      * Create a new server instance, without starting it.
@@ -21,31 +85,289 @@ public class Server {
      * To stop it call <code>stopServer()</code>.
      */
     public Server() throws Exception {
-        // create the server, with basic executor
-        this.server = HttpServer.create(new InetSocketAddress(Server.SERVER_PORT), 0);
-        this.server.setExecutor(null);
-        // assign the handler to handle all note requests
-        this.server.createContext(NoteRequestHandler.REQUEST_PATH, new NoteRequestHandler());
+        // open the DB in the background, it takes a while (native library, schema, connections)
+        this.database = new FutureTask<Database>(() -> {
+            long start = System.nanoTime();
+            Database database = Database.getInstance();
+            Startup.record(Startup.PHASE_DB, System.nanoTime() - start);
+            return database;
+        });
+        new Thread(this.database, "database-open").start();
+        // create the server, with the configured transport, TLS and executor
+        this.sslContext = this.createSSLContext();
+        this.server = this.createHttpServer(new InetSocketAddress(Config.getInt(Config.SERVER_PORT, Server.SERVER_PORT)));
+        this.executor = this.createExecutor();
+        this.server.setExecutor(this.executor != null ? this.timeQueue(this.executor) : null);
+        // assign the handler to handle all note requests (admitted within the limits), and the one exposing the
+        // metrics, both measured
+        MetricsFilter metricsFilter = new MetricsFilter();
+        HttpContext notesContext = this.server.createContext(NoteRequestHandler.REQUEST_PATH, new NoteRequestHandler(this.getStreamLimit()));
+        notesContext.getFilters().add(metricsFilter);
+        notesContext.getFilters().add(new AdmissionFilter());
+        this.server.createContext(MetricsRequestHandler.REQUEST_PATH, new MetricsRequestHandler()).getFilters().add(metricsFilter);
+        // and the one telling whether it's ready, unmeasured as it's polled
+        this.server.createContext(ReadinessRequestHandler.REQUEST_PATH, new ReadinessRequestHandler(() -> this.ready));
+    }
+
+    /**
+     * Get the port the server listens on.
+     */
+    public int getPort() {
+        return this.server.getAddress().getPort();
     }
 
     /**
-     * Prepares the database for access and starts the server.
+     * Whether the server serves HTTPS, otherwise plain HTTP.
+     */
+    public boolean isSecure() {
+        return this.sslContext != null;
+    }
+
+    /**
+     * Whether the server is started and warmed up, i.e. ready for requests.
+     */
+    public boolean isReady() {
+        return this.ready;
+    }
+
+    /**
+     * Get the time in milliseconds from the start of the JVM until the server was ready, 0 if it isn't yet.
+     */
+    public long getStartupTime() {
+        return this.startupTime != null ? this.startupTime.getAsLong() : 0;
+    }
+
+    /**
+     * Prepares the database for access and starts the server, warming it up (unless configured otherwise).
+     * Returns once it's ready.
      */
     public void startServer() throws Exception {
-        // open and connect to the DB
-        Database.getInstance();
+        // wait for the DB to be opened and connected to
+        try {
+            this.database.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
         // start the server
         this.server.start();
+        if (Config.getBoolean(Config.SERVER_WARMUP, true)) {
+            long start = System.nanoTime();
+            this.warmUp();
+            Startup.record(Startup.PHASE_WARMUP, System.nanoTime() - start);
+        }
+        this.ready = true;
+        this.startupTime = Startup.ready();
     }
 
     /**
-     * Closes the DB access/connection and stops the server.
+     * Stops the server and closes the DB access/connection.
      */
     public void stopServer() throws Exception {
-        // close the DB
-        Database.getInstance().closeDB();
-        // stop the server itself
+        this.ready = false;
+        // stop the server itself, then its executor
         this.server.stop(0);
+        if (this.executor != null) {
+            this.executor.shutdown();
+            this.overflowExecutor.shutdown();
+            this.executor.awaitTermination(5, TimeUnit.SECONDS);
+            this.overflowExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        }
+        // close the DB, once no more requests are running
+        Database.getInstance().closeDB();
+    }
+
+    /**
+     * Warm up the server with requests to itself over the loopback interface (see <code>WARMUP_REQUESTS</code>), which
+     * load and compile the classes of the whole request handling: transport, TLS, filters, handler, JSON and DB.
+     * The requests are counted in the metrics like others. Failures are only reported, the server works without.
+     */
+    private void warmUp() {
+        String baseURL = (this.isSecure() ? "https" : "http") + "://" + InetAddress.getLoopbackAddress().getHostAddress() +
+                ":" + this.getPort() + NoteRequestHandler.REQUEST_PATH;
+        try {
+            SSLContext sslContext = null;
+            if (this.isSecure()) {
+                // trusting only the server's own certificate, so the host name it's issued for doesn't matter
+                TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+                trustManagerFactory.init(this.keyStore);
+                sslContext = SSLContext.getInstance("TLS");
+                sslContext.init(null, trustManagerFactory.getTrustManagers(), null);
+            }
+            for (String[] request : Server.WARMUP_REQUESTS) {
+                HttpURLConnection connection = (HttpURLConnection) new URL(baseURL + request[1]).openConnection();
+                if (sslContext != null) {
+                    ((HttpsURLConnection) connection).setSSLSocketFactory(sslContext.getSocketFactory());
+                    ((HttpsURLConnection) connection).setHostnameVerifier((host, session) -> true);
+                }
+                connection.setConnectTimeout(Server.WARMUP_TIMEOUT);
+                connection.setReadTimeout(Server.WARMUP_TIMEOUT);
+                connection.setRequestMethod(request[0]);
+                connection.setRequestProperty("Accept-Encoding", "gzip");
+                if (request[2] != null) {
+                    connection.setDoOutput(true);
+                    OutputStream outputStream = connection.getOutputStream();
+                    outputStream.write(request[2].getBytes(StandardCharsets.UTF_8));
+                    outputStream.close();
+                }
+                // read the whole response, so the connection is kept alive for the next request
+                int status = connection.getResponseCode();
+                InputStream inputStream = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+                if (inputStream != null) {
+                    inputStream.transferTo(OutputStream.nullOutputStream());
+                    inputStream.close();
+                }
+            }
+        } catch (Exception e) {
+            // going on without
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Create the HTTP server on the given address, with the configured transport.
+     */
+    private HttpServer createHttpServer(InetSocketAddress address) throws Exception {
+        HttpServer server = null;
+        int backlog = Config.getInt(Config.SERVER_BACKLOG, 0);
+        String transport = Config.getString(Config.SERVER_TRANSPORT, Server.TRANSPORT_JDK);
+        switch (transport) {
+            case Server.TRANSPORT_JDK:
+                // send responses without delay (unless configured otherwise), the JDK server writes headers and body
+                // separately and with Nagle the body waits for the delayed ACK of the headers, i.e. ~40ms per response
+                if (System.getProperty(Server.NODELAY_PROPERTY) == null) {
+                    System.setProperty(Server.NODELAY_PROPERTY, "true");
+                }
+                if (this.sslContext != null) {
+                    HttpsServer httpsServer = HttpsServer.create(address, backlog);
+                    httpsServer.setHttpsConfigurator(new HttpsConfigurator(this.sslContext));
+                    server = httpsServer;
+                } else {
+                    server = HttpServer.create(address, backlog);
+                }
+                break;
+            case Server.TRANSPORT_NIO:
+                server = new NioHttpServer(address, backlog, this.sslContext);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown " + Config.SERVER_TRANSPORT + ": " + transport);
+        }
+        return server;
+    }
+
+    /**
+     * Create the TLS context of the configured key store, or null if none is configured.
+     * Sessions are cached, so returning clients resume them with an abbreviated handshake (TLS 1.2 by session ID,
+     * TLS 1.3 by session ticket), saving the key exchange and a round trip when they reconnect.
+     */
+    private SSLContext createSSLContext() throws Exception {
+        SSLContext sslContext = null;
+        String path = Config.getString(Config.TLS_KEYSTORE, "");
+        if (!path.isEmpty()) {
+            char[] password = Config.getString(Config.TLS_PASSWORD, "").toCharArray();
+            // the type of the key store is detected from the file
+            this.keyStore = KeyStore.getInstance(new File(path), password);
+            KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagerFactory.init(this.keyStore, password);
+            sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(keyManagerFactory.getKeyManagers(), null, null);
+            sslContext.getServerSessionContext().setSessionCacheSize(Config.getInt(Config.TLS_SESSION_CACHE, 20480));
+            sslContext.getServerSessionContext().setSessionTimeout(Config.getInt(Config.TLS_SESSION_TIMEOUT, 86400));
+        }
+        return sslContext;
+    }
+
+    /**
+     * Wrap the given executor, recording the time each request waits for a thread (see <code>RequestTimes</code>).
+     * A request the executor rejects (its threads and queue are full) goes to a thread of its own marked as overflow,
+     * only to be answered with <code>503</code> by the admission (see <code>AdmissionFilter</code>), so it neither runs
+     * on the thread of the server nor waits. When that one is full too the rejection is left to the server, which
+     * closes the connection.
+     */
+    private Executor timeQueue(ExecutorService executor) {
+        AtomicInteger count = new AtomicInteger();
+        this.overflowExecutor = new ThreadPoolExecutor(
+                1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(Server.OVERFLOW_QUEUE),
+                runnable -> new Thread(runnable, "request-overflow-" + count.incrementAndGet()));
+        return runnable -> {
+            long queued = System.nanoTime();
+            try {
+                executor.execute(() -> {
+                    RequestTimes.current().setQueueTime(System.nanoTime() - queued);
+                    runnable.run();
+                });
+            } catch (RejectedExecutionException e) {
+                this.overflowExecutor.execute(() -> {
+                    RequestTimes.current().setOverflow(true);
+                    try {
+                        runnable.run();
+                    } finally {
+                        RequestTimes.current().setOverflow(false);
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Get the maximum number of open change streams, as configured.
+     * Each stream holds a thread of the executor for as long as it's open, so by default at most half the threads of
+     * a pool, none on the dispatcher thread (which would block the server) and any number of virtual threads.
+     */
+    private int getStreamLimit() {
+        int limit = Integer.MAX_VALUE;
+        if (this.executor == null) {
+            limit = 0;
+        } else if (this.executor instanceof ThreadPoolExecutor) {
+            limit = ((ThreadPoolExecutor) this.executor).getMaximumPoolSize() / 2;
+        }
+        return Config.getInt(Config.STREAM_LIMIT, limit);
+    }
+
+    /**
+     * Create the executor running the requests, as configured.
+     * Returns null for the "single" executor, so requests run on the dispatcher thread of the server
+     * (a single thread of its own for the "nio" transport).
+     */
+    private ExecutorService createExecutor() throws Exception {
+        ExecutorService executor = null;
+        String type = Config.getString(Config.SERVER_EXECUTOR, Server.EXECUTOR_POOL);
+        switch (type) {
+            case Server.EXECUTOR_VIRTUAL:
+                // a thread per request, only available from Java 21 on
+                try {
+                    executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                } catch (NoSuchMethodException e) {
+                    System.out.println("virtual threads not supported by this JVM, using a thread pool");
+                    executor = this.createPool();
+                }
+                break;
+            case Server.EXECUTOR_POOL:
+                executor = this.createPool();
+                break;
+            case Server.EXECUTOR_SINGLE:
+                // requests on the dispatcher thread
+                break;
+            default:
+                throw new IllegalArgumentException("unknown " + Config.SERVER_EXECUTOR + ": " + type);
+        }
+        return executor;
+    }
+
+    /**
+     * Create the bounded pool of threads running the requests, as configured.
+     * When both threads and queue are full it rejects the request, to be answered with <code>503</code> (see
+     * <code>timeQueue()</code>) rather than run on the thread of the server, which would stop it for all connections.
+     */
+    private ExecutorService createPool() {
+        int threads = Config.getInt(Config.SERVER_THREADS, 2 * Runtime.getRuntime().availableProcessors());
+        int queue = Config.getInt(Config.SERVER_QUEUE, 1024);
+        AtomicInteger count = new AtomicInteger();
+        return new ThreadPoolExecutor(
+                threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queue),
+                runnable -> new Thread(runnable, "request-" + count.incrementAndGet()),
+                new ThreadPoolExecutor.AbortPolicy());
     }
 
 }
@@ -0,0 +1,76 @@
+package org.example.server;
+
+import org.example.metrics.Metric;
+import org.example.metrics.Metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
+
+/**
+ * Times of the startup of the server, exposed as metrics: how long its phases took, in total from the start of the
+ * JVM until the server is ready, and how long the first request after took (whether it still paid for loading classes
+ * and opening connections). To compare startups e.g. with and without warm-up or class data sharing.
+ */
+class Startup {
+
+    // phases of the startup
+    static final String PHASE_DB = "db";
+    static final String PHASE_WARMUP = "warmup";
+    static final String PHASE_READY = "ready";
+    static final String PHASE_FIRST_REQUEST = "first_request";
+
+    private static final Metric<LongSupplier> STARTUP_TIME = Metrics.sampledGauge(
+            "notes_startup_milliseconds", "Time the startup took, by phase (ready: from the start of the JVM on, " +
+                    "first_request: the first request on the notes once ready)", "phase");
+
+    // whether the first request after the server got ready is still to come, and when it got ready (System.nanoTime())
+    private static final AtomicBoolean FIRST_REQUEST = new AtomicBoolean(false);
+    private static volatile long readyTime = 0;
+
+    private Startup() {
+    }
+
+    /**
+     * Record the time the given phase took, in nanoseconds, replacing the one of an earlier start (if any).
+     */
+    static void record(String phase, long nanos) {
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        Startup.STARTUP_TIME.set(() -> millis, phase);
+    }
+
+    /**
+     * Record that the server is ready now, and await its first request.
+     * Returns the time since the start of the JVM in milliseconds, determined on first use: the uptime of the JVM
+     * takes its management classes, which are loaded then rather than delaying the server.
+     */
+    static LongSupplier ready() {
+        long ready = System.nanoTime();
+        long[] time = {-1};
+        LongSupplier startupTime = () -> {
+            synchronized (time) {
+                if (time[0] < 0) {
+                    long uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+                    time[0] = Math.max(uptime - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - ready), 0);
+                }
+                return time[0];
+            }
+        };
+        Startup.STARTUP_TIME.set(startupTime, Startup.PHASE_READY);
+        Startup.readyTime = ready;
+        Startup.FIRST_REQUEST.set(true);
+        return startupTime;
+    }
+
+    /**
+     * Record the time of a request on the notes started at the given time (System.nanoTime()) in nanoseconds, if it's
+     * the first one started once ready (the last request of the warm-up may finish after).
+     */
+    static void requestDone(long start, long nanos) {
+        if (Startup.FIRST_REQUEST.get() && start - Startup.readyTime >= 0 && Startup.FIRST_REQUEST.compareAndSet(true, false)) {
+            Startup.record(Startup.PHASE_FIRST_REQUEST, nanos);
+        }
+    }
+
+}
@@ -0,0 +1,52 @@
+package org.example.server.nio;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of direct buffers of fixed size, reused across connections.
+ * Connections only hold buffers while they have data to read or write, so idle ones cost no buffer.
+ */
+class BufferPool {
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    /**
+     * Create a new pool of buffers of given size, keeping at most the given number of unused ones.
+     */
+    BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * Get a cleared buffer, pooled or new.
+     */
+    ByteBuffer acquire() {
+        ByteBuffer buffer = this.buffers.poll();
+        if (buffer != null) {
+            this.pooled.decrementAndGet();
+        } else {
+            buffer = ByteBuffer.allocateDirect(this.bufferSize);
+        }
+        return buffer;
+    }
+
+    /**
+     * Return the given buffer to the pool, not to be used anymore by the caller.
+     */
+    void release(ByteBuffer buffer) {
+        if (this.pooled.incrementAndGet() <= this.maxPooled) {
+            buffer.clear();
+            this.buffers.offer(buffer);
+        } else {
+            // enough pooled already, left to the GC
+            this.pooled.decrementAndGet();
+        }
+    }
+
+}
@@ -0,0 +1,482 @@
+package org.example.server.nio;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.Headers;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Connection of the NIO server, alternating between idle (owned by the selector thread, reading the next request's
+ * head) and busy (owned by the thread handling its requests, see <code>run()</code>).
+ * The input buffer is kept ready for reading (flipped), the output buffer ready for writing.
+ * With TLS all input/output goes through the <code>TlsChannel</code> of the connection.
+ */
+class NioConnection implements Runnable {
+
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private final NioHttpServer server;
+    private final SocketChannel channel;
+    // TLS on the channel, null if plain
+    private final TlsChannel tls;
+    private SelectionKey key = null;
+    // buffered input/output, only while there's data
+    private ByteBuffer input = null;
+    private ByteBuffer output = null;
+    private volatile boolean busy = false;
+    private volatile long lastActive = System.currentTimeMillis();
+
+    NioConnection(NioHttpServer server, SocketChannel channel, TlsChannel tls) {
+        this.server = server;
+        this.channel = channel;
+        this.tls = tls;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    /**
+     * Read what's available, on the selector thread (when the channel is ready to read, or to write the output of the
+     * TLS handshake). Returns true once the head of a request is complete, the connection is then busy until handled.
+     * A head too large to buffer is rejected, closing the connection.
+     * The tasks of the TLS handshake are handed to the executor, the connection is busy meanwhile.
+     */
+    boolean readHead() throws IOException {
+        boolean complete = false;
+        if (!this.busy) {
+            if (this.input == null) {
+                this.input = this.server.getBufferPool().acquire();
+                this.input.flip();
+            }
+            this.input.compact();
+            int read = this.tls != null ? this.tls.read(this.input, false) : this.channel.read(this.input);
+            this.input.flip();
+            if (read < 0) {
+                throw new EOFException();
+            }
+            this.lastActive = System.currentTimeMillis();
+            complete = this.findHeadEnd() >= 0;
+            if (complete) {
+                // stop reading until handled
+                this.busy = true;
+                this.server.getBusyConnections().incrementAndGet();
+                this.key.interestOps(0);
+            } else if (this.input.limit() == this.input.capacity()) {
+                this.reject(431, "Request Header Fields Too Large");
+            } else if (this.tls != null && this.tls.needsTasks()) {
+                this.runHandshakeTasks();
+            } else if (this.tls != null && this.tls.hasPendingOutput()) {
+                // the client waits for the rest of the handshake
+                this.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            } else {
+                this.key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+        return complete;
+    }
+
+    /**
+     * Run the tasks of the TLS handshake on the executor, then back to the selector to go on with the handshake.
+     * The handshake then has output to send, so the connection waits to write rather than to read.
+     */
+    private void runHandshakeTasks() {
+        this.busy = true;
+        this.server.getBusyConnections().incrementAndGet();
+        this.key.interestOps(0);
+        try {
+            this.server.getTaskExecutor().execute(() -> {
+                boolean done = false;
+                try {
+                    this.tls.runTasks();
+                    done = true;
+                } finally {
+                    this.busy = false;
+                    this.server.getBusyConnections().decrementAndGet();
+                    if (!done) {
+                        // handshake failed, nothing to go on with
+                        this.close();
+                    }
+                }
+                try {
+                    this.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    this.server.wakeup();
+                } catch (CancelledKeyException e) {
+                    // closed meanwhile, the server stopped
+                    this.close();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // no room for the handshake either
+            this.close();
+        }
+    }
+
+    /**
+     * Close the connection if idle for too long, on the selector thread.
+     */
+    void closeIfIdle(long now) {
+        if (!this.busy && now - this.lastActive > NioHttpServer.IDLE_TIMEOUT) {
+            this.close();
+        }
+    }
+
+    /**
+     * Handle the buffered request, and then those pipelined after it, on the thread of the executor.
+     * Afterwards the connection is idle again, or closed.
+     */
+    @Override
+    public void run() {
+        try {
+            boolean keepAlive = true;
+            while (keepAlive && (this.findHeadEnd() >= 0 || this.readBuffered())) {
+                keepAlive = this.handleRequest();
+            }
+            if (keepAlive) {
+                this.idle();
+            } else {
+                this.close();
+            }
+        } catch (Exception e) {
+            // broken connection
+            this.close();
+        }
+    }
+
+    /**
+     * Read the input buffered by TLS already (if any), which the selector wouldn't report as there's nothing more to
+     * read from the channel. Returns whether the head of the next request is complete then.
+     */
+    private boolean readBuffered() throws IOException {
+        boolean complete = false;
+        if (this.tls != null && this.tls.hasBufferedInput()) {
+            this.input.compact();
+            int read = this.readChannel(this.input);
+            this.input.flip();
+            complete = read > 0 && this.findHeadEnd() >= 0;
+        }
+        return complete;
+    }
+
+    /**
+     * Parse and handle the next request, through the filters and handler of its context.
+     * Returns whether the connection can be kept alive for the next one.
+     */
+    private boolean handleRequest() throws IOException {
+        NioHttpExchange exchange = this.parseRequest();
+        if (exchange == null) {
+            this.reject(400, "Bad Request");
+            return false;
+        }
+        NioHttpContext context = this.server.findContext(exchange.getRequestURI().getPath());
+        try {
+            if (context == null || context.getHandler() == null) {
+                byte[] body = "No context found for request\n".getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(404, body.length);
+                exchange.getResponseBody().write(body);
+            } else {
+                exchange.setHttpContext(context);
+                new Filter.Chain(context.getFilters(), context.getHandler()).doFilter(exchange);
+            }
+        } catch (Exception e) {
+            // not handled, can't tell what was sent
+            exchange.setKeepAlive(false);
+        } finally {
+            // done, close (if the handler didn't)
+            exchange.close();
+        }
+        return exchange.isKeepAlive() && this.channel.isOpen();
+    }
+
+    /**
+     * Parse the buffered head of the next request as exchange, or null if malformed.
+     */
+    private NioHttpExchange parseRequest() {
+        NioHttpExchange exchange = null;
+        int end = this.findHeadEnd();
+        byte[] head = new byte[end - this.input.position()];
+        this.input.get(head);
+        String[] lines = new String(head, StandardCharsets.ISO_8859_1).split("\r?\n");
+        // empty lines before the request are ignored
+        int line = 0;
+        while (line < lines.length && lines[line].isEmpty()) {
+            line++;
+        }
+        String[] requestLine = line < lines.length ? lines[line].split(" ") : new String[0];
+        if (requestLine.length == 3 && requestLine[2].startsWith("HTTP/1.")) {
+            Headers headers = new Headers();
+            boolean valid = true;
+            for (line++; line < lines.length && !lines[line].isEmpty(); line++) {
+                int separator = lines[line].indexOf(':');
+                if (separator <= 0) {
+                    valid = false;
+                    break;
+                }
+                headers.add(lines[line].substring(0, separator).trim(), lines[line].substring(separator + 1).trim());
+            }
+            try {
+                if (valid) {
+                    exchange = new NioHttpExchange(this, requestLine[0], new URI(requestLine[1]), requestLine[2], headers);
+                }
+            } catch (URISyntaxException | IllegalArgumentException e) {
+                // malformed target or body length
+            }
+        }
+        return exchange;
+    }
+
+    /**
+     * Find the end of the next request's head in the input (after the empty line), or -1 if not complete yet.
+     */
+    private int findHeadEnd() {
+        int end = -1;
+        if (this.input != null) {
+            int limit = this.input.limit();
+            // skip empty lines before the request
+            int start = this.input.position();
+            while (start < limit && (this.input.get(start) == '\r' || this.input.get(start) == '\n')) {
+                start++;
+            }
+            for (int i = start; i < limit - 1 && end < 0; i++) {
+                if (this.input.get(i) == '\n') {
+                    if (this.input.get(i + 1) == '\n') {
+                        end = i + 2;
+                    } else if (this.input.get(i + 1) == '\r' && i + 2 < limit && this.input.get(i + 2) == '\n') {
+                        end = i + 3;
+                    }
+                }
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Respond with the given error (and headers, as <code>"Name: value"</code>) and close the connection, nothing more
+     * can be read from it. Doesn't wait for the client, so it may be called on the selector thread.
+     */
+    void reject(int code, String reason, String... headers) throws IOException {
+        if (this.output == null) {
+            this.output = this.server.getBufferPool().acquire();
+        }
+        StringBuilder response = new StringBuilder("HTTP/1.1 " + code + " " + reason + "\r\n");
+        for (String header : headers) {
+            response.append(header).append("\r\n");
+        }
+        response.append("Content-Length: 0\r\nConnection: close\r\n\r\n");
+        this.output.clear();
+        this.output.put(response.toString().getBytes(StandardCharsets.ISO_8859_1));
+        // best effort, the buffers of a new connection have room for it
+        this.output.flip();
+        this.writeChannel(this.output);
+        if (this.tls != null) {
+            this.tls.flush();
+        }
+        this.close();
+    }
+
+    /**
+     * Back to idle, waiting on the selector for the next request.
+     */
+    private void idle() {
+        if (this.input != null && !this.input.hasRemaining()) {
+            this.server.getBufferPool().release(this.input);
+            this.input = null;
+        }
+        if (this.tls != null) {
+            this.tls.releaseBuffers();
+        }
+        this.lastActive = System.currentTimeMillis();
+        this.busy = false;
+        this.server.getBusyConnections().decrementAndGet();
+        this.key.interestOps(SelectionKey.OP_READ);
+        this.server.wakeup();
+    }
+
+    /**
+     * Close the connection, releasing its buffers.
+     */
+    void close() {
+        if (this.tls != null && this.channel.isOpen()) {
+            this.tls.close();
+        }
+        try { this.channel.close(); } catch (IOException ignored) { ; }
+        if (this.busy) {
+            this.busy = false;
+            this.server.getBusyConnections().decrementAndGet();
+        }
+        if (this.input != null) {
+            this.server.getBufferPool().release(this.input);
+            this.input = null;
+        }
+        this.releaseOutput();
+    }
+
+    boolean isOpen() {
+        return this.channel.isOpen();
+    }
+
+    InetSocketAddress getRemoteAddress() throws IOException {
+        return (InetSocketAddress) this.channel.getRemoteAddress();
+    }
+
+    InetSocketAddress getLocalAddress() throws IOException {
+        return (InetSocketAddress) this.channel.getLocalAddress();
+    }
+
+    /**
+     * Read the next byte of the request (body), -1 at the end of the stream.
+     */
+    int read() throws IOException {
+        int read = -1;
+        if (this.input.hasRemaining() || this.fill()) {
+            read = this.input.get() & 0xFF;
+        }
+        return read;
+    }
+
+    /**
+     * Read up to the given number of bytes of the request (body), waiting for at least one.
+     * Returns the number of bytes read, -1 at the end of the stream.
+     */
+    int read(byte[] bytes, int offset, int length) throws IOException {
+        int read = -1;
+        if (this.input.hasRemaining() || this.fill()) {
+            read = Math.min(length, this.input.remaining());
+            this.input.get(bytes, offset, read);
+        }
+        return read;
+    }
+
+    /**
+     * Read more input, waiting for it if none available. Returns false at the end of the stream.
+     */
+    private boolean fill() throws IOException {
+        int read = 0;
+        this.input.compact();
+        try {
+            while ((read = this.readChannel(this.input)) == 0) {
+                this.await(this.tls != null && this.tls.hasPendingOutput() ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+            }
+        } finally {
+            this.input.flip();
+        }
+        return read > 0;
+    }
+
+    /**
+     * Get the output buffer, to write to it directly. Flush it through <code>flush()</code> when full.
+     */
+    ByteBuffer getOutput() {
+        if (this.output == null) {
+            this.output = this.server.getBufferPool().acquire();
+        }
+        return this.output;
+    }
+
+    /**
+     * Write the given bytes of the response, buffered.
+     */
+    void write(byte[] bytes, int offset, int length) throws IOException {
+        ByteBuffer output = this.getOutput();
+        while (length > 0) {
+            if (!output.hasRemaining()) {
+                this.flush();
+            }
+            int written = Math.min(length, output.remaining());
+            output.put(bytes, offset, written);
+            offset += written;
+            length -= written;
+        }
+    }
+
+    /**
+     * Write the given ASCII text of the response, buffered.
+     */
+    void write(String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.ISO_8859_1);
+        this.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Write the line end of the response, buffered.
+     */
+    void writeLineEnd() throws IOException {
+        this.write(NioConnection.CRLF, 0, NioConnection.CRLF.length);
+    }
+
+    /**
+     * Send the buffered output, waiting for the client to take it if needed.
+     */
+    void flush() throws IOException {
+        if (this.output != null && this.output.position() != 0) {
+            this.output.flip();
+            try {
+                while (this.output.hasRemaining()) {
+                    if (this.writeChannel(this.output) == 0) {
+                        this.await(SelectionKey.OP_WRITE);
+                    }
+                }
+                // and what's left encrypted
+                while (this.tls != null && !this.tls.flush()) {
+                    this.await(SelectionKey.OP_WRITE);
+                }
+            } finally {
+                this.output.clear();
+            }
+        }
+    }
+
+    /**
+     * Release the output buffer, once the response is sent.
+     */
+    void releaseOutput() {
+        if (this.output != null) {
+            this.server.getBufferPool().release(this.output);
+            this.output = null;
+        }
+    }
+
+    /**
+     * Read from the channel into the given buffer, decrypting with TLS, without waiting.
+     */
+    private int readChannel(ByteBuffer buffer) throws IOException {
+        return this.tls != null ? this.tls.read(buffer) : this.channel.read(buffer);
+    }
+
+    /**
+     * Write the given buffer to the channel, encrypting with TLS, without waiting.
+     */
+    private int writeChannel(ByteBuffer buffer) throws IOException {
+        return this.tls != null ? this.tls.write(buffer) : this.channel.write(buffer);
+    }
+
+    /**
+     * Wait until the connection is ready for the given operation, on a temporary selector.
+     * The connection stays registered on the server's selector, with no interest while busy.
+     */
+    private void await(int operation) throws IOException {
+        Selector selector = this.server.acquireSelector();
+        SelectionKey key = this.channel.register(selector, operation);
+        try {
+            if (selector.select(NioHttpServer.IO_TIMEOUT) == 0) {
+                throw new SocketTimeoutException("client didn't " + (operation == SelectionKey.OP_READ ? "send" : "receive") + " in time");
+            }
+        } finally {
+            key.cancel();
+            this.server.releaseSelector(selector);
+        }
+    }
+
+}
@@ -0,0 +1,74 @@
+package org.example.server.nio;
+
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Context of the NIO server: a path (prefix) with its handler and filters.
+ */
+class NioHttpContext extends HttpContext {
+
+    private final NioHttpServer server;
+    private final String path;
+    private volatile HttpHandler handler = null;
+    private final List<Filter> filters = new CopyOnWriteArrayList<Filter>();
+    private final Map<String, Object> attributes = new ConcurrentHashMap<String, Object>();
+
+    NioHttpContext(NioHttpServer server, String path, HttpHandler handler) {
+        this.server = server;
+        this.path = path;
+        this.handler = handler;
+    }
+
+    @Override
+    public HttpHandler getHandler() {
+        return this.handler;
+    }
+
+    @Override
+    public void setHandler(HttpHandler handler) {
+        this.handler = handler;
+    }
+
+    @Override
+    public String getPath() {
+        return this.path;
+    }
+
+    @Override
+    public HttpServer getServer() {
+        return this.server;
+    }
+
+    @Override
+    public Map<String, Object> getAttributes() {
+        return this.attributes;
+    }
+
+    @Override
+    public List<Filter> getFilters() {
+        return this.filters;
+    }
+
+    /**
+     * Not supported, rather than silently passing on unauthenticated requests.
+     */
+    @Override
+    public Authenticator setAuthenticator(Authenticator authenticator) {
+        throw new UnsupportedOperationException("authenticators not supported by the NIO server");
+    }
+
+    @Override
+    public Authenticator getAuthenticator() {
+        return null;
+    }
+
+}
@@ -0,0 +1,644 @@
+package org.example.server.nio;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Exchange of a single request and its response on a connection of the NIO server.
+ * Response headers are buffered together with the start of the body, so small responses go out in one write.
+ */
+class NioHttpExchange extends HttpExchange {
+
+    // bytes of the request body read to skip it, if not read by the handler, before closing the connection instead
+    private static final long DRAIN_LIMIT = 64 * 1024;
+    // reserved for the size of a chunk, as 4 hex digits and line end, the buffer size fits
+    private static final int CHUNK_HEADER_SIZE = 6;
+
+    // date of the responses, formatted once per second
+    private static volatile String date = "";
+    private static volatile long dateSecond = 0;
+
+    private final NioConnection connection;
+    private final String method;
+    private final URI uri;
+    private final String protocol;
+    private final Headers requestHeaders;
+    private final Headers responseHeaders = new Headers();
+    private final Map<String, Object> attributes = new HashMap<String, Object>();
+    private HttpContext context = null;
+    private boolean keepAlive = false;
+    private boolean continueExpected = false;
+    private int responseCode = -1;
+    private boolean closed = false;
+
+    // streams as given to the handler, possibly wrapped by filters, and the actual ones
+    private InputStream requestBody = null;
+    private OutputStream responseBody = null;
+    private final RequestBodyStream requestBodyStream;
+    private ResponseBodyStream responseBodyStream = null;
+
+    /**
+     * Create the exchange for the parsed request head.
+     * Throws IllegalArgumentException if the length of its body is malformed.
+     */
+    NioHttpExchange(NioConnection connection, String method, URI uri, String protocol, Headers requestHeaders) {
+        this.connection = connection;
+        this.method = method;
+        this.uri = uri;
+        this.protocol = protocol;
+        this.requestHeaders = requestHeaders;
+        // HTTP/1.1 keeps the connection alive unless told otherwise, HTTP/1.0 only if told so
+        String connectionHeader = requestHeaders.getFirst("Connection");
+        if (protocol.equals("HTTP/1.1")) {
+            this.keepAlive = !"close".equalsIgnoreCase(connectionHeader);
+        } else {
+            this.keepAlive = "keep-alive".equalsIgnoreCase(connectionHeader);
+        }
+        // the body, by length or chunked
+        String transferEncoding = requestHeaders.getFirst("Transfer-Encoding");
+        String contentLength = requestHeaders.getFirst("Content-Length");
+        if (transferEncoding != null) {
+            if (!transferEncoding.equalsIgnoreCase("chunked") || contentLength != null) {
+                throw new IllegalArgumentException("unsupported transfer encoding: " + transferEncoding);
+            }
+            this.requestBodyStream = new ChunkedInputStream();
+        } else {
+            long length = contentLength != null ? Long.parseLong(contentLength.trim()) : 0;
+            if (length < 0) {
+                throw new IllegalArgumentException("invalid content length: " + length);
+            }
+            this.requestBodyStream = new FixedLengthInputStream(length);
+        }
+        this.continueExpected = "100-continue".equalsIgnoreCase(requestHeaders.getFirst("Expect"));
+        this.requestBody = this.requestBodyStream;
+        this.responseBody = new PlaceholderOutputStream();
+    }
+
+    void setHttpContext(HttpContext context) {
+        this.context = context;
+    }
+
+    boolean isKeepAlive() {
+        return this.keepAlive;
+    }
+
+    void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    @Override
+    public Headers getRequestHeaders() {
+        return this.requestHeaders;
+    }
+
+    @Override
+    public Headers getResponseHeaders() {
+        return this.responseHeaders;
+    }
+
+    @Override
+    public URI getRequestURI() {
+        return this.uri;
+    }
+
+    @Override
+    public String getRequestMethod() {
+        return this.method;
+    }
+
+    @Override
+    public HttpContext getHttpContext() {
+        return this.context;
+    }
+
+    @Override
+    public InputStream getRequestBody() {
+        return this.requestBody;
+    }
+
+    @Override
+    public OutputStream getResponseBody() {
+        return this.responseBody;
+    }
+
+    @Override
+    public void setStreams(InputStream requestBody, OutputStream responseBody) {
+        if (requestBody != null) {
+            this.requestBody = requestBody;
+        }
+        if (responseBody != null) {
+            this.responseBody = responseBody;
+        }
+    }
+
+    /**
+     * Send the status line and headers of the response, buffered until the body is written (or the exchange closed).
+     * The length of the body is fixed if positive, unknown if 0 (sent chunked) or there's none if -1.
+     */
+    @Override
+    public void sendResponseHeaders(int code, long length) throws IOException {
+        if (this.responseCode >= 0) {
+            throw new IOException("headers already sent");
+        }
+        this.responseCode = code;
+        boolean noBody = length < 0 || code == 204 || code == 304 || code < 200 || this.method.equals("HEAD");
+        this.connection.write("HTTP/1.1 " + code + " " + NioHttpExchange.reason(code));
+        this.connection.writeLineEnd();
+        this.connection.write("Date: " + NioHttpExchange.date());
+        this.connection.writeLineEnd();
+        if (noBody) {
+            if (code >= 200 && code != 204 && code != 304) {
+                // HEAD gets the length it would have had
+                this.writeHeader("Content-Length", String.valueOf(Math.max(length, 0)));
+            }
+            this.responseBodyStream = new FixedLengthOutputStream(0);
+        } else if (length > 0) {
+            this.writeHeader("Content-Length", String.valueOf(length));
+            this.responseBodyStream = new FixedLengthOutputStream(length);
+        } else if (this.protocol.equals("HTTP/1.1")) {
+            this.writeHeader("Transfer-Encoding", "chunked");
+            this.responseBodyStream = new ChunkedOutputStream();
+        } else {
+            // HTTP/1.0 can't chunk, the body ends with the connection
+            this.keepAlive = false;
+            this.responseBodyStream = new FixedLengthOutputStream(Long.MAX_VALUE);
+        }
+        if (!this.keepAlive) {
+            this.writeHeader("Connection", "close");
+        } else if (!this.protocol.equals("HTTP/1.1")) {
+            this.writeHeader("Connection", "keep-alive");
+        }
+        for (Map.Entry<String, List<String>> header : this.responseHeaders.entrySet()) {
+            for (String value : header.getValue()) {
+                this.writeHeader(header.getKey(), value);
+            }
+        }
+        this.connection.writeLineEnd();
+    }
+
+    /**
+     * Write a single header line of the response.
+     */
+    private void writeHeader(String name, String value) throws IOException {
+        this.connection.write(name + ": " + value);
+        this.connection.writeLineEnd();
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        InetSocketAddress address = null;
+        try {
+            address = this.connection.getRemoteAddress();
+        } catch (IOException ignored) {
+            // closed
+        }
+        return address;
+    }
+
+    @Override
+    public int getResponseCode() {
+        return this.responseCode;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        InetSocketAddress address = null;
+        try {
+            address = this.connection.getLocalAddress();
+        } catch (IOException ignored) {
+            // closed
+        }
+        return address;
+    }
+
+    @Override
+    public String getProtocol() {
+        return this.protocol;
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return this.attributes.get(name);
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        this.attributes.put(name, value);
+    }
+
+    @Override
+    public HttpPrincipal getPrincipal() {
+        return null;
+    }
+
+    /**
+     * End the exchange: complete the response and skip the rest of the request body, so the next request can be
+     * read. If either isn't possible the connection can't be kept alive. Does nothing if already closed.
+     */
+    @Override
+    public void close() {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        try {
+            if (this.responseBodyStream == null) {
+                // no response at all, nothing the client could make sense of
+                this.keepAlive = false;
+            } else {
+                this.responseBodyStream.close();
+                this.keepAlive &= this.responseBodyStream.isComplete();
+            }
+            if (this.keepAlive) {
+                // the client only sends the body once continued
+                this.keepAlive = !this.continueExpected && this.requestBodyStream.skipRemaining();
+            }
+            this.connection.flush();
+        } catch (IOException e) {
+            this.keepAlive = false;
+        } finally {
+            this.connection.releaseOutput();
+        }
+    }
+
+    /**
+     * Tell the client to send the body, if it waits for it. Sent before reading the body.
+     */
+    private void sendContinue() throws IOException {
+        if (this.continueExpected) {
+            this.continueExpected = false;
+            if (this.responseCode < 0) {
+                this.connection.write("HTTP/1.1 100 Continue");
+                this.connection.writeLineEnd();
+                this.connection.writeLineEnd();
+                this.connection.flush();
+            }
+        }
+    }
+
+    /**
+     * Get the date header for now, formatted once per second.
+     */
+    private static String date() {
+        long second = System.currentTimeMillis() / 1000;
+        if (second != NioHttpExchange.dateSecond) {
+            NioHttpExchange.date = DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochSecond(second).atZone(ZoneOffset.UTC));
+            NioHttpExchange.dateSecond = second;
+        }
+        return NioHttpExchange.date;
+    }
+
+    /**
+     * Get the reason phrase of the given status code, empty if not known.
+     */
+    private static String reason(int code) {
+        String reason = "";
+        switch (code) {
+            case 100: reason = "Continue"; break;
+            case 200: reason = "OK"; break;
+            case 201: reason = "Created"; break;
+            case 204: reason = "No Content"; break;
+            case 304: reason = "Not Modified"; break;
+            case 400: reason = "Bad Request"; break;
+            case 404: reason = "Not Found"; break;
+            case 405: reason = "Method Not Allowed"; break;
+            case 410: reason = "Gone"; break;
+            case 413: reason = "Payload Too Large"; break;
+            case 429: reason = "Too Many Requests"; break;
+            case 500: reason = "Internal Server Error"; break;
+            case 503: reason = "Service Unavailable"; break;
+        }
+        return reason;
+    }
+
+    /**
+     * Stream of the request body, reading from the connection.
+     */
+    private abstract class RequestBodyStream extends InputStream {
+
+        private final byte[] single = new byte[1];
+
+        @Override
+        public int read() throws IOException {
+            int read = this.read(this.single, 0, 1);
+            return read < 0 ? -1 : this.single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            NioHttpExchange.this.sendContinue();
+            return this.readBody(bytes, offset, length);
+        }
+
+        /**
+         * Read up to the given number of bytes of the body, -1 at its end.
+         */
+        abstract int readBody(byte[] bytes, int offset, int length) throws IOException;
+
+        /**
+         * Skip the rest of the body, up to the drain limit. Returns whether the body was read to its end.
+         */
+        boolean skipRemaining() throws IOException {
+            byte[] skipped = new byte[4096];
+            long total = 0;
+            int read = 0;
+            while (total <= NioHttpExchange.DRAIN_LIMIT && (read = this.readBody(skipped, 0, skipped.length)) >= 0) {
+                total += read;
+            }
+            return read < 0;
+        }
+
+    }
+
+    /**
+     * Request body of known length.
+     */
+    private class FixedLengthInputStream extends RequestBodyStream {
+
+        private long remaining;
+
+        FixedLengthInputStream(long length) {
+            this.remaining = length;
+        }
+
+        @Override
+        int readBody(byte[] bytes, int offset, int length) throws IOException {
+            int read = -1;
+            if (this.remaining > 0) {
+                read = NioHttpExchange.this.connection.read(bytes, offset, (int) Math.min(length, this.remaining));
+                if (read < 0) {
+                    throw new IOException("request body incomplete");
+                }
+                this.remaining -= read;
+            }
+            return read;
+        }
+
+    }
+
+    /**
+     * Request body sent in chunks, each preceded by its size (in hex) and followed by a line end, up to a chunk of
+     * size 0 and the (ignored) trailers.
+     */
+    private class ChunkedInputStream extends RequestBodyStream {
+
+        // remaining bytes of the current chunk, -1 at the end of the body
+        private long remaining = 0;
+
+        @Override
+        int readBody(byte[] bytes, int offset, int length) throws IOException {
+            if (this.remaining == 0) {
+                this.remaining = this.readChunkSize();
+            }
+            int read = -1;
+            if (this.remaining > 0) {
+                read = NioHttpExchange.this.connection.read(bytes, offset, (int) Math.min(length, this.remaining));
+                if (read < 0) {
+                    throw new IOException("request body incomplete");
+                }
+                this.remaining -= read;
+                if (this.remaining == 0) {
+                    // line end after the chunk
+                    this.readLine();
+                }
+            }
+            return read;
+        }
+
+        /**
+         * Read the size of the next chunk, -1 (after the trailers) if it's the last one.
+         */
+        private long readChunkSize() throws IOException {
+            if (this.remaining < 0) {
+                return -1;
+            }
+            String line = this.readLine();
+            int extension = line.indexOf(';');
+            long size = Long.parseLong((extension < 0 ? line : line.substring(0, extension)).trim(), 16);
+            if (size == 0) {
+                // skip the trailers, up to the empty line
+                while (!this.readLine().isEmpty()) {
+                    ;
+                }
+                size = -1;
+            }
+            return size;
+        }
+
+        /**
+         * Read a line, without its line end.
+         */
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            int read = 0;
+            while ((read = NioHttpExchange.this.connection.read()) != '\n') {
+                if (read < 0) {
+                    throw new IOException("request body incomplete");
+                }
+                if (read != '\r') {
+                    line.append((char) read);
+                }
+            }
+            return line.toString();
+        }
+
+    }
+
+    /**
+     * Stream of the response body, as handed to the handler before the headers are sent.
+     * Passes on to the actual stream, once the headers are sent.
+     */
+    private class PlaceholderOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            this.stream().write(b);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            this.stream().write(bytes, offset, length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            this.stream().flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (NioHttpExchange.this.responseBodyStream != null) {
+                NioHttpExchange.this.responseBodyStream.close();
+            }
+        }
+
+        private OutputStream stream() throws IOException {
+            if (NioHttpExchange.this.responseBodyStream == null) {
+                throw new IOException("response headers not sent yet");
+            }
+            return NioHttpExchange.this.responseBodyStream;
+        }
+
+    }
+
+    /**
+     * Stream of the response body, writing to the connection.
+     */
+    private abstract class ResponseBodyStream extends OutputStream {
+
+        protected boolean closed = false;
+
+        @Override
+        public void write(int b) throws IOException {
+            this.write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (!this.closed) {
+                NioHttpExchange.this.connection.flush();
+            }
+        }
+
+        /**
+         * Whether the whole body was written, i.e. the connection can be kept alive.
+         */
+        abstract boolean isComplete();
+
+    }
+
+    /**
+     * Response body of known length (or none).
+     */
+    private class FixedLengthOutputStream extends ResponseBodyStream {
+
+        private long remaining;
+
+        FixedLengthOutputStream(long length) {
+            this.remaining = length;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (this.closed) {
+                throw new IOException("response body closed");
+            }
+            if (length > this.remaining) {
+                throw new IOException("response body longer than its length");
+            }
+            NioHttpExchange.this.connection.write(bytes, offset, length);
+            this.remaining -= length;
+        }
+
+        @Override
+        public void close() {
+            this.closed = true;
+        }
+
+        @Override
+        boolean isComplete() {
+            return this.remaining == 0;
+        }
+
+    }
+
+    /**
+     * Response body sent in chunks, each chunk filling up the output buffer (unless flushed before).
+     * The size of a chunk is only known when it's done, so space for it is reserved at its start.
+     */
+    private class ChunkedOutputStream extends ResponseBodyStream {
+
+        // position of the current chunk in the output buffer, -1 if none
+        private int chunkStart = -1;
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (this.closed) {
+                throw new IOException("response body closed");
+            }
+            NioConnection connection = NioHttpExchange.this.connection;
+            while (length > 0) {
+                ByteBuffer output = connection.getOutput();
+                if (this.chunkStart < 0) {
+                    // start a new chunk, with room for its size, some data and its line end
+                    if (output.remaining() < NioHttpExchange.CHUNK_HEADER_SIZE + 3) {
+                        connection.flush();
+                    }
+                    this.chunkStart = output.position();
+                    output.position(this.chunkStart + NioHttpExchange.CHUNK_HEADER_SIZE);
+                }
+                int written = Math.min(length, output.remaining() - 2);
+                output.put(bytes, offset, written);
+                offset += written;
+                length -= written;
+                if (output.remaining() <= 2) {
+                    this.endChunk();
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            this.endChunk();
+            super.flush();
+        }
+
+        /**
+         * End the body, with the last (empty) chunk.
+         */
+        @Override
+        public void close() throws IOException {
+            if (!this.closed) {
+                this.endChunk();
+                NioHttpExchange.this.connection.write("0\r\n\r\n");
+                this.closed = true;
+            }
+        }
+
+        @Override
+        boolean isComplete() {
+            return this.closed;
+        }
+
+        /**
+         * End the current chunk (if any), filling in its size.
+         */
+        private void endChunk() {
+            if (this.chunkStart >= 0) {
+                ByteBuffer output = NioHttpExchange.this.connection.getOutput();
+                int size = output.position() - this.chunkStart - NioHttpExchange.CHUNK_HEADER_SIZE;
+                if (size == 0) {
+                    // empty, drop it (an empty chunk would end the body)
+                    output.position(this.chunkStart);
+                } else {
+                    String hex = String.format("%04x\r\n", size);
+                    for (int i = 0; i < NioHttpExchange.CHUNK_HEADER_SIZE; i++) {
+                        output.put(this.chunkStart + i, (byte) hex.charAt(i));
+                    }
+                    output.put((byte) '\r').put((byte) '\n');
+                }
+                this.chunkStart = -1;
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,343 @@
+package org.example.server.nio;
+
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * HTTP/1.1 server on non-blocking channels, as alternative to the JDK's <code>HttpServer</code> running the same
+ * handlers and filters.
+ * A single selector thread accepts the connections and reads the requests, once a request's head is complete it's
+ * handed to the executor. The handler then reads/writes the connection itself, through pooled direct buffers,
+ * and only waits (on a temporary selector) if the socket isn't ready. Between requests connections are idle on the
+ * selector, holding neither thread nor buffer, so many keep-alive connections can be open at once.
+ * Supports keep-alive, pipelining (requests of a connection are handled in order, one at a time) and chunked
+ * transfer both ways, and optionally TLS (see <code>TlsChannel</code>).
+ */
+public class NioHttpServer extends HttpServer {
+
+    // size of the pooled buffers, also the maximum size of a request head
+    static final int BUFFER_SIZE = 16 * 1024;
+    // buffers/selectors kept for reuse
+    private static final int MAX_POOLED_BUFFERS = 1024;
+    // time in milliseconds a connection may stay idle, or a handler wait for the client to read/write
+    static final long IDLE_TIMEOUT = 30_000;
+    static final long IO_TIMEOUT = 30_000;
+
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final BufferPool bufferPool = new BufferPool(NioHttpServer.BUFFER_SIZE, NioHttpServer.MAX_POOLED_BUFFERS);
+    // TLS of the connections and buffers sized for its records, null if plain
+    private final SSLContext sslContext;
+    private final BufferPool tlsBufferPool;
+    // temporary selectors for handlers waiting on their connection
+    private final ConcurrentLinkedQueue<Selector> selectors = new ConcurrentLinkedQueue<Selector>();
+    // connections with a request being handled
+    private final AtomicInteger busyConnections = new AtomicInteger();
+    private final CopyOnWriteArrayList<NioHttpContext> contexts = new CopyOnWriteArrayList<NioHttpContext>();
+    private Executor executor = null;
+    // own executor, if none was set
+    private ExecutorService defaultExecutor = null;
+    private Thread selectorThread = null;
+    private volatile boolean running = false;
+
+    /**
+     * Create a new server, bound to the given address (if not null) with the given backlog (0 for the default).
+     * To start it call <code>start()</code>.
+     */
+    public NioHttpServer(InetSocketAddress address, int backlog) throws IOException {
+        this(address, backlog, null);
+    }
+
+    /**
+     * Create a new server like above, with TLS of the given context on all connections (plain if null).
+     */
+    public NioHttpServer(InetSocketAddress address, int backlog, SSLContext sslContext) throws IOException {
+        this.sslContext = sslContext;
+        this.tlsBufferPool = sslContext != null ? new BufferPool(NioHttpServer.tlsBufferSize(sslContext), NioHttpServer.MAX_POOLED_BUFFERS) : null;
+        this.serverChannel = ServerSocketChannel.open();
+        this.selector = Selector.open();
+        if (address != null) {
+            this.bind(address, backlog);
+        }
+    }
+
+    @Override
+    public void bind(InetSocketAddress address, int backlog) throws IOException {
+        this.serverChannel.bind(address, backlog);
+    }
+
+    @Override
+    public void start() {
+        if (this.running) {
+            throw new IllegalStateException("server already started");
+        }
+        try {
+            this.serverChannel.configureBlocking(false);
+            this.serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            throw new IllegalStateException("server not bound", e);
+        }
+        if (this.executor == null) {
+            // handlers can't run on the selector thread, they may wait for it (neither may a given executor run them on
+            // the calling thread, it has to reject what it can't take, see read())
+            this.defaultExecutor = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "nio-request"));
+            this.executor = this.defaultExecutor;
+        }
+        this.running = true;
+        this.selectorThread = new Thread(this::select, "nio-selector");
+        this.selectorThread.start();
+    }
+
+    @Override
+    public void setExecutor(Executor executor) {
+        if (this.running) {
+            throw new IllegalStateException("server already started");
+        }
+        this.executor = executor;
+    }
+
+    @Override
+    public Executor getExecutor() {
+        return this.defaultExecutor != null ? null : this.executor;
+    }
+
+    /**
+     * Stop the server: stop accepting connections, wait up to the given seconds for the requests being handled
+     * to finish and close all connections.
+     */
+    @Override
+    public void stop(int delay) {
+        try { this.serverChannel.close(); } catch (IOException ignored) { ; }
+        try {
+            // let the requests being handled finish, up to the delay
+            long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(delay);
+            while (this.busyConnections.get() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            this.running = false;
+            this.selector.wakeup();
+            this.selectorThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (this.defaultExecutor != null) {
+            this.defaultExecutor.shutdown();
+        }
+        // done, close
+        Selector selector = null;
+        while ((selector = this.selectors.poll()) != null) {
+            try { selector.close(); } catch (IOException ignored) { ; }
+        }
+    }
+
+    @Override
+    public HttpContext createContext(String path, HttpHandler handler) {
+        if (path == null || !path.startsWith("/")) {
+            throw new IllegalArgumentException("invalid path: " + path);
+        }
+        NioHttpContext context = new NioHttpContext(this, path, handler);
+        for (NioHttpContext existing : this.contexts) {
+            if (existing.getPath().equals(path)) {
+                throw new IllegalArgumentException("context already exists: " + path);
+            }
+        }
+        this.contexts.add(context);
+        return context;
+    }
+
+    @Override
+    public HttpContext createContext(String path) {
+        return this.createContext(path, null);
+    }
+
+    @Override
+    public void removeContext(String path) {
+        if (!this.contexts.removeIf(context -> context.getPath().equals(path))) {
+            throw new IllegalArgumentException("no context: " + path);
+        }
+    }
+
+    @Override
+    public void removeContext(HttpContext context) {
+        this.contexts.remove(context);
+    }
+
+    @Override
+    public InetSocketAddress getAddress() {
+        InetSocketAddress address = null;
+        try {
+            address = (InetSocketAddress) this.serverChannel.getLocalAddress();
+        } catch (IOException ignored) {
+            // closed
+        }
+        return address;
+    }
+
+    /**
+     * Find the context of the given path, the one with the longest matching path, or null if none.
+     */
+    NioHttpContext findContext(String path) {
+        NioHttpContext found = null;
+        for (NioHttpContext context : this.contexts) {
+            if (path.startsWith(context.getPath()) && (found == null || context.getPath().length() > found.getPath().length())) {
+                found = context;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Get the executor of the requests, which also runs the tasks of the TLS handshakes (see <code>NioConnection</code>).
+     */
+    Executor getTaskExecutor() {
+        return this.executor;
+    }
+
+    BufferPool getBufferPool() {
+        return this.bufferPool;
+    }
+
+    /**
+     * Get the counter of the connections with a request being handled.
+     */
+    AtomicInteger getBusyConnections() {
+        return this.busyConnections;
+    }
+
+    /**
+     * Get a temporary selector, to wait on a single connection. To be released when done.
+     */
+    Selector acquireSelector() throws IOException {
+        Selector selector = this.selectors.poll();
+        if (selector == null) {
+            selector = Selector.open();
+        }
+        return selector;
+    }
+
+    /**
+     * Return the given temporary selector, with its keys cancelled.
+     */
+    void releaseSelector(Selector selector) throws IOException {
+        // flush the cancelled keys, so the channels can be registered again
+        selector.selectNow();
+        this.selectors.offer(selector);
+    }
+
+    /**
+     * Wake up the selector, to take up changed interests of the connections.
+     */
+    void wakeup() {
+        this.selector.wakeup();
+    }
+
+    /**
+     * Loop of the selector thread: accept connections, read requests and close idle connections, until stopped.
+     */
+    private void select() {
+        long lastCheck = System.currentTimeMillis();
+        while (this.running) {
+            try {
+                this.selector.select(1000);
+                Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        this.accept();
+                    } else if (key.isReadable() || key.isWritable()) {
+                        this.read((NioConnection) key.attachment());
+                    }
+                }
+                // now and then close the idle connections
+                long now = System.currentTimeMillis();
+                if (now - lastCheck >= 1000) {
+                    lastCheck = now;
+                    for (SelectionKey key : this.selector.keys()) {
+                        if (key.attachment() instanceof NioConnection) {
+                            ((NioConnection) key.attachment()).closeIfIdle(now);
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                // keep serving the other connections
+                e.printStackTrace();
+            }
+        }
+        // stopped, close all connections
+        for (SelectionKey key : this.selector.keys()) {
+            try { key.channel().close(); } catch (IOException ignored) { ; }
+        }
+        try { this.selector.close(); } catch (IOException ignored) { ; }
+    }
+
+    /**
+     * Accept the pending connections, registering them for reading.
+     */
+    private void accept() throws IOException {
+        SocketChannel channel = null;
+        while ((channel = this.serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            // responses are written in one go, no need to wait for more
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            TlsChannel tls = null;
+            if (this.sslContext != null) {
+                SSLEngine engine = this.sslContext.createSSLEngine();
+                engine.setUseClientMode(false);
+                tls = new TlsChannel(channel, engine, this.tlsBufferPool);
+            }
+            NioConnection connection = new NioConnection(this, channel, tls);
+            connection.setKey(channel.register(this.selector, SelectionKey.OP_READ, connection));
+        }
+    }
+
+    /**
+     * Get the size of the buffers for TLS of the given context: large enough for a record, encrypted or not.
+     */
+    private static int tlsBufferSize(SSLContext sslContext) {
+        SSLSession session = sslContext.createSSLEngine().getSession();
+        return Math.max(session.getPacketBufferSize(), session.getApplicationBufferSize());
+    }
+
+    /**
+     * Read from the given connection, handing it to the executor once a request's head is complete.
+     * A request the executor rejects is answered with <code>503</code> right away, closing the connection.
+     */
+    private void read(NioConnection connection) {
+        try {
+            if (connection.readHead()) {
+                try {
+                    this.executor.execute(connection);
+                } catch (RejectedExecutionException e) {
+                    // no room for it (or stopping)
+                    connection.reject(503, "Service Unavailable", "Retry-After: 1");
+                }
+            }
+        } catch (IOException e) {
+            // closed by the client
+            connection.close();
+        }
+    }
+
+}
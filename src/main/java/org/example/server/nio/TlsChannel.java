@@ -0,0 +1,256 @@
+package org.example.server.nio;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * TLS on a non-blocking channel of a connection, through an <code>SSLEngine</code> in server mode.
+ * Reads and writes never wait: like the channel they return 0 if nothing could be done right now, the caller then waits
+ * for the channel (to read or write, also while the handshake is going on). The handshake is driven by them as needed,
+ * its tasks run on the calling thread, or are left to the caller: the selector thread hands them off (see
+ * <code>read()</code>), as they take a while (key exchange, signing).
+ * The buffers of the encrypted data (in/out) and the decrypted input are taken from the pool only while they hold
+ * data, so idle connections cost no buffer here either.
+ * Not thread-safe, used by one thread at a time like its connection.
+ */
+class TlsChannel {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final BufferPool bufferPool;
+    // encrypted input not decrypted yet, and the decrypted input not read yet, both ready for writing (not flipped)
+    private ByteBuffer netInput = null;
+    private ByteBuffer appInput = null;
+    // encrypted output not sent yet, ready for writing
+    private ByteBuffer netOutput = null;
+
+    /**
+     * Wrap the given channel, with the given engine in server mode and buffers of the given pool, large enough for
+     * the packets and the decrypted data of the engine's session.
+     */
+    TlsChannel(SocketChannel channel, SSLEngine engine, BufferPool bufferPool) {
+        this.channel = channel;
+        this.engine = engine;
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * Read (decrypted) input into the given buffer, as much as available and fits, running the tasks of the handshake
+     * if it needs them. Returns the number of bytes read, 0 if none available right now, -1 at the end of the stream.
+     */
+    int read(ByteBuffer destination) throws IOException {
+        return this.read(destination, true);
+    }
+
+    /**
+     * Read (decrypted) input into the given buffer, as much as available and fits. Unless the tasks of the handshake
+     * are to be run, it stops when the handshake needs them, they're then up to the caller (see <code>needsTasks()</code>).
+     * Returns the number of bytes read, 0 if none available right now, -1 at the end of the stream.
+     */
+    int read(ByteBuffer destination, boolean runTasks) throws IOException {
+        int total = 0;
+        // the output of the handshake first, if the channel didn't take it all before
+        this.flush();
+        while (destination.hasRemaining()) {
+            // hand out what's decrypted already first
+            if (this.appInput != null && this.appInput.position() != 0) {
+                this.appInput.flip();
+                int read = Math.min(this.appInput.remaining(), destination.remaining());
+                destination.put(this.appInput.slice(this.appInput.position(), read));
+                this.appInput.position(this.appInput.position() + read);
+                this.appInput.compact();
+                total += read;
+                continue;
+            }
+            if (this.engine.isInboundDone()) {
+                return total != 0 ? total : -1;
+            }
+            SSLEngineResult.HandshakeStatus status = this.engine.getHandshakeStatus();
+            if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                if (!runTasks) {
+                    return total;
+                }
+                this.runTasks();
+                continue;
+            }
+            if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                // handshake data to send, the client waits for it before sending more
+                if (this.flush()) {
+                    this.wrap(TlsChannel.EMPTY);
+                }
+                if (!this.flush()) {
+                    return total;
+                }
+                continue;
+            }
+            // decrypt what's buffered, reading more from the channel if it's not a whole record
+            if (this.netInput == null) {
+                this.netInput = this.bufferPool.acquire();
+            }
+            if (this.appInput == null) {
+                this.appInput = this.bufferPool.acquire();
+            }
+            this.netInput.flip();
+            SSLEngineResult result = null;
+            try {
+                result = this.engine.unwrap(this.netInput, this.appInput);
+            } finally {
+                this.netInput.compact();
+            }
+            switch (result.getStatus()) {
+                case OK:
+                    break;
+                case BUFFER_UNDERFLOW:
+                    int read = this.channel.read(this.netInput);
+                    if (read < 0) {
+                        // closed without close_notify, at least it's not in the middle of a record
+                        try { this.engine.closeInbound(); } catch (SSLException ignored) { ; }
+                        return total != 0 ? total : -1;
+                    }
+                    if (read == 0) {
+                        this.releaseBuffers();
+                        return total;
+                    }
+                    break;
+                case CLOSED:
+                    // close_notify of the client, answered by the next wrap (if any)
+                    return total != 0 ? total : -1;
+                default:
+                    // the pooled buffers are sized for the session
+                    throw new SSLException("buffer too small for TLS record: " + result);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Write (encrypting) as much of the given buffer as the channel takes right now, after the pending output.
+     * Returns the number of bytes written, 0 if none (the channel isn't ready).
+     */
+    int write(ByteBuffer source) throws IOException {
+        int written = 0;
+        while (source.hasRemaining() && this.flush()) {
+            if (this.engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                this.runTasks();
+            }
+            SSLEngineResult result = this.wrap(source);
+            if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+                // the engine waits for input first, i.e. a renegotiation in the middle of the response
+                throw new SSLException("TLS handshake while writing: " + result);
+            }
+            written += result.bytesConsumed();
+        }
+        return written;
+    }
+
+    /**
+     * Send the pending output (if any), as much as the channel takes right now.
+     * Returns whether all of it is sent.
+     */
+    boolean flush() throws IOException {
+        if (this.netOutput != null) {
+            this.netOutput.flip();
+            try {
+                this.channel.write(this.netOutput);
+            } finally {
+                this.netOutput.compact();
+            }
+            if (this.netOutput.position() != 0) {
+                return false;
+            }
+            this.bufferPool.release(this.netOutput);
+            this.netOutput = null;
+        }
+        return true;
+    }
+
+    /**
+     * Whether encrypted output is left to send, the caller then waits for the channel to take more (to write).
+     */
+    boolean hasPendingOutput() {
+        return this.netOutput != null && this.netOutput.position() != 0;
+    }
+
+    /**
+     * Whether the handshake waits for its tasks to run, see <code>runTasks()</code>.
+     */
+    boolean needsTasks() {
+        return this.engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK;
+    }
+
+    /**
+     * Whether input is buffered already, decrypted or not, so there may be more to read without the channel.
+     */
+    boolean hasBufferedInput() {
+        return (this.appInput != null && this.appInput.position() != 0) || (this.netInput != null && this.netInput.position() != 0);
+    }
+
+    /**
+     * Close the TLS session, sending close_notify if the channel takes it right away, and release the buffers.
+     */
+    void close() {
+        try {
+            this.engine.closeOutbound();
+            if (this.flush()) {
+                this.wrap(TlsChannel.EMPTY);
+                this.flush();
+            }
+        } catch (IOException ignored) {
+            // closing anyway
+        }
+        for (ByteBuffer buffer : new ByteBuffer[] {this.netInput, this.appInput, this.netOutput}) {
+            if (buffer != null) {
+                this.bufferPool.release(buffer);
+            }
+        }
+        this.netInput = null;
+        this.appInput = null;
+        this.netOutput = null;
+    }
+
+    /**
+     * Encrypt from the given buffer into the output, which is empty or has room for a record.
+     */
+    private SSLEngineResult wrap(ByteBuffer source) throws IOException {
+        if (this.netOutput == null) {
+            this.netOutput = this.bufferPool.acquire();
+        }
+        SSLEngineResult result = this.engine.wrap(source, this.netOutput);
+        if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+            throw new SSLException("buffer too small for TLS record: " + result);
+        }
+        return result;
+    }
+
+    /**
+     * Run the tasks of the handshake (e.g. key exchange). Only touches the engine, so it may run on another thread
+     * than the one using the channel, while that one waits for it.
+     */
+    void runTasks() {
+        Runnable task = null;
+        while ((task = this.engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Return the input buffers to the pool, if empty.
+     */
+    void releaseBuffers() {
+        if (this.netInput != null && this.netInput.position() == 0) {
+            this.bufferPool.release(this.netInput);
+            this.netInput = null;
+        }
+        if (this.appInput != null && this.appInput.position() == 0) {
+            this.bufferPool.release(this.appInput);
+            this.appInput = null;
+        }
+    }
+
+}